@@ -4,14 +4,19 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.Banner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 
 @SpringBootApplication
 @ComponentScan(lazyInit = true)
+@EnableScheduling
 public class FileStorageManagerApplication {
 
     public static void main(String[] args) {
@@ -21,6 +26,18 @@ public class FileStorageManagerApplication {
         sa.run(args);
     }
 
+    /**
+     * Pool des tâches planifiées (health-check ClamAV, reprise des scans, rescan en arrière-plan...) :
+     * une tâche longue ne doit pas bloquer les autres.
+     */
+    @Bean
+    public TaskScheduler taskScheduler(@Value("${scheduling.poolSize:4}") int poolSize) {
+        ThreadPoolTaskScheduler taskScheduler = new ThreadPoolTaskScheduler();
+        taskScheduler.setPoolSize(poolSize);
+        taskScheduler.setThreadNamePrefix("scheduler-");
+        return taskScheduler;
+    }
+
     @EnableWebSecurity
     @Configuration
     public class CustomWebSecurityConfigurerAdapter extends WebSecurityConfigurerAdapter {
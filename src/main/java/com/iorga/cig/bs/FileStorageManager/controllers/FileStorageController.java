@@ -2,27 +2,55 @@ package com.iorga.cig.bs.FileStorageManager.controllers;
 
 import com.iorga.cig.bs.FileStorageManager.exceptions.*;
 import com.iorga.cig.bs.FileStorageManager.models.BSFile;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileBulkResult;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileContent;
 import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformationPage;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileUpload;
+import com.iorga.cig.bs.FileStorageManager.services.AsyncScanService;
+import com.iorga.cig.bs.FileStorageManager.services.BSFileInformationCache;
+import com.iorga.cig.bs.FileStorageManager.services.BulkUploadService;
+import com.iorga.cig.bs.FileStorageManager.services.DownloadableDataFile;
+import com.iorga.cig.bs.FileStorageManager.services.FileContentSender;
 import com.iorga.cig.bs.FileStorageManager.services.IBSFileInformationRepository;
+import com.iorga.cig.bs.FileStorageManager.services.StorageMetrics;
 import com.iorga.cig.bs.FileStorageManager.services.Tools;
+import com.iorga.cig.bs.FileStorageManager.services.ZipArchiveSender;
+import com.iorga.cig.bs.FileStorageManager.services.WriteIntentLog;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
+import org.apache.tomcat.util.http.fileupload.FileUploadBase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.Resource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartException;
+import org.springframework.web.multipart.MultipartFile;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
 @RestController
@@ -35,12 +63,49 @@ public class FileStorageController {
     @Autowired
     private IBSFileInformationRepository bsfiRepository;
 
+    @Autowired
+    private BSFileInformationCache fileInfosCache;
+
     @Autowired
     private Tools toolServices;
 
+    @Autowired
+    private FileContentSender fileContentSender;
+
+    @Autowired
+    private AsyncScanService asyncScanService;
+
+    @Autowired
+    private BulkUploadService bulkUploadService;
+
+    @Autowired
+    private ZipArchiveSender zipArchiveSender;
+
+    @Autowired
+    private WriteIntentLog writeIntentLog;
+
+    @Autowired
+    private StorageMetrics storageMetrics;
+
+    @Value("${listing.defaultPageSize:100}")
+    private int listingDefaultPageSize;
+
+    @Value("${listing.maxPageSize:1000}")
+    private int listingMaxPageSize;
+
+    @Value("${bulk.maxFiles:1000}")
+    private int bulkMaxFiles;
+
     @Value("${nas.tasks.rootdir}")
     private String nasTasksRootdir;
 
+    /**
+     * Types de dossiers de dépot (chaque type a ses propres règles de création des informations et de status).
+     */
+    private enum FolderKind {
+        NORMAL, SPECIAL, PUBLIC
+    }
+
     /**
      * Récupération des informations relatives au fichier demandé.
      * Avec vérification de la correspondance des informations trouvées avec le owner spécifié.
@@ -50,20 +115,45 @@ public class FileStorageController {
      * @throws NotFound404Exception
      */
     private BSFileInformation getFileInfos(String fileKey) throws NotFound404Exception {
+        BSFileInformation fileInfos = fileInfosCache.findByFileKey(fileKey);
+        if (fileInfos == null) {
+            log.warn(String.format("Le fichier demandé n'existe pas (%s)", fileKey));
+            throw new NotFound404Exception();
+        }
+        storageMetrics.setFolderType(fileInfos);
+        return fileInfos;
+    }
+
+    /**
+     * Récupération des informations relatives au fichier demandé, lues en base (et non dans le cache) avant modification.
+     *
+     * @param fileKey identifiant du fichier
+     * @return file informations
+     * @throws NotFound404Exception
+     */
+    private BSFileInformation getFileInfosForUpdate(String fileKey) throws NotFound404Exception {
         List<BSFileInformation> infos = bsfiRepository.findByFileKey(fileKey);
         if (infos.size() < 1) {
             log.warn(String.format("Le fichier demandé n'existe pas (%s)", fileKey));
             throw new NotFound404Exception();
         }
+        storageMetrics.setFolderType(infos.get(0));
         return infos.get(0);
     }
 
     private BSFileInformation getFileInfosForDownload(String fileKey)
-            throws NotFound404Exception, Forbidden403Exception, VirusFound409Exception {
+            throws NotFound404Exception, Forbidden403Exception, VirusFound409Exception, Conflict409Exception {
 
         // Récupération des informations relatives au fichier demandé
         BSFileInformation fileInfos = getFileInfos(fileKey);
+        checkDownloadable(fileInfos);
+        return fileInfos;
+    }
 
+    private void checkDownloadable(BSFileInformation fileInfos)
+            throws Forbidden403Exception, VirusFound409Exception, Conflict409Exception {
+
+        String fileKey = fileInfos.getFileKey();
         // Tests status (disponibilité)
         if (fileInfos.getStatus() == BSFile.Status.SOFT_DELETED.value()) {
             log.warn(String.format("Le fichier demandé a été supprimé (%s)", fileKey));
@@ -74,7 +164,14 @@ public class FileStorageController {
             log.warn(String.format("Le fichier %s est infecté par %s", fileKey, statusLinkedData));
             throw new VirusFound409Exception(statusLinkedData);
         }
-        return fileInfos;
+        if (fileInfos.getStatus() == BSFile.Status.PENDING_SCAN.value()) {
+            log.warn(String.format("Le fichier %s est en attente d'analyse antivirus", fileKey));
+            throw new Conflict409Exception("Le fichier est en attente d'analyse antivirus.");
+        }
+        if (fileInfos.getStatus() == BSFile.Status.CORRUPTED.value()) {
+            log.warn(String.format("Le contenu du fichier %s n'est pas cohérent", fileKey));
+            throw new Conflict409Exception("Le contenu du fichier n'est pas cohérent (modification non controlée).");
+        }
     }
 
     ///
@@ -133,6 +230,68 @@ public class FileStorageController {
                 .body(infos);
     }
 
+    @ApiOperation(value = "Listing paginé des fichiers d'un dossier.",
+            notes = "Mêmes critères que le listing complet, triés par nom puis par identifiant. " +
+                    "La page suivante s'obtient en transmettant le nextPageToken de la page courante (absent sur la dernière page).")
+    @GetMapping(value = API_VERSION + "/folders/{folderName}/fileInfos/page", produces = "application/json")
+    public ResponseEntity<BSFileInformationPage> listFilesFromFolderPage(
+            @ApiParam(value = "${FileStorageController.folderName}", required = true, example = "DOCS") @PathVariable String folderName,
+            @ApiParam(value = "${FileStorageController.targetYear}", example = "2018") @RequestParam Integer targetYear,
+            @ApiParam(value = "${FileStorageController.ownerKey}", example = "CDG-34") @RequestParam String ownerKey,
+            @ApiParam(value = "Nombre maximal de fichiers par page", example = "100") @RequestParam(required = false) Integer pageSize,
+            @ApiParam(value = "Jeton de la page suivante (nextPageToken de la page précédente)") @RequestParam(required = false) String pageToken)
+            throws BadRequest400Exception, NotFound404Exception {
+
+        int limit = pageSize != null ? pageSize : listingDefaultPageSize;
+        if (limit < 1 || limit > listingMaxPageSize) {
+            throw new BadRequest400Exception(String.format("La taille de page doit être comprise entre 1 et %d.", listingMaxPageSize));
+        }
+
+        // Position de départ : après le dernier fichier de la page précédente
+        String afterName = "";
+        Long afterId = 0L;
+        if (pageToken != null) {
+            String cursor = decodePageToken(pageToken);
+            int separator = cursor.indexOf(':');
+            try {
+                afterId = Long.valueOf(cursor.substring(0, separator));
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                throw new BadRequest400Exception("Jeton de page invalide.");
+            }
+            afterName = cursor.substring(separator + 1);
+        }
+
+        // Un fichier de plus que la taille de page permet de savoir s'il existe une page suivante
+        List<BSFileInformation> infos = bsfiRepository.listFilesFromFolderAfter(folderName, targetYear, ownerKey,
+                afterName, afterId, limit + 1);
+        if (infos.size() < 1 && pageToken == null) {
+            log.warn(String.format("Ce dossier ne contient aucun fichier (%s)", folderName));
+            throw new NotFound404Exception();
+        }
+
+        String nextPageToken = null;
+        if (infos.size() > limit) {
+            infos = infos.subList(0, limit);
+            BSFileInformation last = infos.get(limit - 1);
+            nextPageToken = encodePageToken(last.getId() + ":" + last.getOriginalFileName());
+        }
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.maxAge(60, TimeUnit.SECONDS))
+                .body(new BSFileInformationPage(infos, nextPageToken));
+    }
+
+    private static String encodePageToken(String cursor) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodePageToken(String pageToken) throws BadRequest400Exception {
+        try {
+            return new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequest400Exception("Jeton de page invalide.");
+        }
+    }
+
     ///
     /// Opérations dédiées au dépot de fichiers
     ///
@@ -141,131 +300,579 @@ public class FileStorageController {
             notes = "${FileStorageController.addFileIntoFolder.notes}")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "File successfully added to folder"),
+            @ApiResponse(code = 202, message = "File accepted, antivirus scan pending (asyncScan=true)"),
             @ApiResponse(code = 409, message = "Either the file with the same name already exists or there is a virus inside (in this case, an additional header in the reply is added: x-virus-infected)"),
     })
     @PostMapping(API_VERSION + "/folders/{folderName}/files")
     public ResponseEntity<BSFileInformation> addFileIntoFolder(
             @ApiParam(value = "${FileStorageController.folderName}", required = true, example = "DOCS") @PathVariable String folderName,
-            @ApiParam(value = "${FileStorageController.addFileIntoFolder.bsFile}", required = true) @RequestBody BSFile bsFile)
-            throws Conflict409Exception, ServerError500Exception, VirusFound409Exception {
+            @ApiParam(value = "${FileStorageController.addFileIntoFolder.bsFile}", required = true) @RequestBody BSFileUpload bsFile,
+            @ApiParam(value = "Analyse antivirus différée (réponse 202, statut PENDING_SCAN)", example = "false") @RequestParam(defaultValue = "false") Boolean asyncScan)
+            throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
 
-        try {
-            // Decoding du contenu du fichiers pour écriture disque (NAS)
-            byte[] fileContent = toolServices.decodeFileContentFromBase64(bsFile.getFileContent());
+        return storeJsonFile(FolderKind.NORMAL, folderName, bsFile, asyncScan);
+    }
 
-            // Calcul du hash du contenu (pour vérification)
-            String fileHash = toolServices.computeBytesSha256ToBase64(fileContent);
+    @ApiOperation(value = "${FileStorageController.addFileIntoSpecialFolder}",
+            notes = "${FileStorageController.addFileIntoSpecialFolder.notes}")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "File successfully added to a \"special\" folder"),
+            @ApiResponse(code = 202, message = "File accepted, antivirus scan pending (asyncScan=true)"),
+            @ApiResponse(code = 409, message = "Either the file with the same name already exists or there is a virus inside (in this case, an additional header in the reply is added: x-virus-infected)"),
+    })
+    @PostMapping(API_VERSION + "/special-folders/{specialFolderName}/files")
+    public ResponseEntity<BSFileInformation> addFileIntoSpecialFolder(
+            @ApiParam(value = "${FileStorageController.folderName}", required = true, example = "TALENT") @PathVariable String specialFolderName,
+            @ApiParam(value = "${FileStorageController.addFileIntoSpecialFolder.bsFile}", required = true) @RequestBody BSFileUpload bsFile,
+            @ApiParam(value = "Analyse antivirus différée (réponse 202, statut PENDING_SCAN)", example = "false") @RequestParam(defaultValue = "false") Boolean asyncScan)
+            throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
 
-            // Mémorisation des informations concernant le fichier
-            BSFileInformation info = BSFileInformation.createNew(bsFile, folderName, fileContent.length, fileHash);
+        return storeJsonFile(FolderKind.SPECIAL, specialFolderName, bsFile, asyncScan);
+    }
 
-            // Ecrire fichier sur le NAS
-            toolServices.dataFileWrite(info, fileContent);
-            // Ecrire fichier "header" sur le NAS
-            toolServices.headerFileWrite(info);
+    @ApiOperation(value = "${FileStorageController.addFileIntoPublicFolder}",
+            notes = "${FileStorageController.addFileIntoPublicFolder.notes}")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "File successfully added to public folder"),
+            @ApiResponse(code = 202, message = "File accepted, antivirus scan pending (asyncScan=true)"),
+            @ApiResponse(code = 409, message = "Either the file with the same name already exists or there is a virus inside (in this case, an additional header in the reply is added: x-virus-infected)"),
+    })
+    @PostMapping(API_VERSION + "/public-folders/{publicFolderName}/files")
+    public ResponseEntity<BSFileInformation> addFileIntoPublicFolder(
+            @ApiParam(value = "${FileStorageController.publicFolderName}", required = true, example = "DOCS") @PathVariable String publicFolderName,
+            @ApiParam(value = "${FileStorageController.addFileIntoPublicFolder.bsFile}", required = true) @RequestBody BSFileUpload bsFile,
+            @ApiParam(value = "Analyse antivirus différée (réponse 202, statut PENDING_SCAN)", example = "false") @RequestParam(defaultValue = "false") Boolean asyncScan)
+            throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
 
-            info.setStatus(BSFile.Status.AVAILABLE.value());
+        return storeJsonFile(FolderKind.PUBLIC, publicFolderName, bsFile, asyncScan);
+    }
 
-            info = bsfiRepository.save(info);
-            if (info == null)
-                return null;    // FIXME throw Ex
+    ///
+    /// Variantes "streaming" des opérations de dépot : le contenu est reçu en multipart/form-data ou
+    /// en application/octet-stream et recopié par blocs dans un fichier temporaire du NAS (jamais en mémoire).
+    ///
 
-            return ResponseEntity.ok()
-                    .cacheControl(CacheControl.noCache())
-                    .body(info);
-        } catch (NoSuchAlgorithmException e) {
-            throw new ServerError500Exception("SHA256 non supporté.", e);
-        }
+    @ApiOperation(value = "Dépot d'un fichier (multipart) dans un dossier.",
+            notes = "Partie 'bsFile' : informations JSON du fichier (sans fileContent), partie 'file' : contenu brut.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "File successfully added to folder"),
+            @ApiResponse(code = 202, message = "File accepted, antivirus scan pending (asyncScan=true)"),
+            @ApiResponse(code = 409, message = "Either the file with the same name already exists or there is a virus inside (in this case, an additional header in the reply is added: x-virus-infected)"),
+    })
+    @PostMapping(value = API_VERSION + "/folders/{folderName}/files", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<BSFileInformation> addMultipartFileIntoFolder(
+            @ApiParam(value = "${FileStorageController.folderName}", required = true, example = "DOCS") @PathVariable String folderName,
+            @ApiParam(value = "${FileStorageController.addFileIntoFolder.bsFile}", required = true) @RequestPart("bsFile") BSFile bsFile,
+            @ApiParam(value = "Contenu du fichier", required = true) @RequestPart("file") MultipartFile file,
+            @ApiParam(value = "Analyse antivirus différée (réponse 202, statut PENDING_SCAN)", example = "false") @RequestParam(defaultValue = "false") Boolean asyncScan)
+            throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
+
+        return storeMultipartFile(FolderKind.NORMAL, folderName, bsFile, file, asyncScan);
     }
 
-    @ApiOperation(value = "${FileStorageController.addFileIntoSpecialFolder}",
-            notes = "${FileStorageController.addFileIntoSpecialFolder.notes}")
+    @ApiOperation(value = "Dépot d'un fichier (octet-stream) dans un dossier.",
+            notes = "Le corps de la requête est le contenu brut du fichier, les informations sont passées en paramètres.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "File successfully added to folder"),
+            @ApiResponse(code = 202, message = "File accepted, antivirus scan pending (asyncScan=true)"),
+            @ApiResponse(code = 409, message = "Either the file with the same name already exists or there is a virus inside (in this case, an additional header in the reply is added: x-virus-infected)"),
+    })
+    @PostMapping(value = API_VERSION + "/folders/{folderName}/files", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<BSFileInformation> addOctetStreamFileIntoFolder(
+            @ApiParam(value = "${FileStorageController.folderName}", required = true, example = "DOCS") @PathVariable String folderName,
+            @ApiParam(value = "Nom d'origine du fichier", required = true) @RequestParam String originalFileName,
+            @ApiParam(value = "Type MIME du contenu", required = true) @RequestParam String fileContentType,
+            @ApiParam(value = "${FileStorageController.ownerKey}", required = true, example = "CDG-34") @RequestParam String ownerKey,
+            @ApiParam(value = "${FileStorageController.targetYear}", required = true, example = "2018") @RequestParam Integer targetYear,
+            @ApiParam(value = "Référence externe") @RequestParam(required = false) String externalRef,
+            @ApiParam(value = "Téléchargement en pièce jointe", example = "true") @RequestParam(defaultValue = "true") Boolean isAttachment,
+            InputStream content,
+            @ApiParam(value = "Analyse antivirus différée (réponse 202, statut PENDING_SCAN)", example = "false") @RequestParam(defaultValue = "false") Boolean asyncScan)
+            throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
+
+        BSFile bsFile = new BSFile(originalFileName, fileContentType, ownerKey, targetYear, isAttachment);
+        bsFile.setExternalRef(externalRef);
+        return storeOctetStreamFile(FolderKind.NORMAL, folderName, bsFile, content, asyncScan);
+    }
+
+    @ApiOperation(value = "Dépot d'un fichier (multipart) dans un dossier spécial.",
+            notes = "Partie 'bsFile' : informations JSON du fichier (sans fileContent), partie 'file' : contenu brut.")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "File successfully added to a \"special\" folder"),
+            @ApiResponse(code = 202, message = "File accepted, antivirus scan pending (asyncScan=true)"),
             @ApiResponse(code = 409, message = "Either the file with the same name already exists or there is a virus inside (in this case, an additional header in the reply is added: x-virus-infected)"),
     })
-    @PostMapping(API_VERSION + "/special-folders/{specialFolderName}/files")
-    public ResponseEntity<BSFileInformation> addFileIntoSpecialFolder(
+    @PostMapping(value = API_VERSION + "/special-folders/{specialFolderName}/files", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<BSFileInformation> addMultipartFileIntoSpecialFolder(
             @ApiParam(value = "${FileStorageController.folderName}", required = true, example = "TALENT") @PathVariable String specialFolderName,
-            @ApiParam(value = "${FileStorageController.addFileIntoSpecialFolder.bsFile}", required = true) @RequestBody BSFile bsFile)
+            @ApiParam(value = "${FileStorageController.addFileIntoSpecialFolder.bsFile}", required = true) @RequestPart("bsFile") BSFile bsFile,
+            @ApiParam(value = "Contenu du fichier", required = true) @RequestPart("file") MultipartFile file,
+            @ApiParam(value = "Analyse antivirus différée (réponse 202, statut PENDING_SCAN)", example = "false") @RequestParam(defaultValue = "false") Boolean asyncScan)
             throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
 
-        if (bsFile.getExternalRef() == null) {
-            throw new BadRequest400Exception("Une référence externe est obligatoire pour le dépot de fichier dans les dossiers spéciaux.");
+        return storeMultipartFile(FolderKind.SPECIAL, specialFolderName, bsFile, file, asyncScan);
+    }
+
+    @ApiOperation(value = "Dépot d'un fichier (octet-stream) dans un dossier spécial.",
+            notes = "Le corps de la requête est le contenu brut du fichier, les informations sont passées en paramètres.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "File successfully added to a \"special\" folder"),
+            @ApiResponse(code = 202, message = "File accepted, antivirus scan pending (asyncScan=true)"),
+            @ApiResponse(code = 409, message = "Either the file with the same name already exists or there is a virus inside (in this case, an additional header in the reply is added: x-virus-infected)"),
+    })
+    @PostMapping(value = API_VERSION + "/special-folders/{specialFolderName}/files", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<BSFileInformation> addOctetStreamFileIntoSpecialFolder(
+            @ApiParam(value = "${FileStorageController.folderName}", required = true, example = "TALENT") @PathVariable String specialFolderName,
+            @ApiParam(value = "Nom d'origine du fichier", required = true) @RequestParam String originalFileName,
+            @ApiParam(value = "Type MIME du contenu", required = true) @RequestParam String fileContentType,
+            @ApiParam(value = "${FileStorageController.ownerKey}", required = true, example = "CDG-34") @RequestParam String ownerKey,
+            @ApiParam(value = "${FileStorageController.targetYear}", required = true, example = "2018") @RequestParam Integer targetYear,
+            @ApiParam(value = "Référence externe", required = true) @RequestParam String externalRef,
+            @ApiParam(value = "Téléchargement en pièce jointe", example = "true") @RequestParam(defaultValue = "true") Boolean isAttachment,
+            InputStream content,
+            @ApiParam(value = "Analyse antivirus différée (réponse 202, statut PENDING_SCAN)", example = "false") @RequestParam(defaultValue = "false") Boolean asyncScan)
+            throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
+
+        BSFile bsFile = new BSFile(originalFileName, fileContentType, ownerKey, targetYear, isAttachment);
+        bsFile.setExternalRef(externalRef);
+        return storeOctetStreamFile(FolderKind.SPECIAL, specialFolderName, bsFile, content, asyncScan);
+    }
+
+    @ApiOperation(value = "Dépot d'un fichier (multipart) dans un dossier public.",
+            notes = "Partie 'bsFile' : informations JSON du fichier (sans fileContent), partie 'file' : contenu brut.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "File successfully added to public folder"),
+            @ApiResponse(code = 202, message = "File accepted, antivirus scan pending (asyncScan=true)"),
+            @ApiResponse(code = 409, message = "Either the file with the same name already exists or there is a virus inside (in this case, an additional header in the reply is added: x-virus-infected)"),
+    })
+    @PostMapping(value = API_VERSION + "/public-folders/{publicFolderName}/files", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<BSFileInformation> addMultipartFileIntoPublicFolder(
+            @ApiParam(value = "${FileStorageController.publicFolderName}", required = true, example = "DOCS") @PathVariable String publicFolderName,
+            @ApiParam(value = "${FileStorageController.addFileIntoPublicFolder.bsFile}", required = true) @RequestPart("bsFile") BSFile bsFile,
+            @ApiParam(value = "Contenu du fichier", required = true) @RequestPart("file") MultipartFile file,
+            @ApiParam(value = "Analyse antivirus différée (réponse 202, statut PENDING_SCAN)", example = "false") @RequestParam(defaultValue = "false") Boolean asyncScan)
+            throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
+
+        return storeMultipartFile(FolderKind.PUBLIC, publicFolderName, bsFile, file, asyncScan);
+    }
+
+    @ApiOperation(value = "Dépot d'un fichier (octet-stream) dans un dossier public.",
+            notes = "Le corps de la requête est le contenu brut du fichier, les informations sont passées en paramètres.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "File successfully added to public folder"),
+            @ApiResponse(code = 202, message = "File accepted, antivirus scan pending (asyncScan=true)"),
+            @ApiResponse(code = 409, message = "Either the file with the same name already exists or there is a virus inside (in this case, an additional header in the reply is added: x-virus-infected)"),
+    })
+    @PostMapping(value = API_VERSION + "/public-folders/{publicFolderName}/files", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<BSFileInformation> addOctetStreamFileIntoPublicFolder(
+            @ApiParam(value = "${FileStorageController.publicFolderName}", required = true, example = "DOCS") @PathVariable String publicFolderName,
+            @ApiParam(value = "Nom d'origine du fichier", required = true) @RequestParam String originalFileName,
+            @ApiParam(value = "Type MIME du contenu", required = true) @RequestParam String fileContentType,
+            @ApiParam(value = "${FileStorageController.ownerKey}", required = true, example = "CDG-34") @RequestParam String ownerKey,
+            @ApiParam(value = "${FileStorageController.targetYear}", required = true, example = "2018") @RequestParam Integer targetYear,
+            @ApiParam(value = "Référence externe") @RequestParam(required = false) String externalRef,
+            @ApiParam(value = "Téléchargement en pièce jointe", example = "true") @RequestParam(defaultValue = "true") Boolean isAttachment,
+            InputStream content,
+            @ApiParam(value = "Analyse antivirus différée (réponse 202, statut PENDING_SCAN)", example = "false") @RequestParam(defaultValue = "false") Boolean asyncScan)
+            throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
+
+        BSFile bsFile = new BSFile(originalFileName, fileContentType, ownerKey, targetYear, isAttachment);
+        bsFile.setExternalRef(externalRef);
+        return storeOctetStreamFile(FolderKind.PUBLIC, publicFolderName, bsFile, content, asyncScan);
+    }
+
+    private ResponseEntity<BSFileInformation> storeJsonFile(FolderKind folderKind, String folderName, BSFileUpload bsFile, boolean asyncScan)
+            throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
+
+        // Le contenu base64 a déjà été décodé (et si possible scanné) dans un fichier temporaire durant la lecture de la requête
+        BSFileContent fileContent = bsFile.getFileContent();
+        if (fileContent == null) {
+            throw new BadRequest400Exception("Le contenu du fichier est obligatoire pour cette opération.");
+        }
+        try {
+            return uploadResponse(storeUploadedFile(folderKind, folderName, bsFile, fileContent, asyncScan));
+        } finally {
+            toolServices.deleteTempFile(fileContent.getPath());
         }
+    }
 
+    private ResponseEntity<BSFileInformation> storeMultipartFile(FolderKind folderKind, String folderName, BSFile bsFile, MultipartFile file, boolean asyncScan)
+            throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
+
+        // Partie stockée par le conteneur dans nas.upload.tempdir (spring.http.multipart.location) : elle est renommée
+        // en fichier temporaire de réception puis relue une seule fois, sans nouvelle écriture
+        Path receivedFile = toolServices.createUploadTempFile();
+        try {
+            file.transferTo(receivedFile.toFile());
+        } catch (IOException e) {
+            toolServices.deleteTempFile(receivedFile);
+            log.error("Une erreur est survenue durant la réception du fichier", e);
+            throw new ServerError500Exception("Une erreur est survenue durant la réception du fichier", e);
+        }
+        BSFileContent fileContent = toolServices.ingest(receivedFile, !asyncScan);
         try {
-            // Decoding du contenu du fichiers pour écriture disque (NAS)
-            byte[] fileContent = toolServices.decodeFileContentFromBase64(bsFile.getFileContent());
+            return uploadResponse(storeUploadedFile(folderKind, folderName, bsFile, fileContent, asyncScan));
+        } finally {
+            toolServices.deleteTempFile(fileContent.getPath());
+        }
+    }
 
-            // Calcul du hash du contenu (pour vérification)
-            String fileHash = toolServices.computeBytesSha256ToBase64(fileContent);
+    private ResponseEntity<BSFileInformation> storeOctetStreamFile(FolderKind folderKind, String folderName, BSFile bsFile, InputStream content, boolean asyncScan)
+            throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
 
-            // Mémorisation des informations concernant le fichier
-            BSFileInformation info = BSFileInformation.createNewSpecial(bsFile, specialFolderName, fileContent.length, fileHash);
+        BSFileContent fileContent = toolServices.ingest(content, !asyncScan);
+        try {
+            return uploadResponse(storeUploadedFile(folderKind, folderName, bsFile, fileContent, asyncScan));
+        } finally {
+            toolServices.deleteTempFile(fileContent.getPath());
+        }
+    }
+
+    /**
+     * Réponse à un dépot : 202 si l'analyse antivirus est encore en attente, 200 sinon.
+     */
+    private ResponseEntity<BSFileInformation> uploadResponse(BSFileInformation info) {
+        HttpStatus status = info.getStatus() == BSFile.Status.PENDING_SCAN.value() ? HttpStatus.ACCEPTED : HttpStatus.OK;
+        return ResponseEntity.status(status)
+                .cacheControl(CacheControl.noCache())
+                .body(info);
+    }
+
+    /**
+     * Enregistrement d'un fichier dont le contenu a été reçu dans un fichier temporaire du NAS.
+     * Le hash (et si possible le verdict antivirus) a été calculé pendant la réception : le contenu n'est jamais
+     * chargé en mémoire ni relu avant d'être déplacé vers son emplacement définitif.
+     *
+     * @param folderKind  type de dossier de dépot
+     * @param folderName  nom du dossier logique
+     * @param bsFile      informations relatives au fichier (fileContent ignoré)
+     * @param fileContent contenu reçu dans un fichier temporaire
+     * @param asyncScan   si true, le fichier est placé en quarantaine et scanné en arrière-plan (statut PENDING_SCAN)
+     * @return informations du fichier enregistré
+     */
+    private BSFileInformation storeUploadedFile(FolderKind folderKind, String folderName, BSFile bsFile, BSFileContent fileContent, boolean asyncScan)
+            throws BadRequest400Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
+
+        // Mémorisation des informations concernant le fichier
+        BSFileInformation info = createFileInformation(folderKind, folderName, bsFile, fileContent);
+
+        // Enregistrement de l'intention de dépot, repris au démarrage en cas d'interruption
+        WriteIntentLog.Intent intent = writeIntentLog.begin(info, asyncScan);
+        boolean committed = false;
+        try {
+            if (asyncScan) {
+                // Ecrire fichier en quarantaine, le scan et la mise à disposition sont effectués en arrière-plan
+                Path quarantineFilePathObj = toolServices.quarantineFileWrite(info, fileContent.getPath());
+                Path headerFilePathObj = toolServices.headerFileWrite(info);
+                writeIntentLog.sync(quarantineFilePathObj, headerFilePathObj);
+                info.setStatus(BSFile.Status.PENDING_SCAN.value());
+                info = saveFileInfos(info);
+                committed = true;
+                asyncScanService.submit(info);
+                return info;
+            }
 
             // Ecrire fichier sur le NAS
             Path dataFilePathObj = toolServices.dataFileWrite(info, fileContent);
             // Ecrire fichier "header" sur le NAS
-            toolServices.headerFileWrite(info);
+            Path headerFilePathObj = toolServices.headerFileWrite(info);
+            writeIntentLog.sync(dataFilePathObj, headerFilePathObj);
+
+            if (folderKind == FolderKind.SPECIAL) {
+                storageMetrics.start(StorageMetrics.Stage.DATABASE);
+                try {
+                    info = bsfiRepository.save(info);
+                } finally {
+                    storageMetrics.stop(StorageMetrics.Stage.DATABASE);
+                }
+
+                // Ecriture du fichier semaphore permettant le traitement special
+                writeIntentLog.sync(toolServices.semaphoreSpecialFileWrite(info, dataFilePathObj));
+
+                info.setStatus(BSFile.Status.SPECIAL_READY_TO_BE_TREATED.value());
+            } else {
+                info.setStatus(BSFile.Status.AVAILABLE.value());
+            }
+            info = saveFileInfos(info);
+            committed = true;
+            return info;
+        } finally {
+            if (!committed) {
+                // Sans informations enregistrées, la référence prise sur un contenu partagé serait perdue
+                toolServices.releaseUnsavedContent(info);
+            }
+            writeIntentLog.complete(intent, committed);
+        }
+    }
 
-            info = bsfiRepository.save(info);
-            if (info == null)
-                return null;    // FIXME throw Ex
+    /**
+     * Enregistrement des informations d'un fichier déposé (base et cache).
+     */
+    private BSFileInformation saveFileInfos(BSFileInformation info) {
+        storageMetrics.start(StorageMetrics.Stage.DATABASE);
+        try {
+            return fileInfosCache.save(info);
+        } finally {
+            storageMetrics.stop(StorageMetrics.Stage.DATABASE);
+        }
+    }
 
-            // Ecriture du fichier semaphore permettant le traitement special
-            toolServices.semaphoreSpecialFileWrite(info, dataFilePathObj);
+    /**
+     * Création des informations d'un fichier déposé, selon les règles propres au type de dossier.
+     */
+    private BSFileInformation createFileInformation(FolderKind folderKind, String folderName, BSFile bsFile, BSFileContent fileContent)
+            throws BadRequest400Exception, ServerError500Exception {
 
-            info.setStatus(BSFile.Status.SPECIAL_READY_TO_BE_TREATED.value());
-            bsfiRepository.save(info);
+        if (folderKind == FolderKind.SPECIAL && bsFile.getExternalRef() == null) {
+            throw new BadRequest400Exception("Une référence externe est obligatoire pour le dépot de fichier dans les dossiers spéciaux.");
+        }
 
-            return ResponseEntity.ok()
-                    .cacheControl(CacheControl.noCache())
-                    .body(info);
+        // La taille est enregistrée en base sur un int : pas de conversion silencieuse d'un contenu trop volumineux
+        if (fileContent.getSize() > toolServices.getUploadMaxFileSize()) {
+            throw new BadRequest400Exception(String.format("La taille d'un fichier déposé est limitée à %d octets.", toolServices.getUploadMaxFileSize()));
+        }
 
+        try {
+            String fileHash = fileContent.getContentHash();
+            int fileContentSize = Math.toIntExact(fileContent.getSize());
+            switch (folderKind) {
+                case SPECIAL:
+                    return BSFileInformation.createNewSpecial(bsFile, folderName, fileContentSize, fileHash);
+                case PUBLIC:
+                    return BSFileInformation.createNewPublic(bsFile, folderName, fileContentSize, fileHash);
+                default:
+                    return BSFileInformation.createNew(bsFile, folderName, fileContentSize, fileHash);
+            }
         } catch (NoSuchAlgorithmException e) {
             throw new ServerError500Exception("SHA256 non supporté.", e);
         }
     }
 
-    @ApiOperation(value = "${FileStorageController.addFileIntoPublicFolder}",
-            notes = "${FileStorageController.addFileIntoPublicFolder.notes}")
-    @ApiResponses(value = {
-            @ApiResponse(code = 200, message = "File successfully added to public folder"),
-            @ApiResponse(code = 409, message = "Either the file with the same name already exists or there is a virus inside (in this case, an additional header in the reply is added: x-virus-infected)"),
-    })
-    @PostMapping(API_VERSION + "/public-folders/{publicFolderName}/files")
-    public ResponseEntity<BSFileInformation> addFileIntoPublicFolder(
+    ///
+    /// Dépots groupés : les fichiers sont scannés et écrits en parallèle, puis enregistrés en une seule transaction.
+    ///
+
+    @ApiOperation(value = "Dépot groupé de fichiers dans un dossier.",
+            notes = "Le résultat de chaque fichier (statut HTTP équivalent à un dépot unitaire) est retourné dans l'ordre de la requête.")
+    @PostMapping(value = API_VERSION + "/folders/{folderName}/files/bulk", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<BSFileBulkResult>> addFilesIntoFolder(
+            @ApiParam(value = "${FileStorageController.folderName}", required = true, example = "DOCS") @PathVariable String folderName,
+            @ApiParam(value = "Fichiers à déposer", required = true) @RequestBody List<BSFileUpload> bsFiles)
+            throws BadRequest400Exception, ServerError500Exception {
+
+        return storeBulkFiles(FolderKind.NORMAL, folderName, bsFiles);
+    }
+
+    @ApiOperation(value = "Dépot groupé de fichiers dans un dossier spécial.",
+            notes = "Le résultat de chaque fichier (statut HTTP équivalent à un dépot unitaire) est retourné dans l'ordre de la requête.")
+    @PostMapping(value = API_VERSION + "/special-folders/{specialFolderName}/files/bulk", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<BSFileBulkResult>> addFilesIntoSpecialFolder(
+            @ApiParam(value = "${FileStorageController.folderName}", required = true, example = "TALENT") @PathVariable String specialFolderName,
+            @ApiParam(value = "Fichiers à déposer", required = true) @RequestBody List<BSFileUpload> bsFiles)
+            throws BadRequest400Exception, ServerError500Exception {
+
+        return storeBulkFiles(FolderKind.SPECIAL, specialFolderName, bsFiles);
+    }
+
+    @ApiOperation(value = "Dépot groupé de fichiers dans un dossier public.",
+            notes = "Le résultat de chaque fichier (statut HTTP équivalent à un dépot unitaire) est retourné dans l'ordre de la requête.")
+    @PostMapping(value = API_VERSION + "/public-folders/{publicFolderName}/files/bulk", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<BSFileBulkResult>> addFilesIntoPublicFolder(
             @ApiParam(value = "${FileStorageController.publicFolderName}", required = true, example = "DOCS") @PathVariable String publicFolderName,
-            @ApiParam(value = "${FileStorageController.addFileIntoPublicFolder.bsFile}", required = true) @RequestBody BSFile bsFile)
-            throws Conflict409Exception, ServerError500Exception, VirusFound409Exception {
+            @ApiParam(value = "Fichiers à déposer", required = true) @RequestBody List<BSFileUpload> bsFiles)
+            throws BadRequest400Exception, ServerError500Exception {
+
+        return storeBulkFiles(FolderKind.PUBLIC, publicFolderName, bsFiles);
+    }
+
+    private ResponseEntity<List<BSFileBulkResult>> storeBulkFiles(FolderKind folderKind, String folderName, List<BSFileUpload> bsFiles)
+            throws BadRequest400Exception, ServerError500Exception {
 
+        if (bsFiles == null || bsFiles.isEmpty()) {
+            throw new BadRequest400Exception("Aucun fichier à déposer.");
+        }
+        if (bsFiles.size() > bulkMaxFiles) {
+            throw new BadRequest400Exception(String.format("Le nombre de fichiers d'un dépot groupé est limité à %d.", bulkMaxFiles));
+        }
+
+        WriteIntentLog.Intent[] intents = null;
+        // Informations des fichiers, et true une fois ces informations enregistrées en base (seules les intentions
+        // des fichiers enregistrés sont validées, quelle que soit l'issue du dépot groupé)
+        BSFileInformation[] infos = new BSFileInformation[bsFiles.size()];
+        boolean[] persisted = new boolean[bsFiles.size()];
+        List<BSFileBulkResult> results = new ArrayList<>(bsFiles.size());
         try {
-            // Decoding du contenu du fichiers pour écriture disque (NAS)
-            byte[] fileContent = toolServices.decodeFileContentFromBase64(bsFile.getFileContent());
+            // Contrôle des fichiers et calcul de leurs informations, un même fichier ne pouvant être déposé deux fois
+            Set<String> fileKeys = new HashSet<>();
+            List<Callable<BSFileBulkResult>> tasks = new ArrayList<>(bsFiles.size());
+            final Path[] dataFilePaths = new Path[bsFiles.size()];
+            intents = new WriteIntentLog.Intent[bsFiles.size()];
+            final WriteIntentLog.Intent[] bulkIntents = intents;
+            for (int i = 0; i < bsFiles.size(); i++) {
+                BSFileUpload bsFile = bsFiles.get(i);
+                BSFileBulkResult result = new BSFileBulkResult(i, bsFile != null ? bsFile.getOriginalFileName() : null);
+                results.add(result);
+                try {
+                    if (bsFile == null || bsFile.getFileContent() == null) {
+                        throw new BadRequest400Exception("Le contenu du fichier est obligatoire pour cette opération.");
+                    }
+                    BSFileInformation info = createFileInformation(folderKind, folderName, bsFile, bsFile.getFileContent());
+                    if (!fileKeys.add(info.getFileKey())) {
+                        result.setFailure(HttpStatus.CONFLICT.value(), "Un fichier de même nom existe déjà dans ce dossier.");
+                        continue;
+                    }
+                    infos[i] = info;
+                    tasks.add(() -> writeBulkFile(folderKind, result, info, bsFile.getFileContent(), dataFilePaths, bulkIntents));
+                } catch (BadRequest400Exception e) {
+                    result.setFailure(HttpStatus.BAD_REQUEST.value(), e.getMessage());
+                }
+            }
 
-            // Calcul du hash du contenu (pour vérification)
-            String fileHash = toolServices.computeBytesSha256ToBase64(fileContent);
+            // Scan et écriture des fichiers en parallèle
+            bulkUploadService.invokeAll(tasks);
+
+            // Enregistrement groupé des informations
+            saveBulkFiles(results, true, persisted);
+
+            if (folderKind == FolderKind.SPECIAL) {
+                // Ecriture des fichiers semaphore une fois les informations enregistrées
+                List<BSFileBulkResult> specialResults = new ArrayList<>();
+                for (BSFileBulkResult result : results) {
+                    if (result.isSuccess()) {
+                        try {
+                            writeIntentLog.sync(toolServices.semaphoreSpecialFileWrite(result.getFileInfos(), dataFilePaths[result.getIndex()]));
+                            result.getFileInfos().setStatus(BSFile.Status.SPECIAL_READY_TO_BE_TREATED.value());
+                            specialResults.add(result);
+                        } catch (Conflict409Exception | ServerError500Exception e) {
+                            // Informations enregistrées : le contenu est conservé, le fichier reste non traitable (statut 0)
+                            log.error(String.format("Impossible d'écrire le fichier semaphore de %s", result.getFileInfos().getFileKey()), e);
+                            result.setFailure((e instanceof Conflict409Exception ? HttpStatus.CONFLICT : HttpStatus.INTERNAL_SERVER_ERROR).value(), e.getMessage());
+                        }
+                    }
+                }
+                saveBulkFiles(specialResults, false, persisted);
+            }
 
-            // Mémorisation des informations concernant le fichier "PUBLIC" (direct access from internet)
-            BSFileInformation info = BSFileInformation.createNewPublic(bsFile, publicFolderName, fileContent.length, fileHash);
+            return ResponseEntity.ok()
+                    .cacheControl(CacheControl.noCache())
+                    .body(results);
+        } finally {
+            if (intents != null) {
+                for (int i = 0; i < infos.length; i++) {
+                    if (!persisted[i] && infos[i] != null) {
+                        // Sans informations enregistrées, la référence prise sur un contenu partagé serait perdue
+                        toolServices.releaseUnsavedContent(infos[i]);
+                    }
+                    writeIntentLog.complete(intents[i], persisted[i]);
+                }
+            }
+            for (BSFileUpload bsFile : bsFiles) {
+                if (bsFile != null && bsFile.getFileContent() != null) {
+                    toolServices.deleteTempFile(bsFile.getFileContent().getPath());
+                }
+            }
+        }
+    }
 
+    /**
+     * Scan et écriture d'un fichier d'un dépot groupé (exécuté en parallèle), sans enregistrement en base.
+     * Les synchronisations des fichiers écrits en parallèle sont groupées.
+     */
+    private BSFileBulkResult writeBulkFile(FolderKind folderKind, BSFileBulkResult result, BSFileInformation info,
+                                           BSFileContent fileContent, Path[] dataFilePaths, WriteIntentLog.Intent[] intents) {
+        try {
+            intents[result.getIndex()] = writeIntentLog.begin(info, false);
             // Ecrire fichier sur le NAS
-            toolServices.dataFileWrite(info, fileContent);
+            dataFilePaths[result.getIndex()] = toolServices.dataFileWrite(info, fileContent);
             // Ecrire fichier "header" sur le NAS
-            toolServices.headerFileWrite(info);
+            Path headerFilePathObj = toolServices.headerFileWrite(info);
+            writeIntentLog.sync(dataFilePaths[result.getIndex()], headerFilePathObj);
 
-            info.setStatus(BSFile.Status.AVAILABLE.value());
+            if (folderKind != FolderKind.SPECIAL) {
+                info.setStatus(BSFile.Status.AVAILABLE.value());
+            }
+            result.setSuccess(info);
+        } catch (Conflict409Exception e) {
+            result.setFailure(HttpStatus.CONFLICT.value(), e.getMessage());
+        } catch (VirusFound409Exception e) {
+            log.warn(String.format("Le fichier %s est infecté par %s", result.getOriginalFileName(), e.getMessage()));
+            result.setVirusInfected(e.getMessage());
+        } catch (ServerError500Exception e) {
+            result.setFailure(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
+        }
+        return result;
+    }
 
-            info = bsfiRepository.save(info);
-            if (info == null)
-                return null;    // FIXME throw Ex
+    /**
+     * Enregistrement des informations des fichiers écrits, en une seule transaction.
+     * En cas d'échec (ex : fichier de même nom déposé en parallèle), les fichiers sont enregistrés un par un
+     * afin d'isoler les fichiers en erreur.
+     *
+     * @param newFiles  true pour la création des informations : les fichiers écrits sont annulés en cas d'échec
+     * @param persisted positionné à true (par position du fichier dans la requête) une fois les informations enregistrées
+     */
+    private void saveBulkFiles(List<BSFileBulkResult> results, boolean newFiles, boolean[] persisted) {
+        List<BSFileBulkResult> toSave = new ArrayList<>();
+        List<BSFileInformation> infos = new ArrayList<>();
+        for (BSFileBulkResult result : results) {
+            if (result.isSuccess()) {
+                toSave.add(result);
+                infos.add(result.getFileInfos());
+            }
+        }
+        if (infos.isEmpty()) {
+            return;
+        }
 
-            return ResponseEntity.ok()
-                    .cacheControl(CacheControl.noCache())
-                    .body(info);
-        } catch (NoSuchAlgorithmException e) {
-            throw new ServerError500Exception("SHA256 non supporté.", e);
+        storageMetrics.start(StorageMetrics.Stage.DATABASE);
+        try {
+            Iterable<BSFileInformation> savedInfos = bsfiRepository.save(infos);
+            for (BSFileBulkResult result : toSave) {
+                persisted[result.getIndex()] = true;
+            }
+            Iterator<BSFileBulkResult> resultIterator = toSave.iterator();
+            for (BSFileInformation saved : savedInfos) {
+                resultIterator.next().setSuccess(saved);
+                fileInfosCache.update(saved);
+            }
+        } catch (DataAccessException batchException) {
+            log.warn("Echec de l'enregistrement groupé, enregistrement fichier par fichier", batchException);
+            for (BSFileBulkResult result : toSave) {
+                try {
+                    result.setSuccess(fileInfosCache.save(result.getFileInfos()));
+                    persisted[result.getIndex()] = true;
+                } catch (DataAccessException e) {
+                    log.error(String.format("Impossible d'enregistrer les informations du fichier %s", result.getFileInfos().getFileKey()), e);
+                    boolean duplicate = e instanceof DataIntegrityViolationException;
+                    if (newFiles) {
+                        discardBulkFile(result.getFileInfos(), duplicate);
+                    }
+                    if (duplicate) {
+                        result.setFailure(HttpStatus.CONFLICT.value(), "Un fichier de même nom existe déjà dans ce dossier.");
+                    } else {
+                        result.setFailure(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Une erreur est survenue durant l'enregistrement du fichier.");
+                    }
+                }
+            }
+        } finally {
+            storageMetrics.stop(StorageMetrics.Stage.DATABASE);
+        }
+    }
+
+    /**
+     * Annulation du stockage d'un fichier d'un dépot groupé dont les informations n'ont pas pu être créées.
+     * La référence prise sur un contenu partagé est toujours libérée. En cas de doublon, les fichiers physiques
+     * ne sont pas supprimés : ils peuvent appartenir au dépot concurrent enregistré.
+     */
+    private void discardBulkFile(BSFileInformation info, boolean duplicate) {
+        if (duplicate) {
+            toolServices.releaseUnsavedContent(info);
+            return;
+        }
+        try {
+            toolServices.deleteFile(info);
+        } catch (ServerError500Exception e) {
+            log.warn(String.format("Impossible de supprimer les fichiers de %s", info.getFileKey()), e);
         }
     }
 
@@ -285,7 +892,14 @@ public class FileStorageController {
             // Calcul du hash du contenu (pour vérification)
             Path ltFilePath = Paths.get(nasTasksRootdir, folderName, bsFile.getOriginalFileName());
             File ltFile = ltFilePath.toFile();
-            String fileHash = toolServices.computeFileSha256ToBase64(ltFile);
+            String fileHash;
+            storageMetrics.start(StorageMetrics.Stage.HASH);
+            try {
+                fileHash = toolServices.computeFileSha256ToBase64(ltFile);
+            } finally {
+                storageMetrics.stop(StorageMetrics.Stage.HASH);
+            }
+            storageMetrics.recordBytes(StorageMetrics.Direction.UPLOAD, ltFile.length());
 
             // Mémorisation des informations concernant le fichier
             BSFileInformation info = BSFileInformation.createNewPublic(bsFile, "BSLTM-"+folderName, (int) ltFile.length(), fileHash);
@@ -293,13 +907,14 @@ public class FileStorageController {
             info.setIsContentNoVirusTrusted(true);
 
             // Déplacement du fichier sur le NAS
-            toolServices.moveBSLTMFile(info, ltFilePath);
+            Path dataFilePathObj = toolServices.moveBSLTMFile(info, ltFilePath);
             // Ecrire fichier "header" sur le NAS
-            toolServices.headerFileWrite(info);
+            Path headerFilePathObj = toolServices.headerFileWrite(info);
+            writeIntentLog.sync(dataFilePathObj, headerFilePathObj);
 
             info.setStatus(BSFile.Status.AVAILABLE.value());
 
-            info = bsfiRepository.save(info);
+            info = saveFileInfos(info);
             if (info == null)
                 return null;    // FIXME throw Ex
 
@@ -320,41 +935,32 @@ public class FileStorageController {
     @ApiOperation(value = "${FileStorageController.downloadContent}",
             notes = "${FileStorageController.downloadContent.notes}")
     @ApiResponses(value = {
+            @ApiResponse(code = 304, message = "Not modified (If-None-Match / If-Modified-Since)"),
             @ApiResponse(code = 409, message = "There is a virus inside (an additional header in the reply is added: x-virus-infected) or the checksum failed"),
     })
     @GetMapping(value = API_VERSION + "/fileInfos/{fileKey}/getContent")
-    public ResponseEntity<Resource> downloadContent(
-            @ApiParam(value = "${FileStorageController.fileKey}", required = true) @PathVariable String fileKey)
+    public void downloadContent(
+            @ApiParam(value = "${FileStorageController.fileKey}", required = true) @PathVariable String fileKey,
+            HttpServletRequest request, HttpServletResponse response)
             throws NotFound404Exception, Forbidden403Exception, ServerError500Exception, VirusFound409Exception, Conflict409Exception {
 
         // Récupération des informations relatives au fichier demandé
         BSFileInformation fileInfos = getFileInfosForDownload(fileKey);
 
-        // Ajout des http headers permettant la récupération sous forme de téléchargement
-        HttpHeaders headers = new HttpHeaders();
-        if (fileInfos.getIsAttachment()) {
-            headers.add("Content-Disposition", String.format("attachment; filename=%1$s;",
-                    toolServices.normalizeFilename(fileInfos.getOriginalFileName())));
-        }
-
-        Resource resource = toolServices.getFileContentAsInputStream(fileInfos);
-        return ResponseEntity.ok()
-                .headers(headers)
-                .cacheControl(CacheControl.noCache())
-                .contentLength(fileInfos.getFileContentSize())
-                .contentType(MediaType.parseMediaType(fileInfos.getFileContentType()))
-                .body(resource);
+        sendContent(fileInfos, CacheControl.noCache(), request, response);
     }
 
     @ApiOperation(value = "${FileStorageController.downloadPublicContent}",
             notes = "${FileStorageController.downloadPublicContent.notes}")
     @ApiResponses(value = {
+            @ApiResponse(code = 304, message = "Not modified (If-None-Match / If-Modified-Since)"),
             @ApiResponse(code = 403, message = "This is not a PUBLIC file"),
             @ApiResponse(code = 409, message = "There is a virus inside (an additional header in the reply is added: x-virus-infected) or the checksum failed"),
     })
     @GetMapping(value = API_VERSION + "/publicContent/{fileKey}")
-    public ResponseEntity<Resource> downloadPublicContent(
-            @ApiParam(value = "${FileStorageController.fileKey}", required = true) @PathVariable String fileKey)
+    public void downloadPublicContent(
+            @ApiParam(value = "${FileStorageController.fileKey}", required = true) @PathVariable String fileKey,
+            HttpServletRequest request, HttpServletResponse response)
             throws NotFound404Exception, Forbidden403Exception, ServerError500Exception, VirusFound409Exception, Conflict409Exception {
 
         // Récupération des informations relatives au fichier demandé
@@ -366,20 +972,147 @@ public class FileStorageController {
             throw new Forbidden403Exception("");    // Pas d'indice
         }
 
+        sendContent(fileInfos, CacheControl.maxAge(30, TimeUnit.DAYS), request, response);
+    }
+
+    @ApiOperation(value = "Téléchargement d'un dossier sous forme d'archive ZIP.",
+            notes = "Mêmes critères que le listing du dossier. Les fichiers indisponibles sont exclus et listés dans l'entrée " + ZipArchiveSender.ERRORS_ENTRY_NAME + ".")
+    @GetMapping(value = API_VERSION + "/folders/{folderName}/archive", produces = "application/zip")
+    public void downloadFolderArchive(
+            @ApiParam(value = "${FileStorageController.folderName}", required = true, example = "DOCS") @PathVariable String folderName,
+            @ApiParam(value = "${FileStorageController.targetYear}", example = "2018") @RequestParam Integer targetYear,
+            @ApiParam(value = "${FileStorageController.ownerKey}", example = "CDG-34") @RequestParam String ownerKey,
+            HttpServletResponse response)
+            throws NotFound404Exception, ServerError500Exception {
+
+        List<BSFileInformation> infos = bsfiRepository.listFilesFromFolder(folderName, targetYear, ownerKey);
+        if (infos.size() < 1) {
+            log.warn(String.format("Ce dossier ne contient aucun fichier (%s)", folderName));
+            throw new NotFound404Exception();
+        }
+        sendArchive(infos, folderName + ".zip", response);
+    }
+
+    @ApiOperation(value = "Téléchargement de plusieurs fichiers sous forme d'archive ZIP.",
+            notes = "Les fichiers indisponibles sont exclus et listés dans l'entrée " + ZipArchiveSender.ERRORS_ENTRY_NAME + ".")
+    @PostMapping(value = API_VERSION + "/fileInfos/getMultiple/archive", produces = "application/zip")
+    public void downloadMultipleArchive(
+            @ApiParam(value = "${FileStorageController.getMultipleBSFileInfo.fileKeys}", required = true) @RequestBody List<String> fileKeys,
+            HttpServletResponse response)
+            throws Forbidden403Exception, ServerError500Exception {
+
+        List<BSFileInformation> infos = bsfiRepository.findMultipleByFileKeys(fileKeys);
+        if (infos.size() != fileKeys.size()) {
+            log.error("downloadMultipleArchive() appellé avec au moins une fileKey inconnue. Phishing ?");
+            throw new Forbidden403Exception("Au moins un fichier n'est pas reconnu.");
+        }
+        sendArchive(infos, "fichiers.zip", response);
+    }
+
+    /**
+     * Transfert de l'archive ZIP des fichiers disponibles parmi ceux demandés, construite à la volée.
+     */
+    private void sendArchive(List<BSFileInformation> infos, String archiveName, HttpServletResponse response)
+            throws ServerError500Exception {
+
+        List<BSFileInformation> downloadableInfos = new ArrayList<>(infos.size());
+        List<String> errors = new ArrayList<>();
+        for (BSFileInformation fileInfos : infos) {
+            try {
+                checkDownloadable(fileInfos);
+                downloadableInfos.add(fileInfos);
+            } catch (Forbidden403Exception | VirusFound409Exception | Conflict409Exception e) {
+                errors.add(String.format("%s : %s", fileInfos.getOriginalFileName(), e.getMessage()));
+            }
+        }
+
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, String.format("attachment; filename=%1$s;",
+                toolServices.normalizeFilename(archiveName)));
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue());
+        response.setContentType("application/zip");
+        try {
+            zipArchiveSender.sendArchive(downloadableInfos, errors, response.getOutputStream());
+        } catch (IOException e) {
+            log.warn(String.format("Le transfert de l'archive a été interrompu (%s)", archiveName), e);
+            throw new ServerError500Exception("Le transfert de l'archive a été interrompu.", e);
+        }
+    }
+
+    private static String getContentETag(BSFileInformation fileInfos, boolean gzipEncoded) {
+        // La représentation compressée a son propre ETag (les plages d'octets portent sur le contenu compressé)
+        return "\"" + fileInfos.getFileContentHash() + (gzipEncoded ? "-gzip" : "") + "\"";
+    }
+
+    /**
+     * Vérification (intégrité, antivirus) puis transfert du contenu du fichier directement depuis le disque
+     * (sendfile / transferTo), sans chargement en mémoire.
+     * Les requêtes conditionnelles (If-None-Match sur l'ETag issu du hash du contenu, If-Modified-Since sur la date de dépot)
+     * sont traitées avant tout accès au disque : un client à jour reçoit une réponse 304 sans corps.
+     * Les requêtes partielles (Range, If-Range) sont prises en charge.
+     *
+     * @param fileInfos    informations relatives au fichier demandé
+     * @param cacheControl politique de cache à appliquer à la réponse
+     */
+    private void sendContent(BSFileInformation fileInfos, CacheControl cacheControl,
+                             HttpServletRequest request, HttpServletResponse response)
+            throws NotFound404Exception, ServerError500Exception, VirusFound409Exception, Conflict409Exception {
+
+        // Un contenu stocké compressé est transmis tel quel (Content-Encoding: gzip) si le client l'accepte
+        boolean storedGzipEncoded = Tools.GZIP_CONTENT_ENCODING.equals(fileInfos.getContentEncoding());
+        boolean sendGzipEncoded = storedGzipEncoded && FileContentSender.acceptsGzip(request);
+        // Le hash du contenu est un validateur fort (utilisé notamment pour If-Range)
+        String etag = getContentETag(fileInfos, sendGzipEncoded);
+        // Le contenu d'un fichier n'est jamais modifié après son dépot
+        long lastModified = fileInfos.getStorageDate().getTime();
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl.getHeaderValue());
+        if (storedGzipEncoded) {
+            response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+            // 304 : ETag et Last-Modified sont positionnés, aucun corps n'est envoyé
+            return;
+        }
+
+        // Pour les gros fichiers demandés en totalité, le hash peut être vérifié pendant le transfert
+        boolean isFullContentRequest = request.getHeader(HttpHeaders.RANGE) == null;
+        DownloadableDataFile dataFile = toolServices.getDataFileForDownload(fileInfos, isFullContentRequest);
+
         // Ajout des http headers permettant la récupération sous forme de téléchargement
-        HttpHeaders headers = new HttpHeaders();
         if (fileInfos.getIsAttachment()) {
-            headers.add("Content-Disposition", String.format("attachment; filename=%1$s;",
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, String.format("attachment; filename=%1$s;",
                     toolServices.normalizeFilename(fileInfos.getOriginalFileName())));
         }
+        response.setContentType(MediaType.parseMediaType(fileInfos.getFileContentType()).toString());
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
 
-        Resource resource = toolServices.getFileContentAsInputStream(fileInfos);
-        return ResponseEntity.ok()
-                .headers(headers)
-                .cacheControl(CacheControl.maxAge(30, TimeUnit.DAYS))
-                .contentLength(fileInfos.getFileContentSize())
-                .contentType(MediaType.parseMediaType(fileInfos.getFileContentType()))
-                .body(resource);
+        storageMetrics.start(StorageMetrics.Stage.TRANSFER);
+        try {
+            if (dataFile.isGzipEncoded()) {
+                if (sendGzipEncoded) {
+                    response.setHeader(HttpHeaders.CONTENT_ENCODING, Tools.GZIP_CONTENT_ENCODING);
+                    fileContentSender.sendFile(dataFile.getPath(), etag, request, response);
+                } else {
+                    fileContentSender.sendDecompressed(dataFile.getPath(), fileInfos.getFileContentSize(), response);
+                }
+                return;
+            }
+            if (!dataFile.isIntegrityCheckDeferred()) {
+                fileContentSender.sendFile(dataFile.getPath(), etag, request, response);
+                return;
+            }
+            boolean verified = fileContentSender.sendFileVerifying(dataFile.getPath(), fileInfos.getFileContentHash(), response);
+            toolServices.confirmStreamedIntegrity(fileInfos, dataFile, verified);
+            if (!verified) {
+                // La réponse est déjà engagée : l'exception provoque la fermeture de la connexion (réponse incomplète)
+                throw new Conflict409Exception("Le contenu du fichier n'est pas cohérent (modification non controlée).");
+            }
+        } catch (IOException e) {
+            log.warn(String.format("Le transfert du fichier a été interrompu (%s)", fileInfos.getFileKey()), e);
+            throw new ServerError500Exception("Le transfert du fichier a été interrompu.", e);
+        } finally {
+            storageMetrics.stop(StorageMetrics.Stage.TRANSFER);
+        }
     }
 
     ///
@@ -401,7 +1134,7 @@ public class FileStorageController {
         }
 
         // Récupération des informations relatives au fichier demandé
-        BSFileInformation fileInfos = getFileInfos(fileKey);
+        BSFileInformation fileInfos = getFileInfosForUpdate(fileKey);
 
         // Soft Suppression des informations
         fileInfos.setStatus(bsFile.getStatus());
@@ -409,7 +1142,7 @@ public class FileStorageController {
 
         return ResponseEntity.ok()
                 .cacheControl(CacheControl.noCache())
-                .body(bsfiRepository.save(fileInfos));
+                .body(fileInfosCache.save(fileInfos));
     }
 
     @ApiOperation(value = "${FileStorageController.updateSpecialFileStatus}",
@@ -428,7 +1161,7 @@ public class FileStorageController {
         }
 
         // Récupération des informations relatives au fichier demandé
-        BSFileInformation fileInfos = getFileInfos(fileKey);
+        BSFileInformation fileInfos = getFileInfosForUpdate(fileKey);
 
         // Vérification
         if (!fileInfos.getIsSpecial()) {
@@ -450,7 +1183,7 @@ public class FileStorageController {
         }
         return ResponseEntity.ok()
                 .cacheControl(CacheControl.noCache())
-                .body(bsfiRepository.save(fileInfos));
+                .body(fileInfosCache.save(fileInfos));
     }
 
     @ApiOperation(value = "${FileStorageController.deleteFile}",
@@ -462,10 +1195,10 @@ public class FileStorageController {
             throws NotFound404Exception, ServerError500Exception {
 
         // Récupération des informations relatives au fichier demandé
-        BSFileInformation fileInfos = getFileInfos(fileKey);
+        BSFileInformation fileInfos = getFileInfosForUpdate(fileKey);
 
         // Suppression des informations
-        bsfiRepository.delete(fileInfos.getId());
+        fileInfosCache.delete(fileInfos);
 
         // Suppression des fichiers physiques associés
         toolServices.deleteFile(fileInfos);
@@ -480,11 +1213,11 @@ public class FileStorageController {
             throws NotFound404Exception {
 
         // Récupération des informations relatives au fichier demandé
-        BSFileInformation fileInfos = getFileInfos(fileKey);
+        BSFileInformation fileInfos = getFileInfosForUpdate(fileKey);
 
         // Soft Suppression des informations
         fileInfos.setStatus(BSFile.Status.SOFT_DELETED.value());
-        bsfiRepository.save(fileInfos);
+        fileInfosCache.save(fileInfos);
     }
 
     @ExceptionHandler(VirusFound409Exception.class)
@@ -492,4 +1225,17 @@ public class FileStorageController {
         // Handle virus found like told in MS spec https://msdn.microsoft.com/en-us/library/dd907072%28v=office.12%29.aspx?f=255&MSPPError=-2147217396
         return ResponseEntity.status(HttpStatus.CONFLICT).header("x-virus-infected", ex.getMessage()).build();
     }
+
+    @ExceptionHandler(MultipartException.class)
+    public ResponseEntity<String> handleMultipartException(MultipartException ex) {
+        // Parties lues à la résolution des paramètres (spring.http.multipart.resolve-lazily) : limites de taille dépassées
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MaxUploadSizeExceededException || cause instanceof FileUploadBase.SizeException) {
+                log.warn("Dépot multipart refusé : taille maximale dépassée", ex);
+                return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(cause.getMessage());
+            }
+        }
+        log.warn("Dépot multipart invalide", ex);
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(ex.getMessage());
+    }
 }
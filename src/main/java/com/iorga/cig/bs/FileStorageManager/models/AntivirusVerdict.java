@@ -0,0 +1,60 @@
+package com.iorga.cig.bs.FileStorageManager.models;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import java.sql.Timestamp;
+
+/**
+ * Résultat du dernier scan antivirus d'un contenu (identifié par son hash),
+ * associé à la version des signatures ClamAV utilisée pour ce scan.
+ */
+@Entity(name = "AntivirusVerdict")
+public class AntivirusVerdict {
+
+    @Id
+    @Column(nullable = false, updatable = false, length = 64)
+    private String contentHash;
+
+    @Column(nullable = false, length = 64)
+    private String signatureVersion;
+
+    @Column(nullable = false)
+    private Boolean isClean;
+
+    @Column(length = 10000)
+    private String scanResult;
+
+    @Column(nullable = false)
+    private Timestamp scanDate;
+
+    protected AntivirusVerdict() {}
+
+    public AntivirusVerdict(String contentHash, String signatureVersion, boolean isClean, String scanResult) {
+        this.contentHash = contentHash;
+        this.signatureVersion = signatureVersion;
+        this.isClean = isClean;
+        this.scanResult = scanResult;
+        this.scanDate = new Timestamp(System.currentTimeMillis());
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public String getSignatureVersion() {
+        return signatureVersion;
+    }
+
+    public Boolean getIsClean() {
+        return isClean;
+    }
+
+    public String getScanResult() {
+        return scanResult;
+    }
+
+    public Timestamp getScanDate() {
+        return scanDate;
+    }
+}
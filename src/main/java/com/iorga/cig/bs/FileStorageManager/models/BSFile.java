@@ -5,7 +5,6 @@ public class BSFile {
     private String originalFileName;
     private String fileContentType;
     private String ownerKey;
-    private String fileContent;
     private Integer targetYear;
     private String externalRef;
     private Integer status;
@@ -16,8 +15,10 @@ public class BSFile {
     public enum Status {
         SOFT_DELETED(-1),
         VIRUS_INFECTED(-2),
+        CORRUPTED(-3),
         SPECIAL_READY_TO_BE_TREATED(1),
-        AVAILABLE(2),;
+        AVAILABLE(2),
+        PENDING_SCAN(3),;
         private final int status;
 
         Status(int status) {
@@ -65,14 +66,6 @@ public class BSFile {
         this.ownerKey = ownerKey;
     }
 
-    public String getFileContent() {
-        return fileContent;
-    }
-
-    public void setFileContent(String fileContent) {
-        this.fileContent = fileContent;
-    }
-
     public Integer getTargetYear() {
         return targetYear;
     }
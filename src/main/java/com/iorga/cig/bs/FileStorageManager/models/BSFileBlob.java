@@ -0,0 +1,52 @@
+package com.iorga.cig.bs.FileStorageManager.models;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import java.sql.Timestamp;
+
+/**
+ * Contenu stocké une seule fois (stockage dédupliqué), identifié par son hash et partagé par
+ * plusieurs fichiers. Le contenu n'est supprimé qu'à la disparition de la dernière référence.
+ */
+@Entity(name = "BSFileBlob")
+public class BSFileBlob {
+
+    @Id
+    @Column(nullable = false, updatable = false, length = 64)
+    private String contentHash;
+
+    @Column(nullable = false)
+    private Integer refCount;
+
+    @Column(nullable = false, updatable = false)
+    private Integer contentSize;
+
+    @Column(nullable = false, updatable = false)
+    private Timestamp creationDate;
+
+    protected BSFileBlob() {}
+
+    public BSFileBlob(String contentHash, Integer contentSize) {
+        this.contentHash = contentHash;
+        this.refCount = 1;
+        this.contentSize = contentSize;
+        this.creationDate = new Timestamp(System.currentTimeMillis());
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public Integer getRefCount() {
+        return refCount;
+    }
+
+    public Integer getContentSize() {
+        return contentSize;
+    }
+
+    public Timestamp getCreationDate() {
+        return creationDate;
+    }
+}
@@ -0,0 +1,74 @@
+package com.iorga.cig.bs.FileStorageManager.models;
+
+/**
+ * Résultat du dépot d'un fichier au sein d'un dépot groupé : statut HTTP équivalent à celui d'un dépot unitaire,
+ * informations du fichier enregistré en cas de succès.
+ */
+public class BSFileBulkResult {
+
+    private final int index;
+    private final String originalFileName;
+    private int status;
+    private String message;
+    private String virusInfected;
+    private BSFileInformation fileInfos;
+
+    public BSFileBulkResult(int index, String originalFileName) {
+        this.index = index;
+        this.originalFileName = originalFileName;
+    }
+
+    /**
+     * @return position du fichier dans la requête
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public String getOriginalFileName() {
+        return originalFileName;
+    }
+
+    /**
+     * @return statut HTTP du dépot de ce fichier (200, 400, 409 ou 500)
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return résultat de l'antivirus si le fichier est infecté (équivalent du header x-virus-infected)
+     */
+    public String getVirusInfected() {
+        return virusInfected;
+    }
+
+    public BSFileInformation getFileInfos() {
+        return fileInfos;
+    }
+
+    public boolean isSuccess() {
+        return fileInfos != null;
+    }
+
+    public void setSuccess(BSFileInformation fileInfos) {
+        this.status = 200;
+        this.message = null;
+        this.fileInfos = fileInfos;
+    }
+
+    public void setFailure(int status, String message) {
+        this.status = status;
+        this.message = message;
+        this.fileInfos = null;
+    }
+
+    public void setVirusInfected(String virusInfected) {
+        setFailure(409, "Le fichier contient un virus.");
+        this.virusInfected = virusInfected;
+    }
+}
@@ -0,0 +1,51 @@
+package com.iorga.cig.bs.FileStorageManager.models;
+
+import java.nio.file.Path;
+
+/**
+ * Référence vers le contenu d'un fichier déposé, reçu au fil de l'eau dans un fichier temporaire (spool)
+ * au lieu d'être conservé en mémoire. Le hash et, si possible, le verdict antivirus sont calculés pendant
+ * la réception (une seule lecture du contenu).
+ */
+public class BSFileContent {
+
+    private final Path path;
+    private final long size;
+    private final String contentHash;
+    private final AntivirusVerdict inlineVerdict;
+
+    public BSFileContent(Path path, long size, String contentHash, AntivirusVerdict inlineVerdict) {
+        this.path = path;
+        this.size = size;
+        this.contentHash = contentHash;
+        this.inlineVerdict = inlineVerdict;
+    }
+
+    /**
+     * @return chemin du fichier temporaire contenant les données décodées
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return taille en octets des données décodées
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return hash SHA-256 (base64) des données, calculé pendant la réception
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * @return verdict du scan antivirus effectué pendant la réception, null si le contenu n'a pas pu être scanné au fil de l'eau
+     */
+    public AntivirusVerdict getInlineVerdict() {
+        return inlineVerdict;
+    }
+}
@@ -1,11 +1,13 @@
 package com.iorga.cig.bs.FileStorageManager.models;
 
 import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.iorga.cig.bs.FileStorageManager.services.Tools;
 
 import javax.persistence.*;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Date;
+import java.sql.Timestamp;
 import java.time.LocalDate;
 
 @Entity(name = "BSFileInformation")
@@ -70,11 +72,43 @@ public class BSFileInformation {
     @Column(nullable = false)
     private Boolean isContentNoVirusTrusted = false;
 
+    @JsonIgnore
+    @Column(updatable = false, length = 64)
+    private String blobHash;
+
+    @JsonIgnore
+    @Column(length = 20)
+    private String contentEncoding;
+
+    @JsonIgnore
+    @Column(nullable = false)
+    private Integer storageLayout;
+
+    @JsonIgnore
+    @Column(nullable = false)
+    private Integer storageTier = ACTIVE_STORAGE_TIER;
+
+    @JsonIgnore
+    private Timestamp lastScanDate;
+
+    @JsonIgnore
+    private Timestamp lastAccessDate;
+
     @Transient
     private String contentUri;
     @Transient
     private String infosUri;
 
+    /**
+     * Niveau de stockage des fichiers actifs (nas.active.rootdir)
+     */
+    public final static int ACTIVE_STORAGE_TIER = 0;
+
+    /**
+     * Niveau de stockage des fichiers archivés (nas.archived.rootdir, cf. StorageTieringService)
+     */
+    public final static int ARCHIVED_STORAGE_TIER = 1;
+
     protected BSFileInformation() {}
 
     private BSFileInformation(String fileKey, boolean isPublic) {
@@ -278,6 +312,38 @@ public class BSFileInformation {
                 id, fileKey, originalFileName, logicalFolder, targetYear, storageHashedFileName, storageDate);
     }
 
+    /**
+     * @return copie non rattachée à la session JPA (instances conservées et restituées par BSFileInformationCache)
+     */
+    public BSFileInformation copy() {
+        BSFileInformation copy = new BSFileInformation();
+        copy.id = id;
+        copy.fileKey = fileKey;
+        copy.originalFileName = originalFileName;
+        copy.fileContentType = fileContentType;
+        copy.fileContentSize = fileContentSize;
+        copy.fileContentHash = fileContentHash;
+        copy.logicalFolder = logicalFolder;
+        copy.targetYear = targetYear;
+        copy.storageHashedFileName = storageHashedFileName;
+        copy.ownerKey = ownerKey;
+        copy.storageDate = storageDate;
+        copy.externalRef = externalRef;
+        copy.status = status;
+        copy.statusLinkedData = statusLinkedData;
+        copy.isSpecial = isSpecial;
+        copy.isPublic = isPublic;
+        copy.isAttachment = isAttachment;
+        copy.isContentNoVirusTrusted = isContentNoVirusTrusted;
+        copy.blobHash = blobHash;
+        copy.contentEncoding = contentEncoding;
+        copy.storageLayout = storageLayout;
+        copy.storageTier = storageTier;
+        copy.lastScanDate = lastScanDate;
+        copy.lastAccessDate = lastAccessDate;
+        return copy;
+    }
+
     /**
      * Ecriture du fichier de controle avec dans l'ordre les informations suivantes:
      * fileKey, ownerKey, logicalFolder, storageDate, originalFileName, fileContentType, fileContentSize,
@@ -315,4 +381,73 @@ public class BSFileInformation {
     public void setIsContentNoVirusTrusted(Boolean contentNoVirusTrusted) {
         isContentNoVirusTrusted = contentNoVirusTrusted;
     }
+
+    /**
+     * @return hash du contenu partagé (stockage dédupliqué), null si le contenu est stocké sous storageHashedFileName
+     */
+    @JsonIgnore
+    public String getBlobHash() {
+        return blobHash;
+    }
+
+    public void setBlobHash(String blobHash) {
+        this.blobHash = blobHash;
+    }
+
+    /**
+     * @return encodage du contenu stocké (gzip), null si le contenu est stocké tel que reçu
+     */
+    @JsonIgnore
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return version de l'organisation des répertoires de stockage du fichier (cf. Tools.getStorageLayoutVersion),
+     * null tant que le fichier n'a pas été écrit
+     */
+    @JsonIgnore
+    public Integer getStorageLayout() {
+        return storageLayout;
+    }
+
+    public void setStorageLayout(Integer storageLayout) {
+        this.storageLayout = storageLayout;
+    }
+
+    /**
+     * @return niveau de stockage du fichier de données (ACTIVE_STORAGE_TIER ou ARCHIVED_STORAGE_TIER)
+     */
+    @JsonIgnore
+    public Integer getStorageTier() {
+        return storageTier;
+    }
+
+    public void setStorageTier(Integer storageTier) {
+        this.storageTier = storageTier;
+    }
+
+    /**
+     * @return date du dernier scan antivirus du contenu (dépot ou rescan en arrière-plan)
+     */
+    @JsonIgnore
+    public Timestamp getLastScanDate() {
+        return lastScanDate;
+    }
+
+    public void setLastScanDate(Timestamp lastScanDate) {
+        this.lastScanDate = lastScanDate;
+    }
+
+    /**
+     * @return date (approximative, mise à jour par lots) du dernier téléchargement du contenu
+     */
+    @JsonIgnore
+    public Timestamp getLastAccessDate() {
+        return lastAccessDate;
+    }
 }
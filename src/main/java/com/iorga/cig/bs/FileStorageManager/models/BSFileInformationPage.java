@@ -0,0 +1,29 @@
+package com.iorga.cig.bs.FileStorageManager.models;
+
+import java.util.List;
+
+/**
+ * Page du listing d'un dossier. Tant que nextPageToken est renseigné, la page suivante s'obtient en le transmettant
+ * tel quel (pageToken) avec les mêmes critères de recherche.
+ */
+public class BSFileInformationPage {
+
+    private final List<BSFileInformation> fileInfos;
+    private final String nextPageToken;
+
+    public BSFileInformationPage(List<BSFileInformation> fileInfos, String nextPageToken) {
+        this.fileInfos = fileInfos;
+        this.nextPageToken = nextPageToken;
+    }
+
+    public List<BSFileInformation> getFileInfos() {
+        return fileInfos;
+    }
+
+    /**
+     * @return jeton opaque de la page suivante, null s'il s'agit de la dernière page
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+}
@@ -0,0 +1,28 @@
+package com.iorga.cig.bs.FileStorageManager.models;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.iorga.cig.bs.FileStorageManager.services.BSFileContentDeserializer;
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * Fichier déposé en JSON (dépot unitaire ou groupé) : informations du fichier et contenu encodé en base64.
+ * Le contenu est décodé à la volée dans un fichier temporaire durant la lecture de la requête
+ * (cf. {@link com.iorga.cig.bs.FileStorageManager.services.BSFileUploadMessageConverter}).
+ */
+public class BSFileUpload extends BSFile {
+
+    @ApiModelProperty(value = "Contenu du fichier encodé en base64", dataType = "java.lang.String")
+    private BSFileContent fileContent;
+
+    /**
+     * @return contenu du fichier, décodé à la volée dans un fichier temporaire (null si absent de la requête)
+     */
+    public BSFileContent getFileContent() {
+        return fileContent;
+    }
+
+    @JsonDeserialize(using = BSFileContentDeserializer.class)
+    public void setFileContent(BSFileContent fileContent) {
+        this.fileContent = fileContent;
+    }
+}
@@ -0,0 +1,136 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.AntivirusVerdict;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache persistant des verdicts antivirus, par hash de contenu et version des signatures ClamAV.
+ * Un contenu déjà scanné avec la version courante des signatures n'est pas rescanné :
+ * seule une mise à jour de la base de signatures déclenche un nouveau scan.
+ */
+@Service
+@ManagedResource(objectName = "bsfm:name=AntivirusVerdictCache")
+public class AntivirusVerdictCache {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${clamav.version.refreshSeconds:60}")
+    private long versionRefreshSeconds;
+
+    @Value("${antivirus.verdictCache.enabled:true}")
+    private boolean enabled;
+
+    @Autowired
+    private IAntivirusVerdictRepository verdictRepository;
+
+    @Autowired
+    private ClamAVScanner clamAVScanner;
+
+    private volatile String signatureVersion;
+    private volatile long signatureVersionExpiresAt;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Version courante des signatures du démon ClamAV (réponse à la commande VERSION, ex "0.100.0/24593"),
+     * interrogée au plus une fois toutes les clamav.version.refreshSeconds secondes.
+     *
+     * @return la version des signatures, null si elle n'a pas pu être déterminée
+     */
+    public String getSignatureVersion() {
+        long now = System.currentTimeMillis();
+        if (now >= signatureVersionExpiresAt) {
+            synchronized (this) {
+                if (now >= signatureVersionExpiresAt) {
+                    try {
+                        signatureVersion = parseSignatureVersion(clamAVScanner.getVersion());
+                    } catch (IOException e) {
+                        log.warn("Impossible de récupérer la version des signatures ClamAV", e);
+                        signatureVersion = null;
+                    }
+                    signatureVersionExpiresAt = now + versionRefreshSeconds * 1000;
+                }
+            }
+        }
+        return signatureVersion;
+    }
+
+    /**
+     * "ClamAV 0.100.0/24593/Tue Jun 12 08:00:00 2018" => "0.100.0/24593"
+     */
+    static String parseSignatureVersion(String versionReply) {
+        if (versionReply == null || versionReply.isEmpty()) {
+            return null;
+        }
+        String version = versionReply.startsWith("ClamAV ") ? versionReply.substring("ClamAV ".length()) : versionReply;
+        int lastSlash = version.lastIndexOf('/');
+        if (lastSlash > version.indexOf('/')) {
+            version = version.substring(0, lastSlash);
+        }
+        return version;
+    }
+
+    /**
+     * @param contentHash      hash du contenu
+     * @param signatureVersion version courante des signatures
+     * @return le verdict obtenu avec cette version des signatures, null s'il faut (re)scanner le contenu
+     */
+    public AntivirusVerdict findCurrentVerdict(String contentHash, String signatureVersion) {
+        if (!enabled || contentHash == null || signatureVersion == null) {
+            return null;
+        }
+        AntivirusVerdict verdict = verdictRepository.findOne(contentHash);
+        if (verdict != null && signatureVersion.equals(verdict.getSignatureVersion())) {
+            hits.incrementAndGet();
+            return verdict;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Mémorisation du résultat d'un scan.
+     *
+     * @param contentHash      hash du contenu scanné
+     * @param signatureVersion version des signatures lue AVANT le scan
+     * @param isClean          true si aucun virus n'a été détecté
+     * @param scanResult       réponse du démon ClamAV
+     */
+    public void recordVerdict(String contentHash, String signatureVersion, boolean isClean, String scanResult) {
+        if (!enabled || contentHash == null || signatureVersion == null) {
+            return;
+        }
+        try {
+            verdictRepository.save(new AntivirusVerdict(contentHash, signatureVersion, isClean, scanResult));
+        } catch (DataAccessException e) {
+            // Enregistrement concurrent du même contenu : sans conséquence
+            log.warn(String.format("Impossible d'enregistrer le verdict antivirus (%s)", contentHash), e);
+        }
+    }
+
+    @ManagedAttribute(description = "Version des signatures ClamAV actuellement connue")
+    public String getCurrentSignatureVersion() {
+        return signatureVersion;
+    }
+
+    @ManagedAttribute(description = "Nombre de scans évités grâce à un verdict existant")
+    public long getHits() {
+        return hits.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de scans effectués faute de verdict à jour")
+    public long getMisses() {
+        return misses.get();
+    }
+}
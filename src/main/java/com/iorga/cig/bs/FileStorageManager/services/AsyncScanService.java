@@ -0,0 +1,221 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.exceptions.Conflict409Exception;
+import com.iorga.cig.bs.FileStorageManager.exceptions.NotFound404Exception;
+import com.iorga.cig.bs.FileStorageManager.exceptions.ServerError500Exception;
+import com.iorga.cig.bs.FileStorageManager.exceptions.VirusFound409Exception;
+import com.iorga.cig.bs.FileStorageManager.models.BSFile;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Analyse antivirus asynchrone des fichiers déposés en mode asyncScan (statut PENDING_SCAN).
+ * Les fichiers en quarantaine sont scannés par un pool borné puis promus (AVAILABLE ou SPECIAL_READY_TO_BE_TREATED)
+ * ou marqués VIRUS_INFECTED. Les fichiers restés en attente (file pleine, clamd indisponible, redémarrage)
+ * sont repris périodiquement.
+ */
+@Service
+@Lazy(false)
+@ManagedResource(objectName = "bsfm:name=AsyncScanService")
+public class AsyncScanService {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${antivirus.async.poolSize:2}")
+    private int poolSize;
+
+    @Value("${antivirus.async.queueCapacity:1000}")
+    private int queueCapacity;
+
+    @Value("${antivirus.async.resumeBatchSize:200}")
+    private int resumeBatchSize;
+
+    @Autowired
+    private IBSFileInformationRepository bsfiRepository;
+
+    @Autowired
+    private BSFileInformationCache fileInfosCache;
+
+    @Autowired
+    private Tools toolServices;
+
+    @Autowired
+    private WriteIntentLog writeIntentLog;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Identifiants des fichiers en file d'attente ou en cours de scan
+     */
+    private final Set<Long> inProgress = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong infected = new AtomicLong();
+    private final AtomicLong postponed = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "async-scan-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        // Les scans non effectués seront repris au prochain démarrage
+        executor.shutdownNow();
+    }
+
+    /**
+     * Demande de scan d'un fichier en quarantaine.
+     * Si la file d'attente est pleine, le fichier reste en attente et sera repris par {@link #resumePendingScans()}.
+     *
+     * @param fileInfos informations du fichier (statut PENDING_SCAN, déjà enregistré en base)
+     */
+    public void submit(BSFileInformation fileInfos) {
+        final Long id = fileInfos.getId();
+        if (!inProgress.add(id)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    scan(id);
+                } finally {
+                    inProgress.remove(id);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inProgress.remove(id);
+            postponed.incrementAndGet();
+            log.warn(String.format("File d'attente des scans pleine, scan du fichier %s différé", fileInfos.getFileKey()));
+        }
+    }
+
+    private void scan(Long id) {
+        BSFileInformation fileInfos = bsfiRepository.findOne(id);
+        if (fileInfos == null || fileInfos.getStatus() != BSFile.Status.PENDING_SCAN.value()) {
+            return;
+        }
+        Path dataFilePathObj = null;
+        try {
+            dataFilePathObj = toolServices.releaseQuarantinedFile(fileInfos);
+            Path semaphoreFilePathObj = null;
+            if (fileInfos.getIsSpecial()) {
+                // Ecriture du fichier semaphore permettant le traitement special
+                semaphoreFilePathObj = toolServices.semaphoreSpecialFileWrite(fileInfos, dataFilePathObj);
+                fileInfos.setStatus(BSFile.Status.SPECIAL_READY_TO_BE_TREATED.value());
+            } else {
+                fileInfos.setStatus(BSFile.Status.AVAILABLE.value());
+            }
+            syncReleasedFile(fileInfos, dataFilePathObj, semaphoreFilePathObj);
+            released.incrementAndGet();
+        } catch (VirusFound409Exception e) {
+            log.warn(String.format("Le fichier %s est infecté par %s", fileInfos.getFileKey(), e.getMessage()));
+            fileInfos.setStatus(BSFile.Status.VIRUS_INFECTED.value());
+            fileInfos.setStatusLinkedData(e.getMessage());
+            infected.incrementAndGet();
+        } catch (NotFound404Exception | Conflict409Exception e) {
+            log.error(String.format("Impossible de libérer le fichier en quarantaine %s", fileInfos.getFileKey()), e);
+            fileInfos.setStatus(BSFile.Status.CORRUPTED.value());
+            fileInfos.setStatusLinkedData("Le fichier en quarantaine n'a pas pu être libéré.");
+        } catch (ServerError500Exception e) {
+            // clamd indisponible : le fichier reste en attente
+            postponed.incrementAndGet();
+            log.warn(String.format("Scan du fichier %s différé", fileInfos.getFileKey()), e);
+            return;
+        }
+
+        // Mise à jour conditionnelle : le fichier a pu être supprimé ou changer de statut pendant le scan
+        int updated = bsfiRepository.updateAsyncScanResult(id, BSFile.Status.PENDING_SCAN.value(), fileInfos.getStatus(),
+                fileInfos.getStatusLinkedData(), fileInfos.getLastScanDate(), fileInfos.getBlobHash(), fileInfos.getContentEncoding());
+        if (updated == 0 && dataFilePathObj != null) {
+            if (bsfiRepository.updateReleasedContent(id, fileInfos.getLastScanDate(), fileInfos.getBlobHash(),
+                    fileInfos.getContentEncoding()) > 0) {
+                log.info(String.format("Statut du fichier %s modifié pendant le scan, il est conservé", fileInfos.getFileKey()));
+            } else {
+                // Supprimé pendant le scan
+                try {
+                    toolServices.deleteFile(fileInfos);
+                } catch (ServerError500Exception e) {
+                    log.warn(String.format("Impossible de supprimer le fichier %s", fileInfos.getFileKey()), e);
+                }
+            }
+        }
+        fileInfosCache.invalidate(fileInfos.getFileKey());
+    }
+
+    /**
+     * Synchronisation du fichier sorti de quarantaine avant l'enregistrement de son statut. Le fichier ayant déjà
+     * été déplacé, un échec est seulement signalé : le statut est enregistré.
+     */
+    private void syncReleasedFile(BSFileInformation fileInfos, Path dataFilePathObj, Path semaphoreFilePathObj) {
+        try {
+            writeIntentLog.sync(dataFilePathObj, semaphoreFilePathObj);
+        } catch (ServerError500Exception e) {
+            log.error(String.format("Impossible de synchroniser le fichier %s", fileInfos.getFileKey()), e);
+        }
+    }
+
+    /**
+     * Reprise des fichiers en attente de scan (au démarrage puis périodiquement).
+     */
+    @Scheduled(fixedDelayString = "${antivirus.async.resumeIntervalMs:60000}")
+    public void resumePendingScans() {
+        Long afterId = 0L;
+        List<BSFileInformation> page;
+        do {
+            page = bsfiRepository.findByStatusAfterId(afterId, BSFile.Status.PENDING_SCAN.value(), new PageRequest(0, resumeBatchSize));
+            for (BSFileInformation fileInfos : page) {
+                if (executor.getQueue().remainingCapacity() == 0) {
+                    return;
+                }
+                submit(fileInfos);
+                afterId = fileInfos.getId();
+            }
+        } while (page.size() == resumeBatchSize);
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers en attente ou en cours de scan")
+    public int getInProgress() {
+        return inProgress.size();
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers sains libérés de la quarantaine")
+    public long getReleased() {
+        return released.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers infectés détectés")
+    public long getInfected() {
+        return infected.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de scans différés (file pleine ou clamd indisponible)")
+    public long getPostponed() {
+        return postponed.get();
+    }
+}
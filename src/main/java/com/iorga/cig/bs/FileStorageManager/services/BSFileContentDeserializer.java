@@ -0,0 +1,65 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.iorga.cig.bs.FileStorageManager.exceptions.ServerError500Exception;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileContent;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Désérialisation du champ base64 {@code fileContent} d'un {@link com.iorga.cig.bs.FileStorageManager.models.BSFileUpload}.
+ * Le base64 est décodé par blocs pendant le parsing Jackson et écrit directement dans un fichier temporaire du NAS,
+ * tout en alimentant le calcul du hash et le scan antivirus (cf. {@link IngestOutputStream}) :
+ * le contenu n'est jamais matérialisé ni sous forme de String, ni sous forme de byte[].
+ * Les options de la réception sont passées en attributs de la lecture (cf. {@link BSFileUploadMessageConverter}).
+ * Instancié par Spring (SpringHandlerInstantiator) afin de bénéficier de l'injection des services.
+ */
+public class BSFileContentDeserializer extends JsonDeserializer<BSFileContent> {
+
+    /**
+     * Attribut (Boolean) : scan antivirus pendant la réception (true par défaut)
+     */
+    public final static String SCAN_INLINE_ATTRIBUTE = BSFileContentDeserializer.class.getName() + ".scanInline";
+
+    /**
+     * Attribut (List&lt;Path&gt;) : fichiers temporaires créés, à supprimer par le lecteur en cas d'échec
+     */
+    public final static String SPOOL_FILES_ATTRIBUTE = BSFileContentDeserializer.class.getName() + ".spoolFiles";
+
+    @Autowired
+    private Tools toolServices;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public BSFileContent deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+        if (p.getCurrentToken() != JsonToken.VALUE_STRING) {
+            return (BSFileContent) ctxt.handleUnexpectedToken(BSFileContent.class, p);
+        }
+
+        // Pas de scan pendant la réception si l'analyse antivirus est demandée en différé
+        IngestOutputStream out;
+        try {
+            out = toolServices.openIngestStream(!Boolean.FALSE.equals(ctxt.getAttribute(SCAN_INLINE_ATTRIBUTE)));
+        } catch (ServerError500Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        List<Path> spoolFiles = (List<Path>) ctxt.getAttribute(SPOOL_FILES_ATTRIBUTE);
+        if (spoolFiles != null) {
+            spoolFiles.add(out.getPath());
+        }
+
+        try {
+            p.readBinaryValue(Base64Variants.MIME_NO_LINEFEEDS, out);
+            return out.complete();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache mémoire des informations de fichiers par fileKey, y compris des clés inconnues (cache négatif, TTL plus court)
+ * afin que les tentatives de devinette de clés n'atteignent pas la base.
+ * Les modifications effectuées par l'application passent par ce cache (écriture en base puis mise à jour ou invalidation
+ * de l'entrée). Les modifications externes (autre instance, intervention en base) sont visibles au plus tard après le TTL.
+ * Les instances conservées et restituées sont des copies : une modification non enregistrée n'altère pas le cache.
+ */
+@Service
+@ManagedResource(objectName = "bsfm:name=BSFileInformationCache")
+public class BSFileInformationCache {
+
+    @Value("${fileInfos.cache.maxEntries:10000}")
+    private int maxEntries;
+
+    @Value("${fileInfos.cache.ttlSeconds:60}")
+    private long ttlSeconds;
+
+    @Value("${fileInfos.cache.negativeTtlSeconds:10}")
+    private long negativeTtlSeconds;
+
+    @Autowired
+    private IBSFileInformationRepository bsfiRepository;
+
+    private BoundedCache<String, Optional<BSFileInformation>> cache;
+
+    /**
+     * Incrémenté à chaque modification : une lecture en base commencée avant une modification
+     * n'alimente pas le cache (elle pourrait y réintroduire une valeur périmée).
+     */
+    private final AtomicLong modifications = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        cache = new BoundedCache<>(maxEntries, ttlSeconds * 1000);
+    }
+
+    /**
+     * @param fileKey identifiant du fichier
+     * @return informations du fichier, null si la clé est inconnue
+     */
+    public BSFileInformation findByFileKey(String fileKey) {
+        Optional<BSFileInformation> cached = cache.get(fileKey);
+        if (cached != null) {
+            return cached.map(BSFileInformation::copy).orElse(null);
+        }
+
+        long modificationsBefore = modifications.get();
+        List<BSFileInformation> infos = bsfiRepository.findByFileKey(fileKey);
+        BSFileInformation fileInfos = infos.isEmpty() ? null : infos.get(0);
+        synchronized (this) {
+            if (modifications.get() == modificationsBefore) {
+                if (fileInfos == null) {
+                    cache.put(fileKey, Optional.empty(), negativeTtlSeconds * 1000);
+                } else {
+                    cache.put(fileKey, Optional.of(fileInfos.copy()));
+                }
+            }
+        }
+        return fileInfos;
+    }
+
+    /**
+     * Enregistrement en base puis mise à jour du cache.
+     *
+     * @return informations enregistrées
+     */
+    public BSFileInformation save(BSFileInformation fileInfos) {
+        BSFileInformation saved = bsfiRepository.save(fileInfos);
+        update(saved);
+        return saved;
+    }
+
+    /**
+     * Mise à jour du cache avec des informations déjà enregistrées en base.
+     */
+    public void update(BSFileInformation fileInfos) {
+        synchronized (this) {
+            modifications.incrementAndGet();
+            cache.put(fileInfos.getFileKey(), Optional.of(fileInfos.copy()));
+        }
+    }
+
+    /**
+     * Suppression en base puis invalidation du cache.
+     */
+    public void delete(BSFileInformation fileInfos) {
+        bsfiRepository.delete(fileInfos.getId());
+        invalidate(fileInfos.getFileKey());
+    }
+
+    /**
+     * Invalidation d'une entrée modifiée directement en base (requête de mise à jour).
+     */
+    public void invalidate(String fileKey) {
+        synchronized (this) {
+            modifications.incrementAndGet();
+            cache.invalidate(fileKey);
+        }
+    }
+
+    @ManagedOperation(description = "Vide le cache des informations de fichiers")
+    public void clear() {
+        synchronized (this) {
+            modifications.incrementAndGet();
+            cache.clear();
+        }
+    }
+
+    @ManagedAttribute(description = "Nombre d'entrées du cache")
+    public int getSize() {
+        return cache.size();
+    }
+
+    @ManagedAttribute(description = "Nombre maximal d'entrées du cache")
+    public int getMaxEntries() {
+        return cache.getMaxEntries();
+    }
+
+    @ManagedAttribute(description = "Nombre de recherches par fileKey servies sans accès à la base")
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    @ManagedAttribute(description = "Nombre de recherches par fileKey ayant nécessité un accès à la base")
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    @ManagedAttribute(description = "Nombre d'entrées évincées faute de place")
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+}
@@ -0,0 +1,32 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+import java.util.List;
+
+/**
+ * Lecture des dépots JSON par {@link BSFileUploadMessageConverter}, placé avant le convertisseur Jackson standard
+ * (non déclaré en bean afin de ne pas le remplacer).
+ */
+@Configuration
+public class BSFileUploadConfig extends WebMvcConfigurerAdapter {
+
+    @Value("${bulk.maxFiles:1000}")
+    private int bulkMaxFiles;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private Tools toolServices;
+
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(0, new BSFileUploadMessageConverter(objectMapper, toolServices, bulkMaxFiles));
+    }
+}
@@ -0,0 +1,139 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileUpload;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lecture des dépots JSON ({@link BSFileUpload}, seul ou en liste) : le contenu base64 est décodé dans un fichier
+ * temporaire pendant le parsing (cf. {@link BSFileContentDeserializer}), scanné au fil de l'eau sauf si le paramètre
+ * asyncScan de la requête est à true. Les autres corps JSON (dont BSFile) sont lus par le convertisseur Jackson
+ * standard, sans réception de contenu.
+ * Les fichiers temporaires sont supprimés si la lecture échoue, sinon en fin de requête s'ils n'ont pas été déplacés
+ * ou supprimés avant.
+ * Une liste est lue élément par élément : la lecture s'arrête dès que maxFiles est dépassé, avant la réception
+ * du contenu des fichiers suivants.
+ */
+public class BSFileUploadMessageConverter extends MappingJackson2HttpMessageConverter {
+
+    private final Tools toolServices;
+
+    private final int maxFiles;
+
+    /**
+     * @param maxFiles nombre maximal d'éléments d'une liste de dépots
+     */
+    public BSFileUploadMessageConverter(ObjectMapper objectMapper, Tools toolServices, int maxFiles) {
+        super(objectMapper);
+        this.toolServices = toolServices;
+        this.maxFiles = maxFiles;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return BSFileUpload.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+        return isUploadType(getJavaType(type, contextClass)) && canRead(mediaType);
+    }
+
+    @Override
+    public boolean canWrite(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    private static boolean isUploadType(JavaType javaType) {
+        if (javaType.isCollectionLikeType()) {
+            javaType = javaType.getContentType();
+        }
+        return BSFileUpload.class.isAssignableFrom(javaType.getRawClass());
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) throws IOException {
+        return read(clazz, null, inputMessage);
+    }
+
+    @Override
+    public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) throws IOException {
+        List<Path> spoolFiles = new ArrayList<>();
+        boolean read = false;
+        try {
+            JavaType javaType = getJavaType(type, contextClass);
+            ObjectReader reader = objectMapper.readerFor(javaType)
+                    .withAttribute(BSFileContentDeserializer.SCAN_INLINE_ATTRIBUTE, !isAsyncScanRequested(inputMessage))
+                    .withAttribute(BSFileContentDeserializer.SPOOL_FILES_ATTRIBUTE, spoolFiles);
+            Object value = javaType.isCollectionLikeType() ? readList(reader.forType(javaType.getContentType()), inputMessage)
+                    : reader.readValue(inputMessage.getBody());
+            read = true;
+            return value;
+        } catch (JsonProcessingException e) {
+            throw new HttpMessageNotReadableException("JSON parse error: " + e.getOriginalMessage(), e);
+        } finally {
+            cleanup(spoolFiles, read);
+        }
+    }
+
+    private List<Object> readList(ObjectReader elementReader, HttpInputMessage inputMessage) throws IOException {
+        try (JsonParser parser = elementReader.getFactory().createParser(inputMessage.getBody())) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                return null;
+            }
+            if (token != JsonToken.START_ARRAY) {
+                throw new HttpMessageNotReadableException("JSON parse error: une liste de fichiers est attendue.");
+            }
+            List<Object> values = new ArrayList<>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (values.size() >= maxFiles) {
+                    throw new HttpMessageNotReadableException(
+                            String.format("Le nombre de fichiers d'un dépot groupé est limité à %d.", maxFiles));
+                }
+                values.add(elementReader.readValue(parser));
+            }
+            return values;
+        }
+    }
+
+    private static boolean isAsyncScanRequested(HttpInputMessage inputMessage) {
+        return inputMessage instanceof ServletServerHttpRequest
+                && Boolean.parseBoolean(((ServletServerHttpRequest) inputMessage).getServletRequest().getParameter("asyncScan"));
+    }
+
+    private void cleanup(List<Path> spoolFiles, boolean read) {
+        RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+        for (Path spoolFile : spoolFiles) {
+            if (!read) {
+                toolServices.deleteTempFile(spoolFile);
+            } else if (requestAttributes != null) {
+                // Filet de sécurité : le fichier temporaire est supprimé en fin de requête
+                requestAttributes.registerDestructionCallback(spoolFile.toString(),
+                        () -> toolServices.deleteTempFile(spoolFile), RequestAttributes.SCOPE_REQUEST);
+            }
+        }
+    }
+}
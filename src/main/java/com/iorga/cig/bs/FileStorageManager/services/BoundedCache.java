@@ -0,0 +1,138 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Cache mémoire borné (éviction LRU au delà de maxEntries) avec expiration des entrées (TTL).
+ * Les compteurs de hits/misses permettent le dimensionnement du cache.
+ *
+ * @param <K> type des clés
+ * @param <V> type des valeurs
+ */
+public class BoundedCache<K, V> {
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class CacheEntry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private CacheEntry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param maxEntries nombre maximal d'entrées (0 pour désactiver le cache)
+     * @param ttlMillis  durée de vie d'une entrée en millisecondes
+     */
+    public BoundedCache(final int maxEntries, long ttlMillis) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                boolean evict = size() > BoundedCache.this.maxEntries;
+                if (evict) {
+                    evictions.incrementAndGet();
+                }
+                return evict;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * @return la valeur associée à la clé si elle est présente et non expirée, null sinon
+     */
+    public V get(K key) {
+        return get(key, value -> true);
+    }
+
+    /**
+     * Lecture d'une entrée dont la validité dépend aussi de son contenu (ex : empreinte d'un fichier) :
+     * une entrée non valide est supprimée et comptée comme un miss.
+     *
+     * @return la valeur associée à la clé si elle est présente, non expirée et valide, null sinon
+     */
+    public V get(K key, Predicate<V> valid) {
+        if (!isEnabled()) {
+            return null;
+        }
+        synchronized (entries) {
+            CacheEntry<V> entry = entries.get(key);
+            if (entry != null && entry.expiresAt > System.currentTimeMillis() && valid.test(entry.value)) {
+                hits.incrementAndGet();
+                return entry.value;
+            }
+            if (entry != null) {
+                entries.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, ttlMillis);
+    }
+
+    /**
+     * Ajout d'une entrée avec une durée de vie spécifique
+     */
+    public void put(K key, V value, long entryTtlMillis) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key, new CacheEntry<>(value, System.currentTimeMillis() + entryTtlMillis));
+        }
+    }
+
+    public void invalidate(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
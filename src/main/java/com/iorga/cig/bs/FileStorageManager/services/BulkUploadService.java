@@ -0,0 +1,95 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.exceptions.ServerError500Exception;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool borné, partagé par tous les dépots groupés, sur lequel sont effectués en parallèle les scans et écritures
+ * des fichiers d'un même dépot. Lorsque la file est pleine, la tâche est exécutée par le thread de la requête
+ * (ralentissement de l'appelant plutôt que surcharge de clamd et du NAS).
+ */
+@Service
+@ManagedResource(objectName = "bsfm:name=BulkUploadService")
+public class BulkUploadService {
+
+    @Value("${bulk.poolSize:4}")
+    private int poolSize;
+
+    @Value("${bulk.queueCapacity:100}")
+    private int queueCapacity;
+
+    @Autowired
+    private StorageMetrics storageMetrics;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    private void init() {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "bulk-upload-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Exécution parallèle des tâches, résultats dans l'ordre des tâches.
+     * Les tâches doivent traiter elles-mêmes leurs erreurs (résultat par élément).
+     *
+     * @param tasks tâches à exécuter
+     * @return résultats des tâches
+     * @throws ServerError500Exception une tâche a échoué de manière inattendue
+     */
+    public <T> List<T> invokeAll(List<Callable<T>> tasks) throws ServerError500Exception {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(executor.submit(storageMetrics.propagate(task)));
+        }
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            throw new ServerError500Exception("Une erreur est survenue durant le dépot groupé", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServerError500Exception("Dépot groupé interrompu", e);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers en cours de traitement")
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers en attente de traitement")
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+}
@@ -0,0 +1,77 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Format des enregistrements des journaux en ajout seul (cf. {@link HeaderJournal}, {@link WriteIntentLog}) :
+ * une ligne "crc32 contenu", où le CRC32 (8 caractères hexadécimaux) porte sur le contenu (UTF-8).
+ * Les sauts de ligne des données sont échappés afin qu'un enregistrement occupe toujours une seule ligne.
+ */
+final class ChecksummedLine {
+
+    private ChecksummedLine() {
+    }
+
+    /**
+     * @return enregistrement complet (saut de ligne final compris), encodé en UTF-8
+     */
+    static byte[] format(String body) {
+        return (String.format("%08x ", crc(body)) + body + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return contenu de l'enregistrement, null si la ligne est altérée (CRC incorrect)
+     */
+    static String parse(String line) {
+        if (line.length() < 9 || line.charAt(8) != ' ') {
+            return null;
+        }
+        String body = line.substring(9);
+        return String.format("%08x", crc(body)).equals(line.substring(0, 8)) ? body : null;
+    }
+
+    /**
+     * Lecture d'une ligne complète.
+     *
+     * @return ligne lue (sans le saut de ligne), null en fin de flux ou si la dernière ligne est incomplète
+     */
+    static String readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+        line.reset();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                return new String(line.toByteArray(), StandardCharsets.UTF_8);
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    static String escape(String data) {
+        return data.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    static String unescape(String data) {
+        StringBuilder sb = new StringBuilder(data.length());
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c == '\\' && i + 1 < data.length()) {
+                char next = data.charAt(++i);
+                sb.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static long crc(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+}
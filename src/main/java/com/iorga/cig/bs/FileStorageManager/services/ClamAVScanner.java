@@ -0,0 +1,657 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client ClamAV mutualisé : connexions persistantes (sessions clamd IDSESSION) réutilisées d'un scan à l'autre,
+ * envoi du contenu par blocs (INSTREAM) depuis un fichier ou un flux, répartition de charge (round-robin)
+ * sur plusieurs démons clamd avec health-check périodique et disjoncteur (circuit breaker).
+ */
+@Service
+@Lazy(false)
+@ManagedResource(objectName = "bsfm:name=ClamAVScanner")
+public class ClamAVScanner {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Liste des démons clamd "host:port" séparés par des virgules
+     */
+    @Value("${clamav.hosts:${clamav.host:clamav}:${clamav.port:3310}}")
+    private String clamavHosts;
+
+    @Value("${clamav.connectTimeoutMs:2000}")
+    private int connectTimeoutMs;
+
+    /**
+     * Timeout de 60 secondes pour les opérations réseau de AV (le scan d'un gros fichier peut être long)
+     */
+    @Value("${clamav.readTimeoutMs:60000}")
+    private int readTimeoutMs;
+
+    @Value("${clamav.chunkSize:65536}")
+    private int chunkSize;
+
+    @Value("${clamav.pool.maxConnectionsPerHost:8}")
+    private int maxConnectionsPerHost;
+
+    @Value("${clamav.pool.maxIdlePerHost:4}")
+    private int maxIdlePerHost;
+
+    /**
+     * Attente maximale d'une connexion libre pour un scan de fichier, lorsque toutes les connexions sont utilisées
+     */
+    @Value("${clamav.pool.acquireTimeoutMs:5000}")
+    private long acquireTimeoutMs;
+
+    /**
+     * Nombre maximal de scans au fil de l'eau (INSTREAM pendant la réception d'un dépot) par démon : leur session est
+     * occupée pendant toute la réception, les autres connexions restent disponibles pour les scans de fichiers
+     */
+    @Value("${clamav.pool.maxInstreamPerHost:4}")
+    private int maxInstreamPerHost;
+
+    /**
+     * Doit rester inférieur au paramètre IdleTimeout de clamd (30 secondes par défaut)
+     */
+    @Value("${clamav.pool.maxIdleMs:20000}")
+    private long maxIdleMs;
+
+    @Value("${clamav.circuitBreaker.failureThreshold:3}")
+    private int failureThreshold;
+
+    @Value("${clamav.circuitBreaker.openSeconds:30}")
+    private long openSeconds;
+
+    private final List<ClamdInstance> instances = new ArrayList<>();
+    private final AtomicInteger nextInstance = new AtomicInteger();
+
+    private final AtomicLong scans = new AtomicLong();
+    private final AtomicLong infected = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Résultat d'un scan
+     */
+    public static class ScanResult {
+        private final String reply;
+        private final boolean clean;
+
+        private ScanResult(String reply, boolean clean) {
+            this.reply = reply;
+            this.clean = clean;
+        }
+
+        /**
+         * Interprétation de la réponse de clamd à un scan : "... FOUND" (virus détecté), "...: OK" (aucun virus),
+         * toute autre réponse (ex : "INSTREAM size limit exceeded. ERROR") est une erreur de scan.
+         *
+         * @param reply réponse de clamd, sans préfixe de session
+         * @return résultat du scan
+         * @throws ClamdErrorException clamd n'a pas pu scanner le contenu
+         */
+        static ScanResult parse(String reply) throws ClamdErrorException {
+            if (reply.endsWith(" FOUND")) {
+                return new ScanResult(reply, false);
+            }
+            if (reply.endsWith(": OK") || reply.equals("OK")) {
+                return new ScanResult(reply, true);
+            }
+            throw new ClamdErrorException(reply);
+        }
+
+        /**
+         * @return true si clamd n'a détecté aucun virus
+         */
+        public boolean isClean() {
+            return clean;
+        }
+
+        /**
+         * @return réponse brute de clamd (ex : "stream: Eicar-Test-Signature FOUND")
+         */
+        public String getReply() {
+            return reply;
+        }
+    }
+
+    /**
+     * Erreur retournée par clamd en réponse à un scan (contenu trop volumineux, erreur de lecture...) :
+     * le contenu n'a pas été scanné, aucun verdict ne doit être retenu.
+     */
+    public static class ClamdErrorException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ClamdErrorException(String reply) {
+            super("Erreur clamd : " + reply);
+        }
+    }
+
+    /**
+     * Aucune connexion libre vers un démon clamd dans le délai imparti (le démon n'est pas en cause)
+     */
+    public static class ClamdPoolExhaustedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ClamdPoolExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Connexion persistante vers un démon clamd, en mode IDSESSION
+     */
+    private class ClamdSession implements Closeable {
+        private final ClamdInstance instance;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final InputStream in;
+        private long lastUsed;
+
+        private ClamdSession(ClamdInstance instance) throws IOException {
+            this.instance = instance;
+            this.socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(instance.host, instance.port), connectTimeoutMs);
+                socket.setSoTimeout(readTimeoutMs);
+                socket.setTcpNoDelay(true);
+                this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), chunkSize + 4));
+                this.in = new BufferedInputStream(socket.getInputStream());
+                out.write("zIDSESSION\0".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        private void command(String command) throws IOException {
+            out.write(("z" + command + "\0").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private void writeChunk(byte[] buffer, int offset, int length) throws IOException {
+            if (length > 0) {
+                out.writeInt(length);
+                out.write(buffer, offset, length);
+            }
+        }
+
+        /**
+         * Lecture d'une réponse clamd (terminée par \0), débarrassée du préfixe "id: " propre aux sessions
+         */
+        private String readReply() throws IOException {
+            out.flush();
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) > 0) {
+                if (reply.size() < 10000) {
+                    reply.write(b);
+                }
+            }
+            if (b < 0) {
+                throw new EOFException("Connexion fermée par clamd");
+            }
+            lastUsed = System.currentTimeMillis();
+            String response = new String(reply.toByteArray(), StandardCharsets.US_ASCII).trim();
+            int separator = response.indexOf(": ");
+            if (separator > 0 && response.substring(0, separator).matches("\\d+")) {
+                response = response.substring(separator + 2);
+            }
+            return response;
+        }
+
+        private boolean isStale() {
+            return System.currentTimeMillis() - lastUsed > maxIdleMs || socket.isClosed();
+        }
+
+        @Override
+        public void close() {
+            try {
+                out.write("zEND\0".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            } catch (IOException e) {
+                // La session est déjà inutilisable
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignoré
+            }
+        }
+    }
+
+    /**
+     * Démon clamd : pool de sessions inactives et état du disjoncteur
+     */
+    private class ClamdInstance {
+        private final String host;
+        private final int port;
+        private final LinkedBlockingDeque<ClamdSession> idleSessions = new LinkedBlockingDeque<>();
+        private final Semaphore connections;
+        private final Semaphore instreamSlots;
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long openUntil;
+
+        private ClamdInstance(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.connections = new Semaphore(maxConnectionsPerHost, true);
+            this.instreamSlots = new Semaphore(Math.max(0, Math.min(maxInstreamPerHost, maxConnectionsPerHost)));
+        }
+
+        private boolean isAvailable() {
+            return System.currentTimeMillis() >= openUntil;
+        }
+
+        /**
+         * @param timeoutMs attente maximale d'une connexion libre
+         */
+        private ClamdSession borrow(long timeoutMs) throws IOException {
+            try {
+                if (!connections.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    throw new ClamdPoolExhaustedException(String.format("Trop de scans en cours sur clamd %s", this));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Attente d'une connexion clamd interrompue");
+            }
+            try {
+                ClamdSession session;
+                while ((session = idleSessions.pollFirst()) != null) {
+                    if (!session.isStale()) {
+                        return session;
+                    }
+                    session.close();
+                }
+                return new ClamdSession(this);
+            } catch (IOException | RuntimeException e) {
+                connections.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Session d'un scan au fil de l'eau, obtenue sans attente : à défaut, le contenu sera scanné après réception
+         */
+        private ClamdSession borrowForInstream() throws IOException {
+            if (!instreamSlots.tryAcquire()) {
+                throw new ClamdPoolExhaustedException(String.format("Trop de scans au fil de l'eau en cours sur clamd %s", this));
+            }
+            try {
+                return borrow(0);
+            } catch (IOException | RuntimeException e) {
+                instreamSlots.release();
+                throw e;
+            }
+        }
+
+        private void releaseInstream(ClamdSession session, boolean reusable) {
+            try {
+                release(session, reusable);
+            } finally {
+                instreamSlots.release();
+            }
+        }
+
+        private void release(ClamdSession session, boolean reusable) {
+            try {
+                if (reusable && idleSessions.size() < maxIdlePerHost) {
+                    idleSessions.offerFirst(session);
+                } else {
+                    session.close();
+                }
+            } finally {
+                connections.release();
+            }
+        }
+
+        private void recordSuccess() {
+            consecutiveFailures.set(0);
+            openUntil = 0;
+        }
+
+        private void recordFailure(Exception e) {
+            failures.incrementAndGet();
+            if (consecutiveFailures.incrementAndGet() >= failureThreshold && isAvailable()) {
+                openUntil = System.currentTimeMillis() + openSeconds * 1000;
+                log.error(String.format("Démon clamd %s désactivé pour %d secondes", this, openSeconds), e);
+            }
+        }
+
+        private void closeIdleSessions(boolean onlyStale) {
+            for (ClamdSession session : idleSessions) {
+                if ((!onlyStale || session.isStale()) && idleSessions.remove(session)) {
+                    session.close();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /**
+     * Opération élémentaire exécutée sur une session clamd
+     */
+    private interface SessionOperation<T> {
+        T execute(ClamdSession session) throws IOException;
+    }
+
+    @PostConstruct
+    private void init() {
+        for (String hostAndPort : clamavHosts.split(",")) {
+            String value = hostAndPort.trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+            int separator = value.lastIndexOf(':');
+            if (separator > 0) {
+                instances.add(new ClamdInstance(value.substring(0, separator), Integer.parseInt(value.substring(separator + 1))));
+            } else {
+                instances.add(new ClamdInstance(value, 3310));
+            }
+        }
+        if (instances.isEmpty()) {
+            throw new IllegalStateException("Aucun démon ClamAV configuré (clamav.hosts)");
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        for (ClamdInstance instance : instances) {
+            instance.closeIdleSessions(false);
+        }
+    }
+
+    /**
+     * Choix du prochain démon disponible (round-robin, en ignorant les démons dont le disjoncteur est ouvert)
+     */
+    private ClamdInstance nextInstance() throws IOException {
+        int size = instances.size();
+        int start = Math.abs(nextInstance.getAndIncrement() % size);
+        for (int i = 0; i < size; i++) {
+            ClamdInstance instance = instances.get((start + i) % size);
+            if (instance.isAvailable()) {
+                return instance;
+            }
+        }
+        throw new IOException("Aucun démon ClamAV disponible");
+    }
+
+    /**
+     * Exécution d'une opération sur une session d'un démon disponible.
+     *
+     * @param operation opération à exécuter
+     * @param attempts  nombre de tentatives (une seule si l'opération consomme un flux non rejouable)
+     */
+    private <T> T execute(SessionOperation<T> operation, int attempts) throws IOException {
+        IOException lastException = null;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            ClamdInstance instance = nextInstance();
+            ClamdSession session;
+            try {
+                session = instance.borrow(acquireTimeoutMs);
+            } catch (ClamdPoolExhaustedException e) {
+                lastException = e;
+                continue;
+            } catch (IOException e) {
+                instance.recordFailure(e);
+                lastException = e;
+                continue;
+            }
+            boolean reusable = false;
+            try {
+                T result = operation.execute(session);
+                reusable = true;
+                instance.recordSuccess();
+                return result;
+            } catch (ClamdErrorException e) {
+                // Le démon a répondu : l'erreur porte sur le contenu, inutile de rejouer le scan ailleurs
+                throw e;
+            } catch (IOException e) {
+                instance.recordFailure(e);
+                lastException = e;
+                log.warn(String.format("Echec de l'opération sur clamd %s (tentative %d)", instance, attempt + 1), e);
+            } finally {
+                instance.release(session, reusable);
+            }
+        }
+        throw lastException;
+    }
+
+    private String instream(ClamdSession session, InputStream content) throws IOException {
+        byte[] buffer = new byte[chunkSize];
+        session.command("INSTREAM");
+        int count;
+        while ((count = content.read(buffer)) >= 0) {
+            session.writeChunk(buffer, 0, count);
+        }
+        // Bloc de taille nulle : fin du flux
+        session.out.writeInt(0);
+        return session.readReply();
+    }
+
+    /**
+     * Scan du contenu d'un fichier, envoyé par blocs. En cas d'échec réseau, le scan est rejoué sur un autre démon.
+     *
+     * @param contentFile fichier à scanner
+     * @return résultat du scan
+     * @throws IOException aucun démon n'a pu effectuer le scan, ou clamd a retourné une erreur (ClamdErrorException)
+     */
+    public ScanResult scan(final Path contentFile) throws IOException {
+        return scan(contentFile, false);
+    }
+
+    /**
+     * Scan du contenu d'un fichier, décompressé à la volée s'il est stocké compressé (gzip),
+     * cf. {@link #scan(Path)}.
+     *
+     * @param contentFile fichier à scanner
+     * @param gzipEncoded true si le fichier est compressé (gzip)
+     * @return résultat du scan
+     * @throws IOException aucun démon n'a pu effectuer le scan, ou clamd a retourné une erreur (ClamdErrorException)
+     */
+    public ScanResult scan(final Path contentFile, final boolean gzipEncoded) throws IOException {
+        ScanResult result = execute(session -> {
+            try (InputStream content = Tools.openContentStream(contentFile, gzipEncoded)) {
+                return ScanResult.parse(instream(session, content));
+            }
+        }, Math.max(2, instances.size()));
+        return countResult(result);
+    }
+
+    /**
+     * Scan d'un flux, envoyé par blocs (une seule tentative : le flux n'est pas rejouable).
+     *
+     * @param content flux à scanner
+     * @return résultat du scan
+     * @throws IOException le scan n'a pas pu être effectué
+     */
+    public ScanResult scan(final InputStream content) throws IOException {
+        return countResult(execute(session -> ScanResult.parse(instream(session, content)), 1));
+    }
+
+    /**
+     * Ouverture d'un scan INSTREAM alimenté au fil de l'eau par l'appelant (cf. {@link InstreamScan}).
+     * Aucune attente : si le démon n'a pas de session disponible pour un scan au fil de l'eau, l'appelant
+     * scanne le contenu après réception.
+     *
+     * @return scan en cours, à fermer dans tous les cas
+     * @throws IOException aucun démon n'est disponible (ClamdPoolExhaustedException : aucune session libre)
+     */
+    public InstreamScan openInstreamScan() throws IOException {
+        ClamdInstance instance = nextInstance();
+        ClamdSession session;
+        try {
+            session = instance.borrowForInstream();
+        } catch (ClamdPoolExhaustedException e) {
+            throw e;
+        } catch (IOException e) {
+            instance.recordFailure(e);
+            throw e;
+        }
+        try {
+            session.command("INSTREAM");
+        } catch (IOException e) {
+            instance.releaseInstream(session, false);
+            instance.recordFailure(e);
+            throw e;
+        }
+        return new InstreamScan(instance, session);
+    }
+
+    /**
+     * Scan INSTREAM dont le contenu est fourni bloc par bloc (ex : pendant la réception d'un dépot),
+     * sans relecture ultérieure du contenu. Non rejouable : en cas d'échec, l'appelant doit scanner autrement.
+     */
+    public class InstreamScan implements Closeable {
+        private final ClamdInstance instance;
+        private final ClamdSession session;
+        private boolean completed;
+        private boolean closed;
+
+        private InstreamScan(ClamdInstance instance, ClamdSession session) {
+            this.instance = instance;
+            this.session = session;
+        }
+
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                for (int position = 0; position < length; position += chunkSize) {
+                    session.writeChunk(buffer, offset + position, Math.min(chunkSize, length - position));
+                }
+            } catch (IOException e) {
+                instance.recordFailure(e);
+                throw e;
+            }
+        }
+
+        /**
+         * Fin du contenu et lecture du résultat du scan
+         */
+        public ScanResult finish() throws IOException {
+            try {
+                // Bloc de taille nulle : fin du flux
+                session.out.writeInt(0);
+                ScanResult result = ScanResult.parse(session.readReply());
+                completed = true;
+                instance.recordSuccess();
+                return countResult(result);
+            } catch (ClamdErrorException e) {
+                throw e;
+            } catch (IOException e) {
+                instance.recordFailure(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // Une session interrompue au milieu d'un INSTREAM n'est pas réutilisable
+            instance.releaseInstream(session, completed);
+        }
+    }
+
+    private ScanResult countResult(ScanResult result) {
+        scans.incrementAndGet();
+        if (!result.isClean()) {
+            infected.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * @return réponse de clamd à la commande VERSION (ex : "ClamAV 0.100.0/24593/Tue Jun 12 08:00:00 2018")
+     * @throws IOException aucun démon n'a pu répondre
+     */
+    public String getVersion() throws IOException {
+        return execute(session -> {
+            session.command("VERSION");
+            return session.readReply();
+        }, Math.max(2, instances.size()));
+    }
+
+    /**
+     * Health-check périodique : PING de chaque démon sur une connexion dédiée, fermeture des sessions inactives
+     * trop anciennes. Un démon qui répond à nouveau est réintégré (fermeture du disjoncteur).
+     */
+    @Scheduled(fixedDelayString = "${clamav.healthCheck.intervalMs:10000}")
+    public void healthCheck() {
+        for (ClamdInstance instance : instances) {
+            instance.closeIdleSessions(true);
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(instance.host, instance.port), connectTimeoutMs);
+                socket.setSoTimeout(connectTimeoutMs);
+                socket.getOutputStream().write("zPING\0".getBytes(StandardCharsets.US_ASCII));
+                socket.getOutputStream().flush();
+                byte[] reply = new byte[16];
+                int count = socket.getInputStream().read(reply);
+                if (count > 0 && new String(reply, 0, count, StandardCharsets.US_ASCII).startsWith("PONG")) {
+                    if (!instance.isAvailable() || instance.consecutiveFailures.get() > 0) {
+                        log.info(String.format("Démon clamd %s de nouveau disponible", instance));
+                    }
+                    instance.recordSuccess();
+                } else {
+                    instance.recordFailure(new IOException("Réponse inattendue au PING"));
+                }
+            } catch (IOException e) {
+                instance.recordFailure(e);
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "Etat des démons clamd (disponibilité, sessions inactives)")
+    public String[] getInstances() {
+        String[] states = new String[instances.size()];
+        for (int i = 0; i < instances.size(); i++) {
+            ClamdInstance instance = instances.get(i);
+            states[i] = String.format("%s available=%s consecutiveFailures=%d idleSessions=%d",
+                    instance, instance.isAvailable(), instance.consecutiveFailures.get(), instance.idleSessions.size());
+        }
+        return states;
+    }
+
+    @ManagedAttribute(description = "Nombre de scans effectués")
+    public long getScans() {
+        return scans.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de contenus infectés détectés")
+    public long getInfected() {
+        return infected.get();
+    }
+
+    @ManagedAttribute(description = "Nombre d'échecs de communication avec clamd")
+    public long getFailures() {
+        return failures.get();
+    }
+}
@@ -0,0 +1,813 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.exceptions.NotFound404Exception;
+import com.iorga.cig.bs.FileStorageManager.exceptions.ServerError500Exception;
+import com.iorga.cig.bs.FileStorageManager.models.BSFile;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipException;
+
+/**
+ * Contrôle de cohérence entre la base et le NAS, en deux phases :
+ * <ul>
+ * <li>parcours de bsfile_information par id croissant (lots de scrubber.batchSize) : existence et taille du fichier
+ * de données, existence du header et, si demandé, hash du contenu ;</li>
+ * <li>parcours des répertoires de nas.active.rootdir, nas.archived.rootdir et nas.header.rootdir (jour par jour) :
+ * fichiers de données et headers sans informations en base (orphelins).</li>
+ * </ul>
+ * Les fichiers d'un lot ou d'un répertoire du jour sont contrôlés en parallèle (pool fork-join de scrubber.parallelism
+ * threads), aux débits maximaux scrubber.filesPerSecond et scrubber.bytesPerSecond (relecture des contenus).
+ * <p>
+ * Les anomalies sont écrites dans un rapport (report-AAAAMMJJ-HHMMSS.csv du répertoire scrubber.workDir) et, si
+ * demandé, réparées : header réécrit, fichier marqué CORRUPTED (données absentes ou altérées), fichier orphelin
+ * déplacé dans scrubber.orphanDir. L'avancement est sauvegardé après chaque lot et chaque répertoire du jour
+ * (scrubber.state) : un contrôle interrompu (arrêt, redémarrage) reprend où il s'était arrêté.
+ */
+@Service
+@Lazy(false)
+@ManagedResource(objectName = "bsfm:name=ConsistencyScrubber")
+public class ConsistencyScrubber {
+
+    public enum Issue {
+        MISSING_DATA,
+        SIZE_MISMATCH,
+        HASH_MISMATCH,
+        MISSING_HEADER,
+        ORPHAN_DATA,
+        ORPHAN_HEADER
+    }
+
+    private enum Phase {
+        DATABASE,
+        FILES,
+        DONE
+    }
+
+    /**
+     * Statuts des fichiers non contrôlés : contenu en quarantaine, ou déjà signalé altéré
+     */
+    private static final Set<Integer> EXCLUDED_STATUSES = new HashSet<>();
+
+    private static final Pattern STORAGE_NAME = Pattern.compile("[0-9A-F]{64}");
+    private static final Pattern YEAR_DIR = Pattern.compile("\\d{4}");
+    private static final Pattern MONTH_OR_DAY_DIR = Pattern.compile("\\d{2}");
+
+    private static final String HEADER_EXT = ".bsfh";
+    private static final String STATE_FILE = "scrubber.state";
+
+    /**
+     * Nombre maximal de fichiers contrôlés par tâche (au-delà, la tâche est divisée)
+     */
+    private static final int TASK_MAX_FILES = 64;
+
+    static {
+        EXCLUDED_STATUSES.add(BSFile.Status.PENDING_SCAN.value());
+        EXCLUDED_STATUSES.add(BSFile.Status.CORRUPTED.value());
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${scrubber.enabled:false}")
+    private volatile boolean enabled;
+
+    @Value("${scrubber.runIntervalHours:168}")
+    private volatile long runIntervalHours;
+
+    @Value("${scrubber.verifyHash:false}")
+    private boolean defaultVerifyHash;
+
+    @Value("${scrubber.repair:false}")
+    private boolean defaultRepair;
+
+    @Value("${scrubber.parallelism:4}")
+    private int parallelism;
+
+    @Value("${scrubber.batchSize:500}")
+    private int batchSize;
+
+    @Value("${scrubber.filesPerSecond:200}")
+    private long filesPerSecond;
+
+    @Value("${scrubber.bytesPerSecond:20971520}")
+    private long bytesPerSecond;
+
+    /**
+     * Age minimal (minutes) d'un fichier sans informations en base pour être considéré orphelin (dépot en cours)
+     */
+    @Value("${scrubber.orphanMinAgeMinutes:1440}")
+    private volatile long orphanMinAgeMinutes;
+
+    @Value("${scrubber.workDir:${nas.active.rootdir}/.scrubber}")
+    private String workDir;
+
+    @Value("${scrubber.orphanDir:${scrubber.workDir:${nas.active.rootdir}/.scrubber}/orphans}")
+    private String orphanDir;
+
+    @Value("${nas.active.rootdir}")
+    private String nasActiveRootdir;
+
+    @Value("${nas.archived.rootdir}")
+    private String nasArchivedRootdir;
+
+    @Value("${nas.header.rootdir}")
+    private String nasHeaderRootdir;
+
+    @Autowired
+    private IBSFileInformationRepository bsfiRepository;
+
+    @Autowired
+    private BSFileInformationCache fileInfosCache;
+
+    @Autowired
+    private Tools toolServices;
+
+    private ExecutorService runner;
+    private ForkJoinPool pool;
+    private IoRateLimiter filesLimiter;
+    private IoRateLimiter bytesLimiter;
+
+    /**
+     * Racines parcourues lors de la phase FILES (true pour un répertoire de headers)
+     */
+    private final Map<Path, Boolean> scannedRoots = new LinkedHashMap<>();
+
+    private volatile boolean running;
+    private volatile boolean stopRequested;
+
+    // Etat du contrôle courant (ou du dernier contrôle), sauvegardé dans scrubber.state
+    private volatile Phase phase;
+    private volatile boolean verifyHash;
+    private volatile boolean repair;
+    private volatile Path reportPath;
+    private volatile long lastId;
+    private volatile int rootIndex;
+    private volatile String lastDay;
+    private volatile Timestamp startDate;
+    private volatile Timestamp endDate;
+    private final AtomicLong checkedRows = new AtomicLong();
+    private final AtomicLong checkedFiles = new AtomicLong();
+    private final AtomicLong issues = new AtomicLong();
+    private final AtomicLong repaired = new AtomicLong();
+
+    private Writer report;
+
+    @PostConstruct
+    private void init() throws IOException {
+        runner = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "scrubber");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool = new ForkJoinPool(parallelism);
+        filesLimiter = new IoRateLimiter(filesPerSecond);
+        bytesLimiter = new IoRateLimiter(bytesPerSecond);
+
+        scannedRoots.put(Paths.get(nasActiveRootdir).toAbsolutePath().normalize(), false);
+        scannedRoots.putIfAbsent(Paths.get(nasArchivedRootdir).toAbsolutePath().normalize(), false);
+        scannedRoots.putIfAbsent(Paths.get(nasHeaderRootdir).toAbsolutePath().normalize(), true);
+
+        loadState();
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        stopRequested = true;
+        runner.shutdownNow();
+        pool.shutdownNow();
+    }
+
+    /**
+     * Lancement périodique (scrubber.runIntervalHours) et reprise d'un contrôle interrompu.
+     */
+    @Scheduled(fixedDelayString = "${scrubber.checkIntervalMs:60000}", initialDelayString = "${scrubber.checkIntervalMs:60000}")
+    public synchronized void checkSchedule() {
+        if (!enabled || running) {
+            return;
+        }
+        if (phase != null && phase != Phase.DONE) {
+            resume();
+        } else if (endDate == null || endDate.toLocalDateTime().plusHours(runIntervalHours).isBefore(LocalDateTime.now())) {
+            start(defaultVerifyHash, defaultRepair);
+        }
+    }
+
+    @ManagedOperation(description = "Lance un nouveau contrôle (l'avancement d'un contrôle interrompu est abandonné)")
+    public synchronized String start(boolean verifyHash, boolean repair) {
+        if (running) {
+            return "Contrôle déjà en cours";
+        }
+        this.verifyHash = verifyHash;
+        this.repair = repair;
+        phase = Phase.DATABASE;
+        lastId = 0;
+        rootIndex = 0;
+        lastDay = "";
+        startDate = new Timestamp(System.currentTimeMillis());
+        endDate = null;
+        checkedRows.set(0);
+        checkedFiles.set(0);
+        issues.set(0);
+        repaired.set(0);
+        reportPath = Paths.get(workDir, String.format("report-%s.csv", new SimpleDateFormat("yyyyMMdd-HHmmss").format(startDate)));
+        return launch();
+    }
+
+    @ManagedOperation(description = "Reprend le contrôle interrompu")
+    public synchronized String resume() {
+        if (running) {
+            return "Contrôle déjà en cours";
+        }
+        if (phase == null || phase == Phase.DONE) {
+            return "Aucun contrôle à reprendre";
+        }
+        return launch();
+    }
+
+    @ManagedOperation(description = "Interrompt le contrôle en cours (reprise possible)")
+    public void stop() {
+        stopRequested = true;
+    }
+
+    private String launch() {
+        running = true;
+        stopRequested = false;
+        runner.submit(this::run);
+        return String.format("Contrôle %s (rapport %s)", phase == Phase.DATABASE && lastId == 0 ? "lancé" : "repris", reportPath);
+    }
+
+    private void run() {
+        try {
+            Files.createDirectories(reportPath.getParent());
+            boolean newReport = !Files.exists(reportPath);
+            report = Files.newBufferedWriter(reportPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            if (newReport) {
+                report.write("date;issue;fileKey;path;detail;action\n");
+            }
+            log.info(String.format("Contrôle de cohérence %s depuis %s (lastId=%d, racine=%d, jour=%s)",
+                    verifyHash ? "avec vérification des hash" : "sans vérification des hash", phase, lastId, rootIndex, lastDay));
+
+            if (phase == Phase.DATABASE) {
+                scrubDatabase();
+            }
+            if (phase == Phase.FILES && !stopRequested) {
+                scrubFiles();
+            }
+            if (!stopRequested) {
+                phase = Phase.DONE;
+                endDate = new Timestamp(System.currentTimeMillis());
+                saveState();
+                log.info(String.format("Contrôle de cohérence terminé : %d fichiers en base, %d fichiers sur le NAS, %d anomalies, %d réparations (%s)",
+                        checkedRows.get(), checkedFiles.get(), issues.get(), repaired.get(), reportPath));
+            } else {
+                log.info("Contrôle de cohérence interrompu");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            log.error("Contrôle de cohérence interrompu par une erreur", e);
+        } finally {
+            closeReport();
+            running = false;
+        }
+    }
+
+    ///
+    /// Phase DATABASE : informations en base -> fichiers du NAS
+    ///
+
+    private void scrubDatabase() throws IOException, InterruptedException {
+        while (!stopRequested) {
+            List<BSFileInformation> batch = bsfiRepository.findFilesAfterId(lastId, new PageRequest(0, batchSize));
+            if (batch.isEmpty()) {
+                phase = Phase.FILES;
+                saveState();
+                return;
+            }
+            pool.invoke(new RowCheckTask(batch, 0, batch.size()));
+            if (stopRequested) {
+                return;
+            }
+            lastId = batch.get(batch.size() - 1).getId();
+            saveState();
+        }
+    }
+
+    private class RowCheckTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<BSFileInformation> rows;
+        private final int from;
+        private final int to;
+
+        RowCheckTask(List<BSFileInformation> rows, int from, int to) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > TASK_MAX_FILES) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RowCheckTask(rows, from, middle), new RowCheckTask(rows, middle, to));
+                return;
+            }
+            for (int i = from; i < to && !stopRequested; i++) {
+                try {
+                    checkRow(rows.get(i));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stopRequested = true;
+                } catch (RuntimeException e) {
+                    log.error(String.format("Contrôle du fichier %s impossible", rows.get(i).getFileKey()), e);
+                }
+            }
+        }
+    }
+
+    private void checkRow(BSFileInformation fileInfos) throws InterruptedException {
+        if (EXCLUDED_STATUSES.contains(fileInfos.getStatus())) {
+            return;
+        }
+        filesLimiter.acquire(1);
+        checkedRows.incrementAndGet();
+
+        try {
+            if (!toolServices.headerExists(fileInfos)) {
+                String action = null;
+                if (repair) {
+                    toolServices.repairHeader(fileInfos);
+                    action = "HEADER_REWRITTEN";
+                }
+                reportIssue(Issue.MISSING_HEADER, fileInfos.getFileKey(), null, null, action);
+            }
+        } catch (ServerError500Exception e) {
+            log.warn(String.format("Contrôle du header du fichier %s impossible", fileInfos.getFileKey()), e);
+        }
+
+        Path dataFilePathObj = toolServices.getStoredDataFilePath(fileInfos);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(dataFilePathObj, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            reportDataIssue(fileInfos, Issue.MISSING_DATA, dataFilePathObj, null);
+            return;
+        } catch (IOException e) {
+            log.warn(String.format("Lecture des attributs impossible (%s)", dataFilePathObj), e);
+            return;
+        }
+
+        // La taille d'un contenu compressé n'est contrôlée que par son hash
+        if (!Tools.isGzipEncoded(fileInfos) && fileInfos.getFileContentSize() != null && attrs.size() != fileInfos.getFileContentSize()) {
+            reportDataIssue(fileInfos, Issue.SIZE_MISMATCH, dataFilePathObj,
+                    String.format("%d octets au lieu de %d", attrs.size(), fileInfos.getFileContentSize()));
+            return;
+        }
+
+        if (verifyHash) {
+            bytesLimiter.acquire(attrs.size());
+            try {
+                String contentHash = toolServices.computeStoredContentSha256ToBase64(fileInfos, dataFilePathObj);
+                if (!contentHash.equals(fileInfos.getFileContentHash())) {
+                    reportDataIssue(fileInfos, Issue.HASH_MISMATCH, dataFilePathObj, contentHash);
+                }
+            } catch (NotFound404Exception e) {
+                reportDataIssue(fileInfos, Issue.MISSING_DATA, dataFilePathObj, null);
+            } catch (ServerError500Exception e) {
+                if (e.getCause() instanceof ZipException || e.getCause() instanceof EOFException) {
+                    // Contenu compressé illisible
+                    reportDataIssue(fileInfos, Issue.HASH_MISMATCH, dataFilePathObj, e.getCause().toString());
+                } else {
+                    log.warn(String.format("Calcul du hash impossible (%s)", dataFilePathObj), e);
+                }
+            } catch (NoSuchAlgorithmException e) {
+                log.warn(String.format("Calcul du hash impossible (%s)", dataFilePathObj), e);
+            }
+        }
+    }
+
+    /**
+     * Signalement d'un fichier de données absent ou altéré, marqué CORRUPTED si la réparation est demandée
+     * (les fichiers supprimés ou infectés conservent leur statut).
+     */
+    private void reportDataIssue(BSFileInformation fileInfos, Issue issue, Path dataFilePathObj, String detail) {
+        String action = null;
+        if (repair && fileInfos.getStatus() >= 0) {
+            String statusLinkedData = issue == Issue.MISSING_DATA
+                    ? "Le fichier de données est absent."
+                    : "Le contenu du fichier n'est pas cohérent (modification non controlée).";
+            bsfiRepository.updateStatus(fileInfos.getId(), BSFile.Status.CORRUPTED.value(), statusLinkedData);
+            fileInfosCache.invalidate(fileInfos.getFileKey());
+            action = "MARKED_CORRUPTED";
+        }
+        reportIssue(issue, fileInfos.getFileKey(), dataFilePathObj, detail, action);
+    }
+
+    ///
+    /// Phase FILES : fichiers du NAS -> informations en base
+    ///
+
+    private void scrubFiles() throws IOException {
+        List<Map.Entry<Path, Boolean>> roots = new ArrayList<>(scannedRoots.entrySet());
+        for (; rootIndex < roots.size() && !stopRequested; rootIndex++, lastDay = "") {
+            Path rootDir = roots.get(rootIndex).getKey();
+            boolean headers = roots.get(rootIndex).getValue();
+            for (Path dayDir : listDayDirectories(rootDir)) {
+                String day = rootDir.relativize(dayDir).toString();
+                if (day.compareTo(lastDay) <= 0) {
+                    continue;
+                }
+                pool.invoke(new DirectoryCheckTask(dayDir, headers));
+                if (stopRequested) {
+                    return;
+                }
+                lastDay = day;
+                saveState();
+            }
+        }
+    }
+
+    /**
+     * @return répertoires du jour (rootDir/AAAA/MM/JJ) d'une racine, triés
+     */
+    private static List<Path> listDayDirectories(Path rootDir) throws IOException {
+        List<Path> dayDirs = new ArrayList<>();
+        if (!Files.isDirectory(rootDir)) {
+            return dayDirs;
+        }
+        for (Path yearDir : listDirectories(rootDir, YEAR_DIR)) {
+            for (Path monthDir : listDirectories(yearDir, MONTH_OR_DAY_DIR)) {
+                dayDirs.addAll(listDirectories(monthDir, MONTH_OR_DAY_DIR));
+            }
+        }
+        return dayDirs;
+    }
+
+    private static List<Path> listDirectories(Path dir, Pattern namePattern) throws IOException {
+        try (Stream<Path> entries = Files.list(dir)) {
+            return entries.filter(entry -> namePattern.matcher(entry.getFileName().toString()).matches() && Files.isDirectory(entry))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Contrôle d'un répertoire : ses fichiers par paquets, ses sous-répertoires de répartition en parallèle.
+     */
+    private class DirectoryCheckTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final boolean headers;
+
+        DirectoryCheckTask(Path dir, boolean headers) {
+            this.dir = dir;
+            this.headers = headers;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryCheckTask> subTasks = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> entries = Files.list(dir)) {
+                entries.forEach(entry -> {
+                    if (Files.isDirectory(entry)) {
+                        if (!entry.getFileName().toString().startsWith(".")) {
+                            subTasks.add(new DirectoryCheckTask(entry, headers));
+                        }
+                    } else {
+                        files.add(entry);
+                    }
+                });
+            } catch (IOException e) {
+                log.warn(String.format("Lecture du répertoire impossible (%s)", dir), e);
+                return;
+            }
+            try {
+                for (int from = 0; from < files.size() && !stopRequested; from += TASK_MAX_FILES) {
+                    checkFiles(files.subList(from, Math.min(files.size(), from + TASK_MAX_FILES)), headers);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopRequested = true;
+            } catch (RuntimeException e) {
+                log.error(String.format("Contrôle du répertoire impossible (%s)", dir), e);
+            }
+            invokeAll(subTasks);
+        }
+    }
+
+    private void checkFiles(List<Path> files, boolean headers) throws InterruptedException {
+        filesLimiter.acquire(files.size());
+        Map<String, Path> filesByName = new LinkedHashMap<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (headers) {
+                if (!name.endsWith(HEADER_EXT)) {
+                    continue;
+                }
+                name = name.substring(0, name.length() - HEADER_EXT.length());
+            }
+            if (STORAGE_NAME.matcher(name).matches()) {
+                filesByName.put(name, file);
+            }
+        }
+        if (filesByName.isEmpty()) {
+            return;
+        }
+        checkedFiles.addAndGet(filesByName.size());
+
+        filesByName.keySet().removeAll(bsfiRepository.findExistingStorageHashedFileNames(filesByName.keySet()));
+        long minModifiedTime = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(orphanMinAgeMinutes);
+        for (Path file : filesByName.values()) {
+            try {
+                if (Files.getLastModifiedTime(file).toMillis() > minModifiedTime) {
+                    // Dépot possiblement en cours
+                    continue;
+                }
+                String action = null;
+                if (repair) {
+                    action = "MOVED:" + moveOrphan(file);
+                }
+                reportIssue(headers ? Issue.ORPHAN_HEADER : Issue.ORPHAN_DATA, null, file, null, action);
+            } catch (NoSuchFileException e) {
+                // Fichier supprimé entre-temps
+            } catch (IOException e) {
+                log.warn(String.format("Traitement du fichier orphelin impossible (%s)", file), e);
+            }
+        }
+    }
+
+    /**
+     * Déplacement d'un fichier orphelin dans scrubber.orphanDir, sous son chemin relatif à sa racine.
+     * Un orphelin déjà déplacé sous le même chemin (exécution précédente, même nom sur une autre racine) n'est jamais
+     * remplacé : le nom est alors suffixé par la date du déplacement.
+     */
+    private Path moveOrphan(Path file) throws IOException {
+        Path absoluteFile = file.toAbsolutePath().normalize();
+        Path relativePath = absoluteFile.getFileName();
+        for (Path rootDir : scannedRoots.keySet()) {
+            if (absoluteFile.startsWith(rootDir)) {
+                relativePath = Paths.get(rootDir.getFileName().toString()).resolve(rootDir.relativize(absoluteFile));
+                break;
+            }
+        }
+        Path target = Paths.get(orphanDir).resolve(relativePath);
+        Files.createDirectories(target.getParent());
+        String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Timestamp(System.currentTimeMillis()));
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return Files.move(file, target);
+            } catch (FileAlreadyExistsException e) {
+                target = target.resolveSibling(String.format("%s.%s%s", relativePath.getFileName(), suffix,
+                        attempt > 0 ? "-" + attempt : ""));
+            }
+        }
+    }
+
+    ///
+    /// Rapport et avancement
+    ///
+
+    private void reportIssue(Issue issue, String fileKey, Path path, String detail, String action) {
+        issues.incrementAndGet();
+        if (action != null) {
+            repaired.incrementAndGet();
+        }
+        log.warn(String.format("Anomalie %s : %s %s %s", issue, fileKey != null ? fileKey : "", path != null ? path : "", detail != null ? detail : ""));
+        String line = String.join(";", new Timestamp(System.currentTimeMillis()).toString(), issue.name(),
+                fileKey != null ? fileKey : "", path != null ? path.toString() : "", detail != null ? detail : "",
+                action != null ? action : "") + "\n";
+        synchronized (this) {
+            try {
+                report.write(line);
+            } catch (IOException e) {
+                log.error("Ecriture du rapport impossible", e);
+            }
+        }
+    }
+
+    private synchronized void closeReport() {
+        if (report != null) {
+            try {
+                report.close();
+            } catch (IOException e) {
+                log.warn("Fermeture du rapport impossible", e);
+            }
+            report = null;
+        }
+    }
+
+    /**
+     * Sauvegarde de l'avancement (après l'écriture des anomalies correspondantes dans le rapport).
+     */
+    private void saveState() throws IOException {
+        synchronized (this) {
+            report.flush();
+        }
+        Properties state = new Properties();
+        state.setProperty("phase", phase.name());
+        state.setProperty("verifyHash", Boolean.toString(verifyHash));
+        state.setProperty("repair", Boolean.toString(repair));
+        state.setProperty("report", reportPath.toString());
+        state.setProperty("lastId", Long.toString(lastId));
+        state.setProperty("rootIndex", Integer.toString(rootIndex));
+        state.setProperty("lastDay", lastDay);
+        state.setProperty("startDate", Long.toString(startDate.getTime()));
+        if (endDate != null) {
+            state.setProperty("endDate", Long.toString(endDate.getTime()));
+        }
+        state.setProperty("checkedRows", Long.toString(checkedRows.get()));
+        state.setProperty("checkedFiles", Long.toString(checkedFiles.get()));
+        state.setProperty("issues", Long.toString(issues.get()));
+        state.setProperty("repaired", Long.toString(repaired.get()));
+
+        Path statePath = Paths.get(workDir, STATE_FILE);
+        Path tempPath = statePath.resolveSibling(STATE_FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tempPath)) {
+            state.store(out, "Avancement du contrôle de cohérence");
+        }
+        Files.move(tempPath, statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void loadState() throws IOException {
+        Path statePath = Paths.get(workDir, STATE_FILE);
+        if (!Files.exists(statePath)) {
+            return;
+        }
+        Properties state = new Properties();
+        try (InputStream in = Files.newInputStream(statePath)) {
+            state.load(in);
+        }
+        try {
+            phase = Phase.valueOf(state.getProperty("phase"));
+            verifyHash = Boolean.parseBoolean(state.getProperty("verifyHash"));
+            repair = Boolean.parseBoolean(state.getProperty("repair"));
+            reportPath = Paths.get(state.getProperty("report"));
+            lastId = Long.parseLong(state.getProperty("lastId"));
+            rootIndex = Integer.parseInt(state.getProperty("rootIndex"));
+            lastDay = state.getProperty("lastDay");
+            startDate = new Timestamp(Long.parseLong(state.getProperty("startDate")));
+            endDate = state.getProperty("endDate") != null ? new Timestamp(Long.parseLong(state.getProperty("endDate"))) : null;
+            checkedRows.set(Long.parseLong(state.getProperty("checkedRows")));
+            checkedFiles.set(Long.parseLong(state.getProperty("checkedFiles")));
+            issues.set(Long.parseLong(state.getProperty("issues")));
+            repaired.set(Long.parseLong(state.getProperty("repaired")));
+        } catch (RuntimeException e) {
+            log.warn(String.format("Avancement du contrôle de cohérence illisible, ignoré (%s)", statePath), e);
+            phase = null;
+        }
+    }
+
+    @ManagedAttribute(description = "Lancement périodique et reprise automatique des contrôles")
+    public boolean getEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @ManagedAttribute(description = "Contrôle en cours")
+    public boolean getRunning() {
+        return running;
+    }
+
+    @ManagedAttribute(description = "Phase du contrôle courant (DATABASE, FILES, DONE)")
+    public String getPhase() {
+        return phase != null ? phase.name() : null;
+    }
+
+    @ManagedAttribute(description = "Vérification des hash des contenus")
+    public boolean getVerifyHash() {
+        return verifyHash;
+    }
+
+    @ManagedAttribute(description = "Réparation des anomalies")
+    public boolean getRepair() {
+        return repair;
+    }
+
+    @ManagedAttribute(description = "Id du dernier fichier contrôlé (phase DATABASE)")
+    public long getLastId() {
+        return lastId;
+    }
+
+    @ManagedAttribute(description = "Dernier répertoire du jour contrôlé (phase FILES)")
+    public String getLastDay() {
+        return lastDay;
+    }
+
+    @ManagedAttribute(description = "Rapport du contrôle courant")
+    public String getReport() {
+        return reportPath != null ? reportPath.toString() : null;
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers contrôlés (phase DATABASE)")
+    public long getCheckedRows() {
+        return checkedRows.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers contrôlés (phase FILES)")
+    public long getCheckedFiles() {
+        return checkedFiles.get();
+    }
+
+    @ManagedAttribute(description = "Nombre d'anomalies")
+    public long getIssues() {
+        return issues.get();
+    }
+
+    @ManagedAttribute(description = "Nombre d'anomalies réparées")
+    public long getRepaired() {
+        return repaired.get();
+    }
+
+    @ManagedAttribute(description = "Date de début du contrôle courant")
+    public String getStartDate() {
+        return startDate != null ? startDate.toString() : null;
+    }
+
+    @ManagedAttribute(description = "Date de fin du dernier contrôle")
+    public String getEndDate() {
+        return endDate != null ? endDate.toString() : null;
+    }
+
+    @ManagedAttribute(description = "Débit maximal (fichiers/seconde, 0 = illimité)")
+    public long getFilesPerSecond() {
+        return filesLimiter.getPermitsPerSecond();
+    }
+
+    @ManagedAttribute
+    public void setFilesPerSecond(long filesPerSecond) {
+        filesLimiter.setPermitsPerSecond(filesPerSecond);
+    }
+
+    @ManagedAttribute(description = "Débit maximal de relecture des contenus (octets/seconde, 0 = illimité)")
+    public long getBytesPerSecond() {
+        return bytesLimiter.getPermitsPerSecond();
+    }
+
+    @ManagedAttribute
+    public void setBytesPerSecond(long bytesPerSecond) {
+        bytesLimiter.setPermitsPerSecond(bytesPerSecond);
+    }
+
+    @ManagedAttribute(description = "Age minimal (minutes) d'un fichier orphelin")
+    public long getOrphanMinAgeMinutes() {
+        return orphanMinAgeMinutes;
+    }
+
+    @ManagedAttribute
+    public void setOrphanMinAgeMinutes(long orphanMinAgeMinutes) {
+        this.orphanMinAgeMinutes = orphanMinAgeMinutes;
+    }
+}
@@ -0,0 +1,77 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mémorisation des téléchargements (utilisée pour prioriser le rescan antivirus des fichiers les plus demandés).
+ * Les accès sont accumulés en mémoire et reportés en base par lots (last_access_date), jamais dans le chemin de téléchargement.
+ */
+@Service
+@Lazy(false)
+public class DownloadAccessTracker {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${antivirus.rescan.accessFlushBatchSize:500}")
+    private int flushBatchSize;
+
+    @Autowired
+    private IBSFileInformationRepository bsfiRepository;
+
+    /**
+     * Identifiants téléchargés depuis le dernier report en base. Chaque identifiant est retiré de l'ensemble
+     * avant d'être reporté : un accès enregistré pendant le report est conservé pour le report suivant,
+     * de même que les identifiants d'un lot dont le report a échoué.
+     */
+    private final Set<Long> accessedIds = ConcurrentHashMap.newKeySet();
+
+    public void recordAccess(BSFileInformation fileInfos) {
+        if (fileInfos.getId() != null) {
+            accessedIds.add(fileInfos.getId());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${antivirus.rescan.accessFlushIntervalMs:30000}")
+    @PreDestroy
+    public void flush() {
+        if (accessedIds.isEmpty()) {
+            return;
+        }
+
+        Timestamp accessDate = new Timestamp(System.currentTimeMillis());
+        List<Long> batch = new ArrayList<>(flushBatchSize);
+        try {
+            for (Iterator<Long> ids = accessedIds.iterator(); ids.hasNext(); ) {
+                batch.add(ids.next());
+                ids.remove();
+                if (batch.size() >= flushBatchSize) {
+                    bsfiRepository.updateLastAccessDate(batch, accessDate);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                bsfiRepository.updateLastAccessDate(batch, accessDate);
+            }
+        } catch (DataAccessException e) {
+            // Lot en échec conservé pour le report suivant (les identifiants non encore parcourus n'ont pas été retirés)
+            accessedIds.addAll(batch);
+            log.warn("Impossible d'enregistrer les dates de dernier téléchargement", e);
+        }
+    }
+}
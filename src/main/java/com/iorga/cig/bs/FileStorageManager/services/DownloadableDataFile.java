@@ -0,0 +1,60 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Fichier de données résolu pour un téléchargement (cf. {@link Tools#getDataFileForDownload}).
+ * Pour les gros fichiers, la vérification d'intégrité peut être différée et effectuée pendant le transfert.
+ * Un contenu stocké compressé (gzip) n'est jamais vérifié en différé.
+ */
+public class DownloadableDataFile {
+
+    private final Path path;
+    private final BasicFileAttributes attributes;
+    private final boolean integrityCheckDeferred;
+    private final boolean gzipEncoded;
+
+    DownloadableDataFile(Path path, BasicFileAttributes attributes, boolean integrityCheckDeferred, boolean gzipEncoded) {
+        this.path = path;
+        this.attributes = attributes;
+        this.integrityCheckDeferred = integrityCheckDeferred;
+        this.gzipEncoded = gzipEncoded;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return attributs du fichier lus avant toute vérification
+     */
+    public BasicFileAttributes getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return true si le hash du contenu doit être vérifié pendant le transfert (cf. {@link Tools#confirmStreamedIntegrity})
+     */
+    public boolean isIntegrityCheckDeferred() {
+        return integrityCheckDeferred;
+    }
+
+    /**
+     * @return true si le fichier contient le contenu compressé (gzip) et non le contenu d'origine
+     */
+    public boolean isGzipEncoded() {
+        return gzipEncoded;
+    }
+
+    /**
+     * @return flux du contenu d'origine (décompressé à la volée si nécessaire), à fermer par l'appelant
+     * @throws IOException
+     */
+    public InputStream openContentStream() throws IOException {
+        return Tools.openContentStream(path, gzipEncoded);
+    }
+}
@@ -0,0 +1,332 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StringUtils;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Transfert du contenu d'un fichier du NAS vers le client HTTP sans passer par la heap de la JVM.
+ * Si le connecteur Tomcat le permet, le transfert est délégué au sendfile du système (zero-copy),
+ * sinon il est effectué via {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ * Les requêtes partielles (header Range, simple ou multiple) sont servies directement depuis le fichier.
+ * Pour les gros fichiers, le contrôle d'intégrité peut être effectué pendant le transfert (cf. {@link #sendFileVerifying}).
+ * Un contenu stocké compressé est transmis tel quel aux clients acceptant gzip, décompressé à la volée pour les autres
+ * (cf. {@link #sendDecompressed}).
+ */
+@Service
+public class FileContentSender {
+
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_FILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_FILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    /**
+     * Nombre maximal de plages acceptées dans un même header Range (protection contre les requêtes abusives)
+     */
+    private static final int MAX_RANGES = 32;
+
+    private static final String CRLF = "\r\n";
+
+    private static final int STREAMING_BUFFER_SIZE = 64 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private StorageMetrics storageMetrics;
+
+    /**
+     * Envoie le fichier comme corps de la réponse, en totalité ou partiellement si la requête comporte un header
+     * Range valide (et un éventuel If-Range correspondant à l'ETag courant).
+     * Les headers (type, disposition, cache, ETag...) doivent avoir été positionnés avant l'appel.
+     *
+     * @param filePathObj fichier à transférer
+     * @param etag        ETag courant du contenu (validateur fort utilisé pour If-Range)
+     * @param request     requête HTTP (utilisée pour la délégation sendfile)
+     * @param response    réponse HTTP
+     * @throws IOException
+     */
+    public void sendFile(Path filePathObj, String etag, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try (FileChannel channel = FileChannel.open(filePathObj, StandardOpenOption.READ)) {
+            long length = channel.size();
+            response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+            List<long[]> ranges = getRequestedRanges(request, etag, length);
+            if (ranges == null) {
+                response.setContentLengthLong(length);
+                sendRange(filePathObj, channel, 0, length, request, response);
+            } else if (ranges.isEmpty()) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            } else if (ranges.size() == 1) {
+                long[] range = ranges.get(0);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(range, length));
+                response.setContentLengthLong(range[1] - range[0] + 1);
+                sendRange(filePathObj, channel, range[0], range[1] + 1, request, response);
+            } else {
+                sendMultipleRanges(channel, ranges, length, response);
+            }
+        }
+    }
+
+    /**
+     * Envoie l'intégralité du fichier en calculant son SHA-256 au fil du transfert.
+     * Le dernier bloc n'est émis qu'après comparaison du hash complet avec le hash attendu : en cas d'incohérence,
+     * le client ne reçoit jamais une réponse complète (l'appelant doit alors interrompre la connexion).
+     * Ce mode n'est pas compatible avec sendfile ni avec les requêtes partielles.
+     *
+     * @param filePathObj  fichier à transférer
+     * @param expectedHash hash SHA-256 attendu (base64)
+     * @param response     réponse HTTP
+     * @return true si le contenu transféré correspond au hash attendu
+     * @throws IOException
+     */
+    public boolean sendFileVerifying(Path filePathObj, String expectedHash, HttpServletResponse response) throws IOException {
+        MessageDigest digester;
+        try {
+            digester = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA256 non supporté.", e);
+        }
+
+        try (FileChannel channel = FileChannel.open(filePathObj, StandardOpenOption.READ)) {
+            long length = channel.size();
+            response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+            response.setContentLengthLong(length);
+            WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(STREAMING_BUFFER_SIZE);
+            long position = 0;
+            while (position < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - position));
+                int count = channel.read(buffer, position);
+                if (count < 0) {
+                    // Fichier tronqué depuis le début du transfert
+                    return false;
+                }
+                position += count;
+                buffer.flip();
+                buffer.mark();
+                digester.update(buffer);
+                buffer.reset();
+
+                if (position >= length && !Base64.getEncoder().encodeToString(digester.digest()).equals(expectedHash)) {
+                    // Le dernier bloc n'est pas envoyé
+                    return false;
+                }
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+            storageMetrics.recordBytes(StorageMetrics.Direction.DOWNLOAD, length);
+            return length > 0 || Base64.getEncoder().encodeToString(digester.digest()).equals(expectedHash);
+        }
+    }
+
+    /**
+     * Envoie l'intégralité du contenu d'origine d'un fichier stocké compressé (gzip), décompressé à la volée,
+     * pour un client n'acceptant pas gzip. Les requêtes partielles ne sont pas prises en charge (header Range ignoré).
+     *
+     * @param filePathObj fichier compressé à transférer
+     * @param length      taille du contenu d'origine
+     * @param response    réponse HTTP
+     * @throws IOException
+     */
+    public void sendDecompressed(Path filePathObj, long length, HttpServletResponse response) throws IOException {
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "none");
+        response.setContentLengthLong(length);
+        ServletOutputStream out = response.getOutputStream();
+        byte[] buffer = new byte[STREAMING_BUFFER_SIZE];
+        long transferred = 0;
+        try (InputStream in = Tools.openContentStream(filePathObj, true)) {
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                transferred += count;
+                if (transferred > length) {
+                    break;
+                }
+                out.write(buffer, 0, count);
+            }
+        }
+        storageMetrics.recordBytes(StorageMetrics.Direction.DOWNLOAD, transferred);
+        if (transferred != length) {
+            log.warn("La taille du contenu décompressé ne correspond pas à la taille attendue");
+            throw new IOException("La taille du contenu décompressé ne correspond pas à la taille attendue");
+        }
+    }
+
+    /**
+     * @return true si le client accepte un contenu encodé gzip (header Accept-Encoding, qvalue non nulle)
+     */
+    public static boolean acceptsGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (!StringUtils.hasText(acceptEncoding)) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            if (!"gzip".equalsIgnoreCase(name) && !"x-gzip".equalsIgnoreCase(name) && !"*".equals(name)) {
+                continue;
+            }
+            double quality = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            return quality > 0;
+        }
+        return false;
+    }
+
+    /**
+     * Analyse des headers Range / If-Range
+     *
+     * @return null si le contenu doit être envoyé en totalité, une liste vide si aucune plage n'est satisfiable,
+     * sinon la liste des plages [début, fin] (bornes incluses) à envoyer.
+     */
+    private List<long[]> getRequestedRanges(HttpServletRequest request, String etag, long length) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (!StringUtils.hasText(rangeHeader)) {
+            return null;
+        }
+
+        // If-Range : la requête partielle n'est honorée que si le contenu n'a pas changé (comparaison forte de l'ETag)
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange != null && (etag == null || !ifRange.trim().equals(etag))) {
+            return null;
+        }
+
+        List<HttpRange> httpRanges;
+        try {
+            httpRanges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            // Header syntaxiquement invalide : il est ignoré (RFC 7233)
+            log.debug(String.format("Header Range invalide ignoré (%s)", rangeHeader));
+            return null;
+        }
+        if (httpRanges.size() > MAX_RANGES) {
+            log.warn(String.format("Trop de plages demandées (%d), contenu envoyé en totalité", httpRanges.size()));
+            return null;
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        for (HttpRange httpRange : httpRanges) {
+            if (length == 0) {
+                continue;
+            }
+            long start = httpRange.getRangeStart(length);
+            long end = httpRange.getRangeEnd(length);
+            if (start < length && start <= end) {
+                ranges.add(new long[]{start, end});
+            }
+        }
+        return ranges;
+    }
+
+    private static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    /**
+     * Envoi d'une portion [start, end[ du fichier comme corps de la réponse (sendfile si possible).
+     */
+    private void sendRange(Path filePathObj, FileChannel channel, long start, long end,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+        storageMetrics.recordBytes(StorageMetrics.Direction.DOWNLOAD, end - start);
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+            // Le connecteur se charge du transfert une fois la requête terminée
+            request.setAttribute(SENDFILE_FILENAME_ATTR, filePathObj.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_FILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_FILE_END_ATTR, end);
+            return;
+        }
+        transfer(channel, start, end - start, Channels.newChannel(response.getOutputStream()));
+    }
+
+    /**
+     * Réponse multipart/byteranges : chaque plage est transférée directement depuis le fichier,
+     * précédée de son entête de partie.
+     */
+    private void sendMultipleRanges(FileChannel channel, List<long[]> ranges, long length, HttpServletResponse response) throws IOException {
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        String contentType = response.getContentType();
+
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (long[] range : ranges) {
+            StringBuilder partHeader = new StringBuilder()
+                    .append(CRLF).append("--").append(boundary).append(CRLF);
+            if (contentType != null) {
+                partHeader.append(HttpHeaders.CONTENT_TYPE).append(": ").append(contentType).append(CRLF);
+            }
+            partHeader.append(HttpHeaders.CONTENT_RANGE).append(": ").append(contentRange(range, length)).append(CRLF)
+                    .append(CRLF);
+            byte[] partHeaderBytes = partHeader.toString().getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeaderBytes);
+            contentLength += partHeaderBytes.length + (range[1] - range[0] + 1);
+        }
+        byte[] closeDelimiter = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+        contentLength += closeDelimiter.length;
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+
+        ServletOutputStream out = response.getOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            out.write(partHeaders.get(i));
+            transfer(channel, range[0], range[1] - range[0] + 1, target);
+        }
+        out.write(closeDelimiter);
+        storageMetrics.recordBytes(StorageMetrics.Direction.DOWNLOAD, contentLength);
+    }
+
+    /**
+     * Transfère une portion du fichier vers le canal de sortie.
+     */
+    private void transfer(FileChannel channel, long position, long count, WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long n = channel.transferTo(position + transferred, count - transferred, target);
+            if (n <= 0) {
+                log.warn("Le fichier a été tronqué durant le transfert");
+                throw new IOException("Le fichier a été tronqué durant le transfert");
+            }
+            transferred += n;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Synchronisation durable (fsync) groupée des fichiers écrits par les dépots concurrents.
+ * Les demandes reçues pendant la synchronisation d'un lot constituent le lot suivant : chaque fichier (ou répertoire)
+ * commun à plusieurs demandes d'un même lot (segment de journal, répertoire du jour...) n'est synchronisé qu'une fois,
+ * et les fichiers d'un lot sont synchronisés en parallèle.
+ */
+@Service
+@ManagedResource(objectName = "bsfm:name=GroupCommitSyncer")
+public class GroupCommitSyncer {
+
+    private final static boolean isWindowsHost = System.getProperty("os.name").toLowerCase().startsWith("windows");
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Attente supplémentaire (ms) avant la synchronisation d'un lot, afin de grouper davantage de demandes
+     */
+    @Value("${storage.durability.groupCommitDelayMs:0}")
+    private long groupCommitDelayMs;
+
+    @Value("${storage.durability.syncThreads:8}")
+    private int syncThreads;
+
+    @Autowired
+    private StorageMetrics storageMetrics;
+
+    private final BlockingQueue<SyncRequest> queue = new LinkedBlockingQueue<>();
+
+    private ExecutorService syncPool;
+    private Thread committer;
+    private volatile boolean running;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong syncedPaths = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger threadCount = new AtomicInteger();
+        syncPool = Executors.newFixedThreadPool(syncThreads, runnable -> {
+            Thread thread = new Thread(runnable, "fsync-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        committer = new Thread(this::commitLoop, "group-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        running = false;
+        committer.interrupt();
+        syncPool.shutdown();
+    }
+
+    /**
+     * Synchronisation durable des fichiers et répertoires donnés. Rend la main une fois le lot contenant la demande
+     * synchronisé.
+     *
+     * @param paths fichiers et répertoires à synchroniser
+     * @throws IOException la synchronisation d'au moins un des chemins a échoué
+     */
+    public void sync(Collection<Path> paths) throws IOException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        SyncRequest request = new SyncRequest(new LinkedHashSet<>(paths));
+        requests.incrementAndGet();
+        storageMetrics.start(StorageMetrics.Stage.SYNC);
+        queue.add(request);
+        try {
+            request.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Synchronisation interrompue", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            storageMetrics.stop(StorageMetrics.Stage.SYNC);
+        }
+    }
+
+    private void commitLoop() {
+        List<SyncRequest> batch = new ArrayList<>();
+        while (running) {
+            try {
+                batch.add(queue.take());
+                if (groupCommitDelayMs > 0) {
+                    TimeUnit.MILLISECONDS.sleep(groupCommitDelayMs);
+                }
+                queue.drainTo(batch);
+                syncBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                log.error("Erreur inattendue durant la synchronisation d'un lot", e);
+                for (SyncRequest request : batch) {
+                    request.result.completeExceptionally(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+        for (SyncRequest request : queue) {
+            request.result.completeExceptionally(new IOException("Arrêt de la synchronisation"));
+        }
+    }
+
+    private void syncBatch(List<SyncRequest> batch) throws InterruptedException {
+        Set<Path> paths = new LinkedHashSet<>();
+        for (SyncRequest request : batch) {
+            paths.addAll(request.paths);
+        }
+
+        Map<Path, Future<?>> syncs = new HashMap<>();
+        for (Path path : paths) {
+            syncs.put(path, syncPool.submit(() -> {
+                force(path);
+                return null;
+            }));
+        }
+        Map<Path, IOException> errors = new HashMap<>();
+        for (Map.Entry<Path, Future<?>> sync : syncs.entrySet()) {
+            try {
+                sync.getValue().get();
+            } catch (ExecutionException e) {
+                log.error(String.format("Synchronisation impossible (%s)", sync.getKey()), e.getCause());
+                errors.put(sync.getKey(), e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause()));
+            }
+        }
+        batches.incrementAndGet();
+        syncedPaths.addAndGet(paths.size());
+
+        for (SyncRequest request : batch) {
+            IOException error = null;
+            for (Path path : request.paths) {
+                if (errors.containsKey(path)) {
+                    error = errors.get(path);
+                    break;
+                }
+            }
+            if (error != null) {
+                failures.incrementAndGet();
+                request.result.completeExceptionally(error);
+            } else {
+                request.result.complete(null);
+            }
+        }
+    }
+
+    private static void force(Path path) throws IOException {
+        if (Files.isDirectory(path) && isWindowsHost) {
+            // Les répertoires ne peuvent pas être ouverts (ni synchronisés) sous Windows
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    @ManagedAttribute(description = "Nombre de demandes de synchronisation")
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de lots synchronisés")
+    public long getBatches() {
+        return batches.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers et répertoires synchronisés")
+    public long getSyncedPaths() {
+        return syncedPaths.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de demandes en échec")
+    public long getFailures() {
+        return failures.get();
+    }
+
+    private static class SyncRequest {
+        private final Set<Path> paths;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        SyncRequest(Set<Path> paths) {
+            this.paths = paths;
+        }
+    }
+}
@@ -0,0 +1,645 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Journal des headers : remplace l'écriture d'un fichier .bsfh par dépot (cf. {@link Tools#headerFileWrite})
+ * par l'ajout d'un enregistrement à un segment (headers-NNNNNNNN.log) écrit en ajout seul, dans header.journal.dir.
+ * <p>
+ * Chaque enregistrement occupe une ligne : "crc32 type fileKey données", où le type vaut H (header, données
+ * identiques au contenu du fichier .bsfh, sauts de ligne échappés) ou D (suppression), et où le CRC32 (hexadécimal)
+ * porte sur le reste de la ligne. Un enregistrement altéré est ignoré, une ligne incomplète en fin de segment
+ * (écriture interrompue) est supprimée au démarrage.
+ * <p>
+ * Au-delà de header.journal.segmentMaxBytes, le segment courant est scellé et un nouveau segment est ouvert.
+ * L'index du segment courant est conservé en mémoire (reconstruit au démarrage en relisant le segment) ; celui d'un
+ * segment scellé est écrit à côté (headers-NNNNNNNN.idx), trié par fileKey en enregistrements de taille fixe
+ * afin d'être consulté par recherche dichotomique. Un filtre de Bloom des fileKey de chaque segment scellé est conservé
+ * en mémoire : seuls les index susceptibles de contenir la clé recherchée sont lus, sans verrou global.
+ * <p>
+ * Le journal n'a qu'un seul écrivain : un verrou exclusif (journal.lock) est pris au démarrage, une seconde instance
+ * utilisant le même header.journal.dir ne démarre pas.
+ */
+@Service
+@ManagedResource(objectName = "bsfm:name=HeaderJournal")
+public class HeaderJournal {
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("headers-(\\d{8})\\.log");
+
+    private static final char HEADER_RECORD = 'H';
+    private static final char DELETION_RECORD = 'D';
+
+    /**
+     * Taille d'un enregistrement d'index : fileKey (complété par des espaces), type, position (hexadécimal)
+     */
+    private static final int INDEX_KEY_WIDTH = 50;
+    private static final int INDEX_RECORD_SIZE = INDEX_KEY_WIDTH + 1 + 1 + 1 + 16 + 1;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final String LOCK_FILE_NAME = "journal.lock";
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${header.journal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${header.journal.dir:${nas.header.rootdir}/.journal}")
+    private String journalDir;
+
+    @Value("${header.journal.segmentMaxBytes:67108864}")
+    private long segmentMaxBytes;
+
+    @Value("${nas.header.rootdir}")
+    private String nasHeaderRootdir;
+
+    @Autowired
+    private Tools toolServices;
+
+    /**
+     * Segments scellés, du plus récent au plus ancien (liste remplacée à chaque scellement, parcourue sans verrou)
+     */
+    private volatile List<SealedSegment> sealedSegments = Collections.emptyList();
+
+    private FileChannel lockChannel;
+    private FileLock instanceLock;
+
+    private int activeSegmentNumber;
+    private Path activeSegment;
+    private FileChannel activeChannel;
+    private long activeSize;
+
+    /**
+     * Index du segment courant : position du dernier enregistrement par fileKey, (-position - 1) pour une suppression
+     */
+    private final Map<String, Long> activeIndex = new HashMap<>();
+
+    private final AtomicLong appendedRecords = new AtomicLong();
+    private final AtomicLong convertedHeaderFiles = new AtomicLong();
+    private volatile boolean conversionRunning;
+
+    @PostConstruct
+    private synchronized void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Path dir = toolServices.setDirectoryPermissions(Files.createDirectories(Paths.get(journalDir)), BSFileType.HEARDERS);
+        lockInstance(dir);
+
+        TreeMap<Integer, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "headers-*.log")) {
+            for (Path segment : stream) {
+                Matcher matcher = SEGMENT_NAME.matcher(segment.getFileName().toString());
+                if (matcher.matches()) {
+                    segments.put(Integer.parseInt(matcher.group(1)), segment);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            openSegment(1);
+            return;
+        }
+
+        // Le dernier segment est le segment courant, les autres sont scellés (index reconstruit s'il est absent)
+        Map.Entry<Integer, Path> last = segments.pollLastEntry();
+        List<SealedSegment> sealed = new ArrayList<>();
+        for (Path segment : segments.descendingMap().values()) {
+            if (!Files.exists(getIndexPath(segment))) {
+                log.warn(String.format("Index absent, reconstruction à partir du segment (%s)", segment));
+                Map<String, Long> index = new HashMap<>();
+                scanSegment(segment, index);
+                writeIndex(segment, index);
+            }
+            sealed.add(new SealedSegment(segment, readIndexKeys(getIndexPath(segment))));
+        }
+        sealedSegments = Collections.unmodifiableList(sealed);
+
+        long validSize = scanSegment(last.getValue(), activeIndex);
+        activeSegmentNumber = last.getKey();
+        activeSegment = last.getValue();
+        activeChannel = FileChannel.open(activeSegment, StandardOpenOption.WRITE);
+        if (activeChannel.size() > validSize) {
+            // Enregistrement incomplet en fin de segment (écriture interrompue) : il est supprimé
+            log.warn(String.format("Fin de segment invalide supprimée (%s, %d octets)", activeSegment, activeChannel.size() - validSize));
+            activeChannel.truncate(validSize);
+        }
+        activeChannel.position(validSize);
+        activeSize = validSize;
+    }
+
+    /**
+     * Verrou exclusif du répertoire du journal, conservé jusqu'à l'arrêt.
+     *
+     * @throws IllegalStateException le journal est utilisé par une autre instance
+     */
+    private void lockInstance(Path dir) throws IOException {
+        lockChannel = FileChannel.open(dir.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            instanceLock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            instanceLock = null;
+        }
+        if (instanceLock == null) {
+            lockChannel.close();
+            lockChannel = null;
+            throw new IllegalStateException(String.format("Le journal des headers %s est utilisé par une autre instance " +
+                    "(header.journal.dir doit être propre à chaque instance)", dir));
+        }
+    }
+
+    @PreDestroy
+    private synchronized void close() throws IOException {
+        if (activeChannel != null) {
+            activeChannel.close();
+            activeChannel = null;
+        }
+        if (lockChannel != null) {
+            // Fermer le canal libère le verrou
+            lockChannel.close();
+            lockChannel = null;
+            instanceLock = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    Path getJournalDir() {
+        return Paths.get(journalDir);
+    }
+
+    /**
+     * Ajout du header d'un fichier.
+     *
+     * @return segment dans lequel le header a été écrit
+     * @throws IOException
+     */
+    public Path append(BSFileInformation fileInfos) throws IOException {
+        return append(HEADER_RECORD, fileInfos.getFileKey(), fileInfos.toHeaderFileData());
+    }
+
+    /**
+     * Ajout d'un enregistrement de suppression : le header du fichier n'est plus restitué.
+     *
+     * @throws IOException
+     */
+    public void appendDeletion(String fileKey) throws IOException {
+        append(DELETION_RECORD, fileKey, "");
+    }
+
+    private synchronized Path append(char type, String fileKey, String data) throws IOException {
+        if (activeChannel == null) {
+            throw new IOException("Le journal des headers n'est pas ouvert.");
+        }
+        byte[] record = ChecksummedLine.format(type + " " + fileKey + " " + ChecksummedLine.escape(data));
+
+        long position = activeSize;
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            activeChannel.write(buffer);
+        }
+        activeSize += record.length;
+        activeIndex.put(fileKey, type == DELETION_RECORD ? -position - 1 : position);
+        appendedRecords.incrementAndGet();
+
+        Path segment = activeSegment;
+        if (activeSize >= segmentMaxBytes) {
+            seal();
+        }
+        return segment;
+    }
+
+    /**
+     * Scellement du segment courant (écriture de son index) et ouverture du segment suivant.
+     */
+    private void seal() throws IOException {
+        activeChannel.close();
+        activeChannel = null;
+        try {
+            writeIndex(activeSegment, activeIndex);
+            List<SealedSegment> sealed = new ArrayList<>(sealedSegments.size() + 1);
+            sealed.add(new SealedSegment(activeSegment, activeIndex.keySet()));
+            sealed.addAll(sealedSegments);
+            sealedSegments = Collections.unmodifiableList(sealed);
+        } catch (IOException e) {
+            // Les headers restent dans le segment : son index sera reconstruit au prochain démarrage
+            log.error(String.format("Ecriture de l'index du segment impossible (%s)", activeSegment), e);
+        }
+        activeIndex.clear();
+        openSegment(activeSegmentNumber + 1);
+    }
+
+    private void openSegment(int segmentNumber) throws IOException {
+        activeSegmentNumber = segmentNumber;
+        activeSegment = Paths.get(journalDir, String.format("headers-%08d.log", segmentNumber));
+        activeChannel = FileChannel.open(activeSegment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        toolServices.setFilePermissions(activeSegment, BSFileType.HEARDERS);
+        activeSize = 0;
+    }
+
+    /**
+     * @return true si le journal contient le header (non supprimé) du fichier
+     */
+    public boolean contains(String fileKey) throws IOException {
+        return findRecord(fileKey) != null;
+    }
+
+    /**
+     * @return contenu du header du fichier (identique à celui d'un fichier .bsfh), null s'il est absent ou supprimé
+     */
+    @ManagedOperation(description = "Contenu du header d'un fichier")
+    public String readHeader(String fileKey) throws IOException {
+        RecordLocation location = findRecord(fileKey);
+        if (location == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(location.segment, StandardOpenOption.READ)) {
+            channel.position(location.position);
+            String line = ChecksummedLine.readLine(Channels.newInputStream(channel), new ByteArrayOutputStream(512));
+            String[] fields = line != null ? parseRecord(line) : null;
+            if (fields == null) {
+                throw new IOException(String.format("Enregistrement altéré (%s, position %d)", location.segment, location.position));
+            }
+            return ChecksummedLine.unescape(fields[2]);
+        }
+    }
+
+    /**
+     * Recherche du dernier enregistrement d'un fichier : segment courant puis segments scellés, du plus récent au plus ancien.
+     * Seul l'index du segment courant est consulté sous verrou ; l'index d'un segment scellé n'est lu que si son filtre
+     * de Bloom peut contenir la clé.
+     *
+     * @return position du header, null s'il est absent ou si le dernier enregistrement est une suppression
+     */
+    public RecordLocation findRecord(String fileKey) throws IOException {
+        List<SealedSegment> sealed;
+        synchronized (this) {
+            Long position = activeIndex.get(fileKey);
+            if (position != null) {
+                return position >= 0 ? new RecordLocation(activeSegment, position) : null;
+            }
+            // Liste lue après le segment courant : un scellement concurrent n'y fait pas disparaître la clé
+            sealed = sealedSegments;
+        }
+        for (SealedSegment segment : sealed) {
+            if (!segment.keyFilter.mightContain(fileKey)) {
+                continue;
+            }
+            long indexRecord = searchIndex(getIndexPath(segment.path), fileKey);
+            if (indexRecord != Long.MIN_VALUE) {
+                return indexRecord >= 0 ? new RecordLocation(segment.path, indexRecord) : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Recherche dichotomique dans l'index d'un segment scellé.
+     *
+     * @return position de l'enregistrement, (-position - 1) pour une suppression, Long.MIN_VALUE si la clé est absente
+     */
+    private static long searchIndex(Path indexPath, String fileKey) throws IOException {
+        String key = padKey(fileKey);
+        byte[] record = new byte[INDEX_RECORD_SIZE];
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            long low = 0;
+            long high = channel.size() / INDEX_RECORD_SIZE - 1;
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                readFully(channel, ByteBuffer.wrap(record), middle * INDEX_RECORD_SIZE);
+                String line = new String(record, StandardCharsets.US_ASCII);
+                int compare = line.substring(0, INDEX_KEY_WIDTH).compareTo(key);
+                if (compare < 0) {
+                    low = middle + 1;
+                } else if (compare > 0) {
+                    high = middle - 1;
+                } else {
+                    long position = Long.parseLong(line.substring(INDEX_KEY_WIDTH + 3, INDEX_RECORD_SIZE - 1), 16);
+                    return line.charAt(INDEX_KEY_WIDTH + 1) == DELETION_RECORD ? -position - 1 : position;
+                }
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Lecture des fileKey de l'index d'un segment scellé.
+     */
+    private static List<String> readIndexKeys(Path indexPath) throws IOException {
+        List<String> keys = new ArrayList<>();
+        byte[] record = new byte[INDEX_RECORD_SIZE];
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(indexPath), READ_BUFFER_SIZE)) {
+            while (readRecord(in, record)) {
+                keys.add(new String(record, 0, INDEX_KEY_WIDTH, StandardCharsets.US_ASCII).trim());
+            }
+        }
+        return keys;
+    }
+
+    private static boolean readRecord(InputStream in, byte[] record) throws IOException {
+        int read = 0;
+        while (read < record.length) {
+            int count = in.read(record, read, record.length - read);
+            if (count < 0) {
+                if (read > 0) {
+                    throw new IOException("Fin d'index inattendue");
+                }
+                return false;
+            }
+            read += count;
+        }
+        return true;
+    }
+
+    /**
+     * Ecriture (fichier temporaire puis renommage) de l'index trié d'un segment.
+     */
+    private void writeIndex(Path segment, Map<String, Long> index) throws IOException {
+        Path indexPath = getIndexPath(segment);
+        Path tempPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        StringBuilder sb = new StringBuilder(index.size() * INDEX_RECORD_SIZE);
+        for (Map.Entry<String, Long> entry : new TreeMap<>(index).entrySet()) {
+            long position = entry.getValue();
+            sb.append(padKey(entry.getKey()))
+                    .append(' ').append(position >= 0 ? HEADER_RECORD : DELETION_RECORD)
+                    .append(' ').append(String.format("%016x", position >= 0 ? position : -position - 1))
+                    .append('\n');
+        }
+        Files.write(tempPath, sb.toString().getBytes(StandardCharsets.US_ASCII));
+        Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        toolServices.setFilePermissions(indexPath, BSFileType.HEARDERS);
+    }
+
+    /**
+     * Lecture d'un segment et alimentation de son index.
+     *
+     * @return taille de la partie du segment constituée de lignes complètes (un enregistrement altéré est ignoré)
+     */
+    private long scanSegment(Path segment, Map<String, Long> index) throws IOException {
+        long position = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(segment), READ_BUFFER_SIZE)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+            String line;
+            while ((line = ChecksummedLine.readLine(in, buffer)) != null) {
+                String[] fields = parseRecord(line);
+                if (fields == null) {
+                    log.error(String.format("Enregistrement altéré ignoré dans le segment %s (position %d)", segment, position));
+                } else {
+                    index.put(fields[1], fields[0].charAt(0) == DELETION_RECORD ? -position - 1 : position);
+                }
+                position += buffer.size() + 1;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Conversion en arrière-plan des fichiers .bsfh existants (sous nas.header.rootdir) en enregistrements du journal.
+     *
+     * @param deleteHeaderFiles suppression des fichiers .bsfh convertis
+     */
+    @ManagedOperation(description = "Conversion des fichiers .bsfh existants en enregistrements du journal")
+    public synchronized String convertHeaderFiles(boolean deleteHeaderFiles) {
+        if (!enabled) {
+            return "Le journal des headers n'est pas activé (header.journal.enabled)";
+        }
+        if (conversionRunning) {
+            return "Conversion déjà en cours";
+        }
+        conversionRunning = true;
+        Thread thread = new Thread(() -> {
+            try {
+                doConvertHeaderFiles(deleteHeaderFiles);
+            } finally {
+                conversionRunning = false;
+            }
+        }, "header-journal-converter");
+        thread.setDaemon(true);
+        thread.start();
+        return "Conversion démarrée";
+    }
+
+    private void doConvertHeaderFiles(boolean deleteHeaderFiles) {
+        Path journalPath = Paths.get(journalDir).toAbsolutePath();
+        try (Stream<Path> files = Files.walk(Paths.get(nasHeaderRootdir))) {
+            files.filter(path -> path.getFileName().toString().endsWith(".bsfh") && !path.toAbsolutePath().startsWith(journalPath))
+                    .forEach(headerFile -> {
+                        try {
+                            String data = new String(Files.readAllBytes(headerFile), StandardCharsets.UTF_8);
+                            String fileKey = data.split("\\R", 2)[0].trim();
+                            if (fileKey.isEmpty()) {
+                                log.warn(String.format("Fichier header vide ignoré (%s)", headerFile));
+                                return;
+                            }
+                            if (!contains(fileKey)) {
+                                append(HEADER_RECORD, fileKey, data);
+                            }
+                            if (deleteHeaderFiles) {
+                                Files.delete(headerFile);
+                            }
+                            convertedHeaderFiles.incrementAndGet();
+                        } catch (IOException e) {
+                            log.error(String.format("Conversion du fichier header impossible (%s)", headerFile), e);
+                        }
+                    });
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Conversion des fichiers header interrompue", e);
+        }
+        log.info(String.format("Conversion des fichiers header terminée (%d fichiers)", convertedHeaderFiles.get()));
+    }
+
+    private static Path getIndexPath(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - ".log".length()) + ".idx");
+    }
+
+    private static String padKey(String fileKey) {
+        if (fileKey.length() > INDEX_KEY_WIDTH) {
+            throw new IllegalArgumentException("fileKey trop long : " + fileKey);
+        }
+        StringBuilder sb = new StringBuilder(INDEX_KEY_WIDTH).append(fileKey);
+        while (sb.length() < INDEX_KEY_WIDTH) {
+            sb.append(' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Vérification du CRC et découpage d'un enregistrement.
+     *
+     * @return [type, fileKey, données échappées], null si l'enregistrement est altéré
+     */
+    private static String[] parseRecord(String line) {
+        String body = ChecksummedLine.parse(line);
+        if (body == null) {
+            return null;
+        }
+        String[] fields = body.split(" ", 3);
+        return fields.length == 3 ? fields : null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Fin de fichier inattendue");
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "Journal des headers actif")
+    public boolean getEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute(description = "Segment courant")
+    public synchronized String getActiveSegment() {
+        return activeSegment != null ? activeSegment.toString() : null;
+    }
+
+    @ManagedAttribute(description = "Nombre de segments scellés")
+    public int getSealedSegments() {
+        return sealedSegments.size();
+    }
+
+    @ManagedAttribute(description = "Nombre d'enregistrements ajoutés depuis le démarrage")
+    public long getAppendedRecords() {
+        return appendedRecords.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers .bsfh convertis")
+    public long getConvertedHeaderFiles() {
+        return convertedHeaderFiles.get();
+    }
+
+    @ManagedAttribute(description = "Conversion des fichiers .bsfh en cours")
+    public boolean getConversionRunning() {
+        return conversionRunning;
+    }
+
+    /**
+     * Segment scellé et filtre de Bloom de ses fileKey
+     */
+    private static class SealedSegment {
+        private final Path path;
+        private final KeyFilter keyFilter;
+
+        SealedSegment(Path path, Collection<String> fileKeys) {
+            this.path = path;
+            this.keyFilter = new KeyFilter(fileKeys);
+        }
+    }
+
+    /**
+     * Filtre de Bloom (10 bits et 7 fonctions de hachage par clé, environ 1 % de faux positifs) :
+     * une clé absente du filtre est absente du segment.
+     */
+    static class KeyFilter {
+        private static final int BITS_PER_KEY = 10;
+        private static final int HASH_FUNCTIONS = 7;
+
+        private final BitSet bits;
+        private final int size;
+
+        KeyFilter(Collection<String> fileKeys) {
+            size = Math.max(64, fileKeys.size() * BITS_PER_KEY);
+            bits = new BitSet(size);
+            for (String fileKey : fileKeys) {
+                int hash1 = fileKey.hashCode();
+                int hash2 = secondHash(fileKey);
+                for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                    bits.set(bitIndex(hash1 + i * hash2));
+                }
+            }
+        }
+
+        boolean mightContain(String fileKey) {
+            int hash1 = fileKey.hashCode();
+            int hash2 = secondHash(fileKey);
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                if (!bits.get(bitIndex(hash1 + i * hash2))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int bitIndex(int hash) {
+            return (hash & Integer.MAX_VALUE) % size;
+        }
+
+        /**
+         * FNV-1a, indépendant de String.hashCode
+         */
+        private static int secondHash(String fileKey) {
+            int hash = 0x811c9dc5;
+            for (int i = 0; i < fileKey.length(); i++) {
+                hash ^= fileKey.charAt(i);
+                hash *= 0x01000193;
+            }
+            return hash | 1;
+        }
+    }
+
+    /**
+     * Position d'un enregistrement dans le journal
+     */
+    public static class RecordLocation {
+        private final Path segment;
+        private final long position;
+
+        RecordLocation(Path segment, long position) {
+            this.segment = segment;
+            this.position = position;
+        }
+
+        public Path getSegment() {
+            return segment;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        @Override
+        public String toString() {
+            return segment + "@" + position;
+        }
+    }
+}
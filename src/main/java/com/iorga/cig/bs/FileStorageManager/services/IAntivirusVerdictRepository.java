@@ -0,0 +1,7 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.AntivirusVerdict;
+import org.springframework.data.repository.CrudRepository;
+
+public interface IAntivirusVerdictRepository extends CrudRepository<AntivirusVerdict, String> {
+}
@@ -0,0 +1,40 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.BSFileBlob;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import javax.transaction.Transactional;
+import java.sql.Timestamp;
+
+public interface IBSFileBlobRepository extends CrudRepository<BSFileBlob, String> {
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE BSFileBlob b SET b.refCount = b.refCount + 1 WHERE b.contentHash = :contentHash")
+    int incrementRefCount(@Param("contentHash") String contentHash);
+
+    /**
+     * Création d'un contenu avec une référence, ou incrément de son compteur s'il a été créé entre-temps
+     * (dépot concurrent, éventuellement sur une autre instance) : une écriture de l'entité écraserait son compteur.
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "INSERT INTO bsfile_blob (content_hash, ref_count, content_size, creation_date) " +
+            "VALUES (:contentHash, 1, :contentSize, :creationDate) ON DUPLICATE KEY UPDATE ref_count = ref_count + 1",
+            nativeQuery = true)
+    int insertOrIncrementRefCount(@Param("contentHash") String contentHash, @Param("contentSize") Integer contentSize,
+                                  @Param("creationDate") Timestamp creationDate);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE BSFileBlob b SET b.refCount = b.refCount - 1 WHERE b.contentHash = :contentHash")
+    int decrementRefCount(@Param("contentHash") String contentHash);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM BSFileBlob b WHERE b.contentHash = :contentHash AND b.refCount <= 0")
+    int deleteIfUnreferenced(@Param("contentHash") String contentHash);
+}
@@ -1,23 +1,19 @@
 package com.iorga.cig.bs.FileStorageManager.services;
 
 import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 
 import javax.transaction.Transactional;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.List;
 
-public interface IBSFileInformationRepository extends CrudRepository<BSFileInformation, Long> {
-
-    @Transactional(Transactional.TxType.NEVER)
-    @Query("SELECT fi FROM BSFileInformation fi WHERE logicalFolder = :folderName " +
-            "AND (:targetYear = 0 OR fi.targetYear = :targetYear) "+
-            "AND (:ownerKey = '*' OR fi.ownerKey = :ownerKey) "+
-            "ORDER BY originalFileName")
-    List<BSFileInformation> listFilesFromFolder(@Param("folderName") String folderName,
-                                                @Param("targetYear") Integer targetYear,
-                                                @Param("ownerKey") String ownerKey);
+public interface IBSFileInformationRepository extends CrudRepository<BSFileInformation, Long>, IBSFileInformationRepositoryCustom {
 
     @Query("SELECT fi FROM BSFileInformation fi WHERE fi.fileKey = :fileKey")
     List<BSFileInformation> findByFileKey(@Param("fileKey") String fileKey);
@@ -25,4 +21,134 @@ public interface IBSFileInformationRepository extends CrudRepository<BSFileInfor
     @Transactional(Transactional.TxType.NEVER)
     @Query("SELECT fi FROM BSFileInformation fi WHERE fi.fileKey IN (:fileKeys) ORDER BY originalFileName")
     List<BSFileInformation> findMultipleByFileKeys(@Param("fileKeys") List<String> fileKeys);
+
+    /**
+     * Fichiers d'un statut donné qui suivent afterId, par id croissant.
+     */
+    @Transactional(Transactional.TxType.NEVER)
+    @Query("SELECT fi FROM BSFileInformation fi WHERE fi.id > :afterId AND fi.status = :status ORDER BY fi.id")
+    List<BSFileInformation> findByStatusAfterId(@Param("afterId") Long afterId, @Param("status") Integer status, Pageable pageable);
+
+    /**
+     * Enregistrement du résultat d'un scan asynchrone, uniquement si le fichier est toujours au statut expectedStatus :
+     * une modification concurrente (suppression logique, changement de statut) n'est pas écrasée.
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE BSFileInformation fi SET fi.status = :status, fi.statusLinkedData = :statusLinkedData, " +
+            "fi.lastScanDate = :scanDate, fi.blobHash = :blobHash, fi.contentEncoding = :contentEncoding " +
+            "WHERE fi.id = :id AND fi.status = :expectedStatus")
+    int updateAsyncScanResult(@Param("id") Long id, @Param("expectedStatus") Integer expectedStatus,
+                              @Param("status") Integer status, @Param("statusLinkedData") String statusLinkedData,
+                              @Param("scanDate") Timestamp scanDate, @Param("blobHash") String blobHash,
+                              @Param("contentEncoding") String contentEncoding);
+
+    /**
+     * Emplacement du contenu sorti de quarantaine, sans modification du statut.
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE BSFileInformation fi SET fi.lastScanDate = :scanDate, fi.blobHash = :blobHash, " +
+            "fi.contentEncoding = :contentEncoding WHERE fi.id = :id")
+    int updateReleasedContent(@Param("id") Long id, @Param("scanDate") Timestamp scanDate,
+                              @Param("blobHash") String blobHash, @Param("contentEncoding") String contentEncoding);
+
+    /**
+     * Fichiers à rescanner : non fiables, disponibles et non scannés depuis dueDate.
+     * Les fichiers publics puis les plus récemment téléchargés sont prioritaires.
+     * L'ordre de tri est celui de l'index bsfile_information_idx_rescan_priority (V10_0).
+     */
+    @Transactional(Transactional.TxType.NEVER)
+    @Query("SELECT fi FROM BSFileInformation fi WHERE fi.isContentNoVirusTrusted = false " +
+            "AND fi.status NOT IN (:excludedStatuses) " +
+            "AND (fi.lastScanDate IS NULL OR fi.lastScanDate < :dueDate) " +
+            "ORDER BY fi.isPublic DESC, fi.lastAccessDate DESC, fi.lastScanDate ASC")
+    List<BSFileInformation> findFilesToRescan(@Param("excludedStatuses") List<Integer> excludedStatuses,
+                                              @Param("dueDate") Timestamp dueDate,
+                                              Pageable pageable);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE BSFileInformation fi SET fi.lastScanDate = :scanDate WHERE fi.id IN (:ids)")
+    int updateLastScanDate(@Param("ids") Collection<Long> ids, @Param("scanDate") Timestamp scanDate);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE BSFileInformation fi SET fi.lastAccessDate = :accessDate WHERE fi.id IN (:ids)")
+    int updateLastAccessDate(@Param("ids") Collection<Long> ids, @Param("accessDate") Timestamp accessDate);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE BSFileInformation fi SET fi.status = :status, fi.statusLinkedData = :statusLinkedData WHERE fi.id = :id")
+    int updateStatus(@Param("id") Long id, @Param("status") Integer status, @Param("statusLinkedData") String statusLinkedData);
+
+    /**
+     * Fichiers (hors fichiers spéciaux) dont l'organisation des répertoires diffère de storageLayout, par id croissant.
+     */
+    @Transactional(Transactional.TxType.NEVER)
+    @Query("SELECT fi FROM BSFileInformation fi WHERE fi.id > :afterId AND fi.storageLayout <> :storageLayout " +
+            "AND fi.isSpecial = false AND fi.status NOT IN (:excludedStatuses) ORDER BY fi.id")
+    List<BSFileInformation> findFilesToMigrate(@Param("afterId") Long afterId, @Param("storageLayout") Integer storageLayout,
+                                               @Param("excludedStatuses") List<Integer> excludedStatuses, Pageable pageable);
+
+    @Transactional(Transactional.TxType.NEVER)
+    @Query("SELECT COUNT(fi) FROM BSFileInformation fi WHERE fi.storageLayout <> :storageLayout " +
+            "AND fi.isSpecial = false AND fi.status NOT IN (:excludedStatuses)")
+    long countFilesToMigrate(@Param("storageLayout") Integer storageLayout, @Param("excludedStatuses") List<Integer> excludedStatuses);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE BSFileInformation fi SET fi.storageLayout = :storageLayout WHERE fi.id = :id")
+    int updateStorageLayout(@Param("id") Long id, @Param("storageLayout") Integer storageLayout);
+
+    /**
+     * Fichiers actifs à archiver (cf. StorageTieringService), par id croissant : fichiers stockés avant storedBefore,
+     * ou non téléchargés depuis accessedBefore (jamais téléchargés et stockés avant accessedBefore).
+     * Les fichiers spéciaux et les contenus partagés restent sur le stockage actif.
+     */
+    @Transactional(Transactional.TxType.NEVER)
+    @Query("SELECT fi FROM BSFileInformation fi WHERE fi.id > :afterId AND fi.storageTier = :storageTier " +
+            "AND fi.isSpecial = false AND fi.blobHash IS NULL AND fi.status NOT IN (:excludedStatuses) " +
+            "AND (fi.storageDate < :storedBefore OR fi.lastAccessDate < :accessedBefore " +
+            "OR (fi.lastAccessDate IS NULL AND fi.storageDate < :accessedBeforeDate)) ORDER BY fi.id")
+    List<BSFileInformation> findFilesToArchive(@Param("afterId") Long afterId, @Param("storageTier") Integer storageTier,
+                                               @Param("excludedStatuses") List<Integer> excludedStatuses,
+                                               @Param("storedBefore") Date storedBefore,
+                                               @Param("accessedBefore") Timestamp accessedBefore,
+                                               @Param("accessedBeforeDate") Date accessedBeforeDate, Pageable pageable);
+
+    @Transactional(Transactional.TxType.NEVER)
+    @Query("SELECT COUNT(fi) FROM BSFileInformation fi WHERE fi.storageTier = :storageTier " +
+            "AND fi.isSpecial = false AND fi.blobHash IS NULL AND fi.status NOT IN (:excludedStatuses) " +
+            "AND (fi.storageDate < :storedBefore OR fi.lastAccessDate < :accessedBefore " +
+            "OR (fi.lastAccessDate IS NULL AND fi.storageDate < :accessedBeforeDate))")
+    long countFilesToArchive(@Param("storageTier") Integer storageTier, @Param("excludedStatuses") List<Integer> excludedStatuses,
+                             @Param("storedBefore") Date storedBefore, @Param("accessedBefore") Timestamp accessedBefore,
+                             @Param("accessedBeforeDate") Date accessedBeforeDate);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE BSFileInformation fi SET fi.storageTier = :storageTier WHERE fi.id = :id")
+    int updateStorageTier(@Param("id") Long id, @Param("storageTier") Integer storageTier);
+
+    /**
+     * Parcours de tous les fichiers par id croissant (contrôle de cohérence), les fichiers qui suivent afterId.
+     */
+    @Transactional(Transactional.TxType.NEVER)
+    @Query("SELECT fi FROM BSFileInformation fi WHERE fi.id > :afterId ORDER BY fi.id")
+    List<BSFileInformation> findFilesAfterId(@Param("afterId") Long afterId, Pageable pageable);
+
+    /**
+     * @return parmi les noms de stockage donnés, ceux enregistrés en base
+     */
+    @Transactional(Transactional.TxType.NEVER)
+    @Query("SELECT fi.storageHashedFileName FROM BSFileInformation fi WHERE fi.storageHashedFileName IN (:storageHashedFileNames)")
+    List<String> findExistingStorageHashedFileNames(@Param("storageHashedFileNames") Collection<String> storageHashedFileNames);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE BSFileInformation fi SET fi.status = :status, fi.statusLinkedData = :statusLinkedData, fi.lastScanDate = :scanDate " +
+            "WHERE fi.id = :id AND fi.status NOT IN (:excludedStatuses)")
+    int updateScanVerdict(@Param("id") Long id, @Param("status") Integer status, @Param("statusLinkedData") String statusLinkedData,
+                          @Param("scanDate") Timestamp scanDate, @Param("excludedStatuses") List<Integer> excludedStatuses);
 }
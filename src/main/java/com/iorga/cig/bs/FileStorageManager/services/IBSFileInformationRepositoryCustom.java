@@ -0,0 +1,21 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+
+import java.util.List;
+
+/**
+ * Requêtes de listing construites dynamiquement (cf. {@link IBSFileInformationRepositoryImpl}).
+ * Un critère "joker" (targetYear = 0, ownerKey = "*") est omis de la requête.
+ */
+public interface IBSFileInformationRepositoryCustom {
+
+    List<BSFileInformation> listFilesFromFolder(String folderName, Integer targetYear, String ownerKey);
+
+    /**
+     * Page du listing d'un dossier, par clé de parcours (originalFileName, id) : les fichiers qui suivent le dernier
+     * fichier de la page précédente (afterName = "" et afterId = 0 pour la première page).
+     */
+    List<BSFileInformation> listFilesFromFolderAfter(String folderName, Integer targetYear, String ownerKey,
+                                                     String afterName, Long afterId, int maxResults);
+}
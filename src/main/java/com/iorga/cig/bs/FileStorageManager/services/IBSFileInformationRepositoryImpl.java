@@ -0,0 +1,84 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import javax.transaction.Transactional;
+import java.util.List;
+
+/**
+ * Listing des dossiers par requêtes JPQL construites selon les critères réellement renseignés.
+ * Les prédicats "fourre-tout" ((:targetYear = 0 OR fi.targetYear = :targetYear)) empêchent MySQL d'utiliser
+ * toutes les colonnes des index composites (logical_folder, target_year, owner_key, ...) et un même plan
+ * est alors partagé par toutes les combinaisons de critères. Ici, chaque combinaison a sa propre requête
+ * (4 au plus par méthode), dont les prédicats d'égalité correspondent au préfixe d'un index.
+ */
+public class IBSFileInformationRepositoryImpl implements IBSFileInformationRepositoryCustom {
+
+    private static final Integer ANY_TARGET_YEAR = 0;
+    private static final String ANY_OWNER_KEY = "*";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    @Transactional(Transactional.TxType.NEVER)
+    public List<BSFileInformation> listFilesFromFolder(String folderName, Integer targetYear, String ownerKey) {
+        StringBuilder jpql = new StringBuilder("SELECT fi FROM BSFileInformation fi WHERE fi.logicalFolder = :folderName");
+        appendFilters(jpql, targetYear, ownerKey);
+        jpql.append(" ORDER BY fi.originalFileName");
+
+        TypedQuery<BSFileInformation> query = entityManager.createQuery(jpql.toString(), BSFileInformation.class)
+                .setParameter("folderName", folderName);
+        setFilters(query, targetYear, ownerKey);
+        return query.getResultList();
+    }
+
+    @Override
+    @Transactional(Transactional.TxType.NEVER)
+    public List<BSFileInformation> listFilesFromFolderAfter(String folderName, Integer targetYear, String ownerKey,
+                                                            String afterName, Long afterId, int maxResults) {
+        StringBuilder jpql = new StringBuilder("SELECT fi FROM BSFileInformation fi WHERE fi.logicalFolder = :folderName");
+        appendFilters(jpql, targetYear, ownerKey);
+        // Le premier prédicat (redondant) permet à MySQL de démarrer directement le parcours de l'index à la position du curseur
+        jpql.append(" AND fi.originalFileName >= :afterName")
+                .append(" AND (fi.originalFileName > :afterName OR fi.id > :afterId)")
+                .append(" ORDER BY fi.originalFileName, fi.id");
+
+        TypedQuery<BSFileInformation> query = entityManager.createQuery(jpql.toString(), BSFileInformation.class)
+                .setParameter("folderName", folderName)
+                .setParameter("afterName", afterName)
+                .setParameter("afterId", afterId)
+                .setMaxResults(maxResults);
+        setFilters(query, targetYear, ownerKey);
+        return query.getResultList();
+    }
+
+    private static boolean isTargetYearFilter(Integer targetYear) {
+        return targetYear != null && !ANY_TARGET_YEAR.equals(targetYear);
+    }
+
+    private static boolean isOwnerKeyFilter(String ownerKey) {
+        return ownerKey != null && !ANY_OWNER_KEY.equals(ownerKey);
+    }
+
+    private static void appendFilters(StringBuilder jpql, Integer targetYear, String ownerKey) {
+        if (isTargetYearFilter(targetYear)) {
+            jpql.append(" AND fi.targetYear = :targetYear");
+        }
+        if (isOwnerKeyFilter(ownerKey)) {
+            jpql.append(" AND fi.ownerKey = :ownerKey");
+        }
+    }
+
+    private static void setFilters(TypedQuery<BSFileInformation> query, Integer targetYear, String ownerKey) {
+        if (isTargetYearFilter(targetYear)) {
+            query.setParameter("targetYear", targetYear);
+        }
+        if (isOwnerKeyFilter(ownerKey)) {
+            query.setParameter("ownerKey", ownerKey);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.AntivirusVerdict;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Réception d'un contenu déposé en une seule lecture : chaque bloc reçu alimente à la fois le calcul du SHA-256,
+ * le fichier temporaire du NAS et, si possible, le scan ClamAV (INSTREAM).
+ * Si le scan au fil de l'eau échoue (clamd indisponible, connexion coupée), la réception continue :
+ * le contenu sera scanné depuis le fichier temporaire.
+ * Obtenu via {@link Tools#openIngestStream(boolean)}, à fermer dans tous les cas (le fichier temporaire est supprimé
+ * si la réception n'a pas été menée à son terme via {@link #complete()}).
+ * Un contenu déjà reçu dans un fichier temporaire du NAS (partie multipart) est relu une seule fois, sans être réécrit
+ * (cf. {@link Tools#ingest(Path, boolean)}).
+ * Le temps passé dans chaque traitement (hash, écriture, scan) est mesuré bloc par bloc, le reste de la durée
+ * de la réception étant attribué à la lecture (et au décodage) des données reçues (cf. {@link StorageMetrics}).
+ */
+public class IngestOutputStream extends OutputStream {
+
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Tools toolServices;
+    private final StorageMetrics storageMetrics;
+    private final Path tempFile;
+    private final long maxSize;
+    private final OutputStream fileOut;
+    private final MessageDigest digester;
+    private final String signatureVersion;
+    private ClamAVScanner.InstreamScan instreamScan;
+    private long size;
+    private BSFileContent content;
+
+    private final long openNanos = System.nanoTime();
+    private long hashNanos;
+    private long bufferNanos;
+    private long scanNanos;
+
+    /**
+     * @param writeFile false si le contenu est déjà dans le fichier temporaire (il n'est alors pas réécrit)
+     */
+    IngestOutputStream(Tools toolServices, StorageMetrics storageMetrics, Path tempFile, boolean writeFile, long maxSize,
+                       MessageDigest digester, ClamAVScanner.InstreamScan instreamScan, String signatureVersion) throws IOException {
+        this.toolServices = toolServices;
+        this.storageMetrics = storageMetrics;
+        this.tempFile = tempFile;
+        this.maxSize = maxSize;
+        this.fileOut = writeFile ? new BufferedOutputStream(Files.newOutputStream(tempFile), FILE_BUFFER_SIZE) : null;
+        this.digester = digester;
+        this.instreamScan = instreamScan;
+        this.signatureVersion = signatureVersion;
+    }
+
+    /**
+     * @return chemin du fichier temporaire de réception
+     */
+    public Path getPath() {
+        return tempFile;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (size + length > maxSize) {
+            throw new ContentTooLargeException(maxSize);
+        }
+        long start = System.nanoTime();
+        digester.update(buffer, offset, length);
+        long hashed = System.nanoTime();
+        hashNanos += hashed - start;
+        if (fileOut != null) {
+            fileOut.write(buffer, offset, length);
+        }
+        long buffered = System.nanoTime();
+        bufferNanos += buffered - hashed;
+        if (instreamScan != null) {
+            try {
+                instreamScan.write(buffer, offset, length);
+            } catch (IOException e) {
+                abandonInstreamScan(e);
+            }
+            scanNanos += System.nanoTime() - buffered;
+        }
+        size += length;
+    }
+
+    private void abandonInstreamScan(IOException cause) {
+        log.warn("Scan antivirus au fil de l'eau interrompu, le contenu sera scanné après réception", cause);
+        storageMetrics.countScanVerdict(null, "instream");
+        instreamScan.close();
+        instreamScan = null;
+    }
+
+    /**
+     * Fin de la réception : le fichier temporaire est complet, le hash et le verdict du scan au fil de l'eau sont connus.
+     *
+     * @return contenu reçu
+     * @throws IOException
+     */
+    public BSFileContent complete() throws IOException {
+        long start = System.nanoTime();
+        if (fileOut != null) {
+            fileOut.close();
+        }
+        long closed = System.nanoTime();
+        bufferNanos += closed - start;
+        String contentHash = Base64.getEncoder().encodeToString(digester.digest());
+        long hashed = System.nanoTime();
+        hashNanos += hashed - closed;
+
+        AntivirusVerdict inlineVerdict = null;
+        if (instreamScan != null) {
+            try {
+                ClamAVScanner.ScanResult scanResult = instreamScan.finish();
+                inlineVerdict = new AntivirusVerdict(contentHash, signatureVersion, scanResult.isClean(), scanResult.getReply());
+                storageMetrics.countScanVerdict(scanResult.isClean(), "instream");
+            } catch (IOException e) {
+                log.warn("Scan antivirus au fil de l'eau interrompu, le contenu sera scanné après réception", e);
+                storageMetrics.countScanVerdict(null, "instream");
+            } finally {
+                instreamScan.close();
+                instreamScan = null;
+            }
+            scanNanos += System.nanoTime() - hashed;
+        }
+        content = new BSFileContent(tempFile, size, contentHash, inlineVerdict);
+        recordMetrics();
+        return content;
+    }
+
+    private void recordMetrics() {
+        long totalNanos = System.nanoTime() - openNanos;
+        storageMetrics.record(StorageMetrics.Stage.RECEIVE, Math.max(0, totalNanos - hashNanos - bufferNanos - scanNanos));
+        storageMetrics.record(StorageMetrics.Stage.HASH, hashNanos);
+        storageMetrics.record(StorageMetrics.Stage.BUFFER, bufferNanos);
+        if (scanNanos > 0) {
+            storageMetrics.record(StorageMetrics.Stage.SCAN, scanNanos);
+        }
+        storageMetrics.recordBytes(StorageMetrics.Direction.UPLOAD, size);
+    }
+
+    @Override
+    public void close() {
+        if (instreamScan != null) {
+            instreamScan.close();
+            instreamScan = null;
+        }
+        if (content == null) {
+            try {
+                if (fileOut != null) {
+                    fileOut.close();
+                }
+            } catch (IOException e) {
+                // Réception abandonnée
+            }
+            toolServices.deleteTempFile(tempFile);
+        }
+    }
+
+    /**
+     * Contenu reçu supérieur à la taille maximale d'un fichier déposé (la réception est abandonnée).
+     */
+    public static class ContentTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ContentTooLargeException(long maxSize) {
+            super(String.format("La taille d'un fichier déposé est limitée à %d octets.", maxSize));
+        }
+    }
+}
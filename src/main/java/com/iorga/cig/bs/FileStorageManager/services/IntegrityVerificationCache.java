@@ -0,0 +1,116 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * Cache des vérifications d'intégrité (SHA-256) réussies.
+ * Un fichier vérifié récemment est considéré intègre tant que sa taille, sa date de modification et son inode
+ * n'ont pas changé et que la durée de validité (TTL) n'est pas dépassée : il n'est alors pas re-hashé.
+ * Les compteurs sont exposés en JMX pour dimensionner le cache.
+ */
+@Service
+@ManagedResource(objectName = "bsfm:name=IntegrityVerificationCache")
+public class IntegrityVerificationCache {
+
+    @Value("${integrity.cache.maxEntries:10000}")
+    private int maxEntries;
+
+    @Value("${integrity.cache.ttlSeconds:3600}")
+    private long ttlSeconds;
+
+    private BoundedCache<String, FileStamp> cache;
+
+    /**
+     * Empreinte des attributs du fichier au moment de sa vérification
+     */
+    private static class FileStamp {
+        private final long size;
+        private final long lastModified;
+        private final Object inode;
+        private final String contentHash;
+
+        private FileStamp(BasicFileAttributes attrs, String contentHash) {
+            this.size = attrs.size();
+            this.lastModified = attrs.lastModifiedTime().toMillis();
+            this.inode = attrs.fileKey();
+            this.contentHash = contentHash;
+        }
+
+        private boolean matches(FileStamp other) {
+            return size == other.size
+                    && lastModified == other.lastModified
+                    && Objects.equals(inode, other.inode)
+                    && Objects.equals(contentHash, other.contentHash);
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        cache = new BoundedCache<>(maxEntries, ttlSeconds * 1000);
+    }
+
+    /**
+     * @param filePathObj chemin de stockage du fichier
+     * @param attrs       attributs courants du fichier
+     * @param contentHash hash attendu du contenu
+     * @return true si le fichier a été vérifié récemment et n'a pas changé depuis
+     */
+    public boolean isVerified(Path filePathObj, BasicFileAttributes attrs, String contentHash) {
+        FileStamp current = new FileStamp(attrs, contentHash);
+        return cache.get(filePathObj.toString(), current::matches) != null;
+    }
+
+    /**
+     * Mémorise une vérification réussie.
+     *
+     * @param filePathObj chemin de stockage du fichier
+     * @param attrs       attributs du fichier lus AVANT le calcul du hash
+     * @param contentHash hash vérifié du contenu
+     */
+    public void markVerified(Path filePathObj, BasicFileAttributes attrs, String contentHash) {
+        cache.put(filePathObj.toString(), new FileStamp(attrs, contentHash));
+    }
+
+    public void invalidate(Path filePathObj) {
+        cache.invalidate(filePathObj.toString());
+    }
+
+    @ManagedOperation(description = "Vide le cache des vérifications d'intégrité")
+    public void clear() {
+        cache.clear();
+    }
+
+    @ManagedAttribute(description = "Nombre d'entrées du cache")
+    public int getSize() {
+        return cache.size();
+    }
+
+    @ManagedAttribute(description = "Nombre maximal d'entrées du cache")
+    public int getMaxEntries() {
+        return cache.getMaxEntries();
+    }
+
+    @ManagedAttribute(description = "Nombre de téléchargements servis sans recalcul du hash")
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    @ManagedAttribute(description = "Nombre de téléchargements ayant nécessité un recalcul du hash")
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    @ManagedAttribute(description = "Nombre d'entrées évincées faute de place")
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+}
@@ -0,0 +1,58 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limitation de débit partagée entre plusieurs threads (fichiers ou octets par seconde).
+ * Une demande est accordée immédiatement si le débit le permet ; sinon le thread attend que les demandes précédentes
+ * soient "payées". Une demande importante (ex : taille d'un fichier à relire) est accordée en une fois et retarde
+ * d'autant les demandes suivantes.
+ */
+public class IoRateLimiter {
+
+    private volatile long permitsPerSecond;
+
+    /**
+     * Instant (System.nanoTime) à partir duquel la prochaine demande peut être accordée
+     */
+    private long nextFreeNanos = System.nanoTime();
+
+    /**
+     * @param permitsPerSecond débit autorisé (0 ou moins pour ne pas limiter le débit)
+     */
+    public IoRateLimiter(long permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * Attente du débit nécessaire à l'utilisation de permits unités.
+     *
+     * @throws InterruptedException
+     */
+    public void acquire(long permits) throws InterruptedException {
+        long waitNanos = reserve(permits);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private synchronized long reserve(long permits) {
+        long rate = permitsPerSecond;
+        long now = System.nanoTime();
+        if (rate <= 0 || permits <= 0) {
+            nextFreeNanos = now;
+            return 0;
+        }
+        long waitNanos = Math.max(0, nextFreeNanos - now);
+        nextFreeNanos = Math.max(nextFreeNanos, now) + (long) (permits * (1e9 / rate));
+        return waitNanos;
+    }
+
+    public long getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public void setPermitsPerSecond(long permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+}
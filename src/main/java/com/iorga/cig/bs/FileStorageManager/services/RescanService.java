@@ -0,0 +1,204 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.exceptions.NotFound404Exception;
+import com.iorga.cig.bs.FileStorageManager.exceptions.ServerError500Exception;
+import com.iorga.cig.bs.FileStorageManager.exceptions.VirusFound409Exception;
+import com.iorga.cig.bs.FileStorageManager.models.BSFile;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.sql.Timestamp;
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rescan antivirus en arrière-plan des fichiers stockés non fiables (isContentNoVirusTrusted = false).
+ * Remplace le scan effectué à chaque téléchargement : un fichier est rescanné au plus une fois toutes les
+ * antivirus.rescan.minAgeHours heures, les fichiers publics et les plus récemment téléchargés en premier.
+ * Le débit (fichiers/minute) est réduit pendant les heures ouvrées pour ne saturer ni clamd ni le NAS.
+ * Grâce au cache des verdicts, seul un changement de version des signatures provoque un scan effectif.
+ */
+@Service
+@Lazy(false)
+@ManagedResource(objectName = "bsfm:name=RescanService")
+public class RescanService {
+
+    /**
+     * Statuts des fichiers qui ne sont pas (ou plus) à rescanner
+     */
+    private static final List<Integer> EXCLUDED_STATUSES = Arrays.asList(
+            BSFile.Status.SOFT_DELETED.value(),
+            BSFile.Status.VIRUS_INFECTED.value(),
+            BSFile.Status.CORRUPTED.value(),
+            BSFile.Status.PENDING_SCAN.value());
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${antivirus.rescan.enabled:true}")
+    private volatile boolean enabled;
+
+    @Value("${antivirus.rescan.intervalMs:60000}")
+    private long intervalMs;
+
+    @Value("${antivirus.rescan.minAgeHours:24}")
+    private long minAgeHours;
+
+    @Value("${antivirus.rescan.batchSize:100}")
+    private int batchSize;
+
+    @Value("${antivirus.rescan.filesPerMinute:60}")
+    private volatile int filesPerMinute;
+
+    @Value("${antivirus.rescan.businessHours.filesPerMinute:10}")
+    private volatile int businessHoursFilesPerMinute;
+
+    /**
+     * Plage horaire (heures de début et de fin, du lundi au vendredi) des heures ouvrées, ex "8-19"
+     */
+    @Value("${antivirus.rescan.businessHours:8-19}")
+    private String businessHours;
+
+    @Autowired
+    private IBSFileInformationRepository bsfiRepository;
+
+    @Autowired
+    private BSFileInformationCache fileInfosCache;
+
+    @Autowired
+    private Tools toolServices;
+
+    private int businessHoursStart;
+    private int businessHoursEnd;
+
+    private final AtomicLong rescanned = new AtomicLong();
+    private final AtomicLong infected = new AtomicLong();
+    private volatile Timestamp lastRunDate;
+
+    @PostConstruct
+    private void init() {
+        String[] hours = businessHours.split("-");
+        businessHoursStart = Integer.parseInt(hours[0].trim());
+        businessHoursEnd = Integer.parseInt(hours[1].trim());
+    }
+
+    private boolean isBusinessHours(LocalDateTime now) {
+        return now.getDayOfWeek() != DayOfWeek.SATURDAY && now.getDayOfWeek() != DayOfWeek.SUNDAY
+                && now.getHour() >= businessHoursStart && now.getHour() < businessHoursEnd;
+    }
+
+    /**
+     * Rescan d'un lot de fichiers, au débit autorisé pour l'heure courante.
+     */
+    @Scheduled(fixedDelayString = "${antivirus.rescan.intervalMs:60000}", initialDelayString = "${antivirus.rescan.intervalMs:60000}")
+    public void rescanBatch() {
+        if (!enabled) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        int rate = isBusinessHours(now) ? businessHoursFilesPerMinute : filesPerMinute;
+        if (rate <= 0) {
+            return;
+        }
+        lastRunDate = Timestamp.valueOf(now);
+
+        // Nombre de fichiers à traiter d'ici la prochaine exécution, espacés régulièrement
+        int limit = (int) Math.min(batchSize, Math.max(1, rate * intervalMs / 60000));
+        long pauseMs = 60000 / rate;
+
+        Timestamp dueDate = Timestamp.valueOf(now.minusHours(minAgeHours));
+        List<BSFileInformation> candidates = bsfiRepository.findFilesToRescan(EXCLUDED_STATUSES, dueDate, new PageRequest(0, limit));
+
+        List<Long> scannedIds = new ArrayList<>();
+        try {
+            for (int i = 0; i < candidates.size() && enabled; i++) {
+                if (i > 0) {
+                    TimeUnit.MILLISECONDS.sleep(pauseMs);
+                }
+                BSFileInformation fileInfos = candidates.get(i);
+                try {
+                    toolServices.rescanDataFile(fileInfos);
+                    scannedIds.add(fileInfos.getId());
+                } catch (VirusFound409Exception e) {
+                    log.warn(String.format("Le fichier %s est infecté par %s", fileInfos.getFileKey(), e.getMessage()));
+                    infected.incrementAndGet();
+                    bsfiRepository.updateScanVerdict(fileInfos.getId(), BSFile.Status.VIRUS_INFECTED.value(), e.getMessage(),
+                            new Timestamp(System.currentTimeMillis()), EXCLUDED_STATUSES);
+                    fileInfosCache.invalidate(fileInfos.getFileKey());
+                } catch (NotFound404Exception e) {
+                    // Le fichier de données est absent : inutile de le rescanner à chaque passage
+                    log.error(String.format("Fichier de données absent, rescan impossible (%s)", fileInfos.getFileKey()));
+                    scannedIds.add(fileInfos.getId());
+                }
+                rescanned.incrementAndGet();
+            }
+        } catch (ServerError500Exception e) {
+            log.warn("Rescan antivirus interrompu (clamd indisponible)", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!scannedIds.isEmpty()) {
+                bsfiRepository.updateLastScanDate(scannedIds, new Timestamp(System.currentTimeMillis()));
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "Rescan en arrière-plan actif")
+    public boolean getEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @ManagedAttribute(description = "Débit maximal (fichiers/minute) en dehors des heures ouvrées")
+    public int getFilesPerMinute() {
+        return filesPerMinute;
+    }
+
+    @ManagedAttribute
+    public void setFilesPerMinute(int filesPerMinute) {
+        this.filesPerMinute = filesPerMinute;
+    }
+
+    @ManagedAttribute(description = "Débit maximal (fichiers/minute) pendant les heures ouvrées")
+    public int getBusinessHoursFilesPerMinute() {
+        return businessHoursFilesPerMinute;
+    }
+
+    @ManagedAttribute
+    public void setBusinessHoursFilesPerMinute(int businessHoursFilesPerMinute) {
+        this.businessHoursFilesPerMinute = businessHoursFilesPerMinute;
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers rescannés")
+    public long getRescanned() {
+        return rescanned.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers détectés infectés lors d'un rescan")
+    public long getInfected() {
+        return infected.get();
+    }
+
+    @ManagedAttribute(description = "Date de la dernière exécution")
+    public String getLastRunDate() {
+        return lastRunDate != null ? lastRunDate.toString() : null;
+    }
+}
@@ -0,0 +1,159 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.exceptions.ServerError500Exception;
+import com.iorga.cig.bs.FileStorageManager.models.BSFile;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Migration en arrière-plan des fichiers stockés vers l'organisation des répertoires courante (storage.layout.version).
+ * Les fichiers sont parcourus par id croissant, par lots, et restent accessibles pendant leur déplacement.
+ * Une fois tous les fichiers migrés, le parcours reprend depuis le début (fichiers restés en quarantaine entre-temps).
+ * Les fichiers spéciaux ne sont pas migrés : leur chemin a été transmis au traitement externe (fichier sémaphore).
+ * Tant que la migration est active, les lectures recherchent un fichier absent de son chemin enregistré selon les autres
+ * organisations (cf. Tools.setLayoutMigrationRunning) ; elle doit le rester jusqu'à la migration de tous les fichiers.
+ */
+@Service
+@Lazy(false)
+@ManagedResource(objectName = "bsfm:name=StorageLayoutMigration")
+public class StorageLayoutMigrationService {
+
+    /**
+     * Statuts des fichiers à ne pas migrer (contenu en quarantaine, déplacé par l'AsyncScanService)
+     */
+    private static final List<Integer> EXCLUDED_STATUSES = Collections.singletonList(BSFile.Status.PENDING_SCAN.value());
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${storage.layout.migration.enabled:false}")
+    private volatile boolean enabled;
+
+    @Value("${storage.layout.migration.batchSize:200}")
+    private volatile int batchSize;
+
+    @Autowired
+    private IBSFileInformationRepository bsfiRepository;
+
+    @Autowired
+    private Tools toolServices;
+
+    /**
+     * Id du dernier fichier traité (reprise du parcours)
+     */
+    private volatile long lastId;
+
+    private final AtomicLong migrated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile Timestamp lastRunDate;
+
+    @PostConstruct
+    private void init() {
+        toolServices.setLayoutMigrationRunning(enabled);
+    }
+
+    /**
+     * Migration d'un lot de fichiers.
+     */
+    @Scheduled(fixedDelayString = "${storage.layout.migration.intervalMs:10000}", initialDelayString = "${storage.layout.migration.intervalMs:10000}")
+    public void migrateBatch() {
+        if (!enabled) {
+            return;
+        }
+        lastRunDate = new Timestamp(System.currentTimeMillis());
+        int storageLayout = toolServices.getStorageLayoutVersion();
+        List<BSFileInformation> candidates = bsfiRepository.findFilesToMigrate(lastId, storageLayout, EXCLUDED_STATUSES,
+                new PageRequest(0, batchSize));
+        if (candidates.isEmpty()) {
+            lastId = 0;
+            return;
+        }
+
+        for (BSFileInformation fileInfos : candidates) {
+            if (!enabled) {
+                return;
+            }
+            try {
+                if (toolServices.migrateStorageLayout(fileInfos, storageLayout)) {
+                    migrated.incrementAndGet();
+                }
+            } catch (ServerError500Exception e) {
+                // Le fichier sera de nouveau traité au prochain parcours
+                log.warn(String.format("Migration du fichier %s impossible", fileInfos.getFileKey()), e);
+                failed.incrementAndGet();
+            }
+            lastId = fileInfos.getId();
+        }
+    }
+
+    @ManagedOperation(description = "Reprend le parcours des fichiers depuis le début")
+    public void restart() {
+        lastId = 0;
+    }
+
+    @ManagedOperation(description = "Nombre de fichiers restant à migrer")
+    public long countRemaining() {
+        return bsfiRepository.countFilesToMigrate(toolServices.getStorageLayoutVersion(), EXCLUDED_STATUSES);
+    }
+
+    @ManagedAttribute(description = "Migration en arrière-plan active")
+    public boolean getEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        toolServices.setLayoutMigrationRunning(enabled);
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers migrés par exécution")
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @ManagedAttribute
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @ManagedAttribute(description = "Version cible de l'organisation des répertoires")
+    public int getStorageLayoutVersion() {
+        return toolServices.getStorageLayoutVersion();
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers migrés")
+    public long getMigrated() {
+        return migrated.get();
+    }
+
+    @ManagedAttribute(description = "Nombre d'échecs de migration")
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @ManagedAttribute(description = "Id du dernier fichier traité")
+    public long getLastId() {
+        return lastId;
+    }
+
+    @ManagedAttribute(description = "Date de la dernière exécution")
+    public String getLastRunDate() {
+        return lastRunDate != null ? lastRunDate.toString() : null;
+    }
+}
@@ -0,0 +1,252 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Métriques (Micrometer, exposées via Actuator / Prometheus) des étapes des dépots et des téléchargements :
+ * <ul>
+ * <li>bsfm.stage : durée de chaque étape (tags stage, endpoint, folderType). Les étapes imbriquées (ex : droits
+ * d'accès pendant l'écriture sur le NAS) sont exclues de la durée de l'étape englobante : la somme des étapes
+ * d'une requête correspond au temps passé dans les traitements instrumentés ;</li>
+ * <li>bsfm.bytes : volume reçu ou transmis (tags direction, endpoint, folderType) ;</li>
+ * <li>bsfm.scan.verdicts : verdicts antivirus (tags verdict, mode, endpoint, folderType) ;</li>
+ * <li>bsfm.cache.gets : succès / échecs des caches (tags cache, result).</li>
+ * </ul>
+ * Les codes retour (404, 409...) par endpoint et type de dossier sont fournis par la métrique http.server.requests
+ * (cf. {@link StorageMetricsConfig}). L'endpoint et le type de dossier de la requête courante sont portés par le thread
+ * qui la traite ; les traitements en arrière-plan sont associés à l'endpoint "background".
+ */
+@Service
+public class StorageMetrics {
+
+    /**
+     * Etapes instrumentées
+     */
+    public enum Stage {
+        /** Lecture du corps de la requête (et décodage base64 des dépots JSON) */
+        RECEIVE("receive"),
+        /** Calcul du SHA-256 */
+        HASH("hash"),
+        /** Ecriture du fichier temporaire de réception */
+        BUFFER("buffer"),
+        /** Scan ClamAV (au fil de l'eau ou depuis le fichier) */
+        SCAN("scan"),
+        /** Compression du contenu */
+        COMPRESS("compress"),
+        /** Ecriture du fichier de données sur le NAS (déplacement du fichier temporaire, création des répertoires) */
+        STORE("store"),
+        /** Affectation des droits d'accès et du groupe des fichiers et répertoires */
+        PERMISSIONS("permissions"),
+        /** Ecriture du header (fichier .bsfh ou journal) */
+        HEADER("header"),
+        /** Synchronisation durable (fsync) */
+        SYNC("sync"),
+        /** Enregistrement en base */
+        DATABASE("database"),
+        /** Résolution du fichier à transférer */
+        RESOLVE("resolve"),
+        /** Vérification du hash avant transfert */
+        VERIFY("verify"),
+        /** Transfert vers le client */
+        TRANSFER("transfer");
+
+        private final String tag;
+
+        Stage(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    public enum Direction {
+        UPLOAD("upload"), DOWNLOAD("download");
+
+        private final String tag;
+
+        Direction(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    public final static String FOLDER_TYPE_NORMAL = "normal";
+    public final static String FOLDER_TYPE_SPECIAL = "special";
+    public final static String FOLDER_TYPE_PUBLIC = "public";
+    public final static String FOLDER_TYPE_BSLTM = "bsltm";
+    public final static String FOLDER_TYPE_NONE = "none";
+
+    private final static String BACKGROUND_ENDPOINT = "background";
+
+    private final static ThreadLocal<Context> currentContext = ThreadLocal.withInitial(() -> new Context(BACKGROUND_ENDPOINT, FOLDER_TYPE_NONE));
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Autowired
+    private BSFileInformationCache fileInfosCache;
+
+    @Autowired
+    private IntegrityVerificationCache integrityCache;
+
+    @Autowired
+    private AntivirusVerdictCache verdictCache;
+
+    @PostConstruct
+    private void init() {
+        registerCache("fileInfos", fileInfosCache, BSFileInformationCache::getHits, BSFileInformationCache::getMisses);
+        registerCache("integrity", integrityCache, IntegrityVerificationCache::getHits, IntegrityVerificationCache::getMisses);
+        registerCache("antivirusVerdict", verdictCache, AntivirusVerdictCache::getHits, AntivirusVerdictCache::getMisses);
+    }
+
+    private <T> void registerCache(String name, T cache, ToDoubleFunction<T> hits, ToDoubleFunction<T> misses) {
+        FunctionCounter.builder("bsfm.cache.gets", cache, hits).tags("cache", name, "result", "hit").register(registry);
+        FunctionCounter.builder("bsfm.cache.gets", cache, misses).tags("cache", name, "result", "miss").register(registry);
+    }
+
+    /**
+     * Association du thread courant à une requête (cf. {@link StorageMetricsConfig}).
+     *
+     * @return contexte de la requête
+     */
+    Context open(String endpoint, String folderType) {
+        Context context = new Context(endpoint, folderType);
+        currentContext.set(context);
+        return context;
+    }
+
+    void close() {
+        currentContext.remove();
+    }
+
+    /**
+     * Type de dossier de la requête courante, s'il n'est pas déterminé par l'endpoint (ex : /fileInfos/{fileKey}).
+     */
+    public void setFolderType(BSFileInformation fileInfos) {
+        Context context = currentContext.get();
+        if (FOLDER_TYPE_NONE.equals(context.folderType)) {
+            context.folderType = fileInfos.getIsSpecial() ? FOLDER_TYPE_SPECIAL
+                    : fileInfos.getIsPublic() ? FOLDER_TYPE_PUBLIC : FOLDER_TYPE_NORMAL;
+        }
+    }
+
+    /**
+     * Tâche exécutée par un autre thread (ou par le thread de la requête si le pool est saturé) pour le compte
+     * de la requête courante (ex : dépots groupés).
+     */
+    public <T> Callable<T> propagate(Callable<T> task) {
+        Context parent = currentContext.get();
+        return () -> {
+            Context previous = currentContext.get();
+            currentContext.set(new Context(parent.endpoint, parent.folderType));
+            try {
+                return task.call();
+            } finally {
+                currentContext.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Début d'une étape, à terminer par {@link #stop(Stage)} (bloc finally).
+     */
+    public void start(Stage stage) {
+        currentContext.get().stages.push(new StageFrame(stage, System.nanoTime()));
+    }
+
+    /**
+     * Fin de l'étape en cours : sa durée, hors étapes imbriquées, est enregistrée.
+     */
+    public void stop(Stage stage) {
+        Context context = currentContext.get();
+        StageFrame frame = context.stages.peek();
+        if (frame == null || frame.stage != stage) {
+            // Etapes mal imbriquées : mesure ignorée
+            return;
+        }
+        context.stages.pop();
+        long elapsedNanos = System.nanoTime() - frame.startNanos;
+        StageFrame parent = context.stages.peek();
+        if (parent != null) {
+            parent.childNanos += elapsedNanos;
+        }
+        publish(context, stage, elapsedNanos - frame.childNanos);
+    }
+
+    /**
+     * Enregistrement de la durée d'une étape mesurée par l'appelant (ex : étapes entrelacées d'une réception).
+     */
+    public void record(Stage stage, long nanos) {
+        Context context = currentContext.get();
+        StageFrame parent = context.stages.peek();
+        if (parent != null) {
+            parent.childNanos += nanos;
+        }
+        publish(context, stage, nanos);
+    }
+
+    private void publish(Context context, Stage stage, long nanos) {
+        Timer.builder("bsfm.stage")
+                .tags("stage", stage.tag, "endpoint", context.endpoint, "folderType", context.folderType)
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordBytes(Direction direction, long bytes) {
+        Context context = currentContext.get();
+        DistributionSummary.builder("bsfm.bytes")
+                .baseUnit("bytes")
+                .tags("direction", direction.tag, "endpoint", context.endpoint, "folderType", context.folderType)
+                .register(registry)
+                .record(bytes);
+    }
+
+    /**
+     * @param clean true si aucun virus n'a été détecté, null si le scan a échoué
+     * @param mode  instream (scan au fil de l'eau), file (scan du fichier) ou cached (verdict mémorisé)
+     */
+    public void countScanVerdict(Boolean clean, String mode) {
+        Context context = currentContext.get();
+        registry.counter("bsfm.scan.verdicts", "verdict", clean == null ? "error" : clean ? "clean" : "infected",
+                "mode", mode, "endpoint", context.endpoint, "folderType", context.folderType).increment();
+    }
+
+    /**
+     * Endpoint et type de dossier d'une requête, étapes en cours.
+     */
+    static class Context {
+        private final String endpoint;
+        private volatile String folderType;
+        private final Deque<StageFrame> stages = new ArrayDeque<>();
+
+        private Context(String endpoint, String folderType) {
+            this.endpoint = endpoint;
+            this.folderType = folderType;
+        }
+
+        String getFolderType() {
+            return folderType;
+        }
+    }
+
+    private static class StageFrame {
+        private final Stage stage;
+        private final long startNanos;
+        private long childNanos;
+
+        private StageFrame(Stage stage, long startNanos) {
+            this.stage = stage;
+            this.startNanos = startNanos;
+        }
+    }
+}
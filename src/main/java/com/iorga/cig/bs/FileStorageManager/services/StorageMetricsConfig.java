@@ -0,0 +1,78 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.spring.web.servlet.DefaultWebMvcTagsProvider;
+import io.micrometer.spring.web.servlet.WebMvcTagsProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Association des requêtes aux métriques (cf. {@link StorageMetrics}) : endpoint (pattern de l'URL) et type de dossier,
+ * également ajouté en tag folderType de la métrique http.server.requests (durée et code retour des requêtes).
+ */
+@Configuration
+public class StorageMetricsConfig extends WebMvcConfigurerAdapter {
+
+    private static final String CONTEXT_ATTR = StorageMetricsConfig.class.getName() + ".context";
+
+    @Autowired
+    private StorageMetrics storageMetrics;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new HandlerInterceptorAdapter() {
+            @Override
+            public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+                String pattern = (String) request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+                String endpoint = pattern != null ? pattern : "unknown";
+                request.setAttribute(CONTEXT_ATTR, storageMetrics.open(endpoint, getFolderType(endpoint)));
+                return true;
+            }
+
+            @Override
+            public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+                storageMetrics.close();
+            }
+        });
+    }
+
+    @Bean
+    public WebMvcTagsProvider webMvcTagsProvider() {
+        return new DefaultWebMvcTagsProvider() {
+            @Override
+            public Iterable<Tag> httpRequestTags(HttpServletRequest request, HttpServletResponse response, Object handler, Throwable ex) {
+                StorageMetrics.Context context = (StorageMetrics.Context) request.getAttribute(CONTEXT_ATTR);
+                String folderType = context != null ? context.getFolderType() : StorageMetrics.FOLDER_TYPE_NONE;
+                return Tags.concat(super.httpRequestTags(request, response, handler, ex), "folderType", folderType);
+            }
+        };
+    }
+
+    /**
+     * Type de dossier déduit de l'endpoint (none pour les opérations sur un fichier donné, cf. StorageMetrics.setFolderType)
+     */
+    private static String getFolderType(String endpoint) {
+        if (endpoint.contains("/special-folders/")) {
+            return StorageMetrics.FOLDER_TYPE_SPECIAL;
+        }
+        if (endpoint.contains("/public-folders/") || endpoint.contains("/publicContent/")) {
+            return StorageMetrics.FOLDER_TYPE_PUBLIC;
+        }
+        if (endpoint.contains("/bsltm-folders/")) {
+            return StorageMetrics.FOLDER_TYPE_BSLTM;
+        }
+        if (endpoint.contains("/folders/")) {
+            return StorageMetrics.FOLDER_TYPE_NORMAL;
+        }
+        return StorageMetrics.FOLDER_TYPE_NONE;
+    }
+}
@@ -0,0 +1,264 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.exceptions.Conflict409Exception;
+import com.iorga.cig.bs.FileStorageManager.exceptions.ServerError500Exception;
+import com.iorga.cig.bs.FileStorageManager.models.BSFile;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Archivage en arrière-plan des fichiers actifs (nas.active.rootdir) vers le stockage archivé (nas.archived.rootdir) :
+ * fichiers stockés depuis plus de archiveAfterDays jours, ou non téléchargés depuis coldAfterDays jours.
+ * Chaque fichier est copié, vérifié puis supprimé du stockage actif (cf. Tools.migrateStorageTier) et son niveau
+ * de stockage est enregistré en base : les lectures résolvent directement le chemin du fichier (tant que l'archivage
+ * est actif, un fichier absent est recherché sur l'autre niveau, cf. Tools.setTierMigrationRunning).
+ * Les fichiers sont parcourus par id croissant, par lots ; une fois tous les candidats traités, le parcours reprend
+ * depuis le début (fichiers devenus anciens ou inactifs entre-temps).
+ */
+@Service
+@Lazy(false)
+@ManagedResource(objectName = "bsfm:name=StorageTiering")
+public class StorageTieringService {
+
+    /**
+     * Statuts des fichiers à ne pas archiver (contenu en quarantaine ou incohérent)
+     */
+    private static final List<Integer> EXCLUDED_STATUSES = Arrays.asList(BSFile.Status.PENDING_SCAN.value(),
+            BSFile.Status.CORRUPTED.value());
+
+    /**
+     * Date limite d'un critère désactivé
+     */
+    private static final LocalDate NO_LIMIT = LocalDate.of(1970, 1, 1);
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${storage.tiering.enabled:false}")
+    private volatile boolean enabled;
+
+    @Value("${storage.tiering.batchSize:100}")
+    private volatile int batchSize;
+
+    /**
+     * Ancienneté (jours depuis le dépot) à partir de laquelle un fichier est archivé (0 ou moins : critère désactivé)
+     */
+    @Value("${storage.tiering.archiveAfterDays:${nas.archived.afterNDays:-1}}")
+    private volatile int archiveAfterDays;
+
+    /**
+     * Inactivité (jours depuis le dernier téléchargement) à partir de laquelle un fichier est archivé
+     * (0 ou moins : critère désactivé)
+     */
+    @Value("${storage.tiering.coldAfterDays:-1}")
+    private volatile int coldAfterDays;
+
+    @Value("${storage.tiering.bytesPerSecond:20971520}")
+    private long bytesPerSecond;
+
+    @Autowired
+    private IBSFileInformationRepository bsfiRepository;
+
+    @Autowired
+    private Tools toolServices;
+
+    private IoRateLimiter bytesLimiter;
+
+    /**
+     * Id du dernier fichier traité (reprise du parcours)
+     */
+    private volatile long lastId;
+
+    private final AtomicLong migrated = new AtomicLong();
+    private final AtomicLong migratedBytes = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile Timestamp lastRunDate;
+
+    @PostConstruct
+    private void init() {
+        bytesLimiter = new IoRateLimiter(bytesPerSecond);
+        toolServices.setTierMigrationRunning(enabled);
+        if (enabled && !toolServices.hasDistinctArchiveRoot()) {
+            log.warn("Archivage actif alors que nas.archived.rootdir et nas.active.rootdir désignent le même répertoire : "
+                    + "seul le niveau de stockage enregistré en base est modifié");
+        }
+    }
+
+    /**
+     * Archivage d'un lot de fichiers.
+     */
+    @Scheduled(fixedDelayString = "${storage.tiering.intervalMs:60000}", initialDelayString = "${storage.tiering.intervalMs:60000}")
+    public void archiveBatch() {
+        if (!enabled || (archiveAfterDays <= 0 && coldAfterDays <= 0)) {
+            return;
+        }
+        lastRunDate = new Timestamp(System.currentTimeMillis());
+        List<BSFileInformation> candidates = bsfiRepository.findFilesToArchive(lastId, BSFileInformation.ACTIVE_STORAGE_TIER,
+                EXCLUDED_STATUSES, getStoredBefore(), Timestamp.valueOf(getAccessedBefore().atStartOfDay()),
+                Date.valueOf(getAccessedBefore()), new PageRequest(0, batchSize));
+        if (candidates.isEmpty()) {
+            lastId = 0;
+            return;
+        }
+
+        for (BSFileInformation fileInfos : candidates) {
+            if (!enabled) {
+                return;
+            }
+            moveToTier(fileInfos, BSFileInformation.ARCHIVED_STORAGE_TIER);
+            lastId = fileInfos.getId();
+        }
+    }
+
+    private boolean moveToTier(BSFileInformation fileInfos, int storageTier) {
+        try {
+            if (toolServices.migrateStorageTier(fileInfos, storageTier, bytesLimiter)) {
+                migrated.incrementAndGet();
+                migratedBytes.addAndGet(fileInfos.getFileContentSize());
+                return true;
+            }
+        } catch (Conflict409Exception | ServerError500Exception e) {
+            // Le fichier sera de nouveau traité au prochain parcours (un fichier incohérent reste sur le stockage actif)
+            log.warn(String.format("Déplacement du fichier %s impossible", fileInfos.getFileKey()), e);
+            failed.incrementAndGet();
+        }
+        return false;
+    }
+
+    private Date getStoredBefore() {
+        return Date.valueOf(archiveAfterDays > 0 ? LocalDate.now().minusDays(archiveAfterDays) : NO_LIMIT);
+    }
+
+    private LocalDate getAccessedBefore() {
+        return coldAfterDays > 0 ? LocalDate.now().minusDays(coldAfterDays) : NO_LIMIT;
+    }
+
+    @ManagedOperation(description = "Archive le fichier donné (fileKey)")
+    public String archive(String fileKey) {
+        return moveFile(fileKey, BSFileInformation.ARCHIVED_STORAGE_TIER);
+    }
+
+    @ManagedOperation(description = "Ramène le fichier donné (fileKey) sur le stockage actif")
+    public String restore(String fileKey) {
+        return moveFile(fileKey, BSFileInformation.ACTIVE_STORAGE_TIER);
+    }
+
+    private String moveFile(String fileKey, int storageTier) {
+        List<BSFileInformation> fileInfos = bsfiRepository.findByFileKey(fileKey);
+        if (fileInfos.isEmpty()) {
+            return "Fichier inconnu";
+        }
+        BSFileInformation infos = fileInfos.get(0);
+        if (infos.getIsSpecial() || infos.getBlobHash() != null || EXCLUDED_STATUSES.contains(infos.getStatus())) {
+            return "Ce fichier ne peut pas être déplacé";
+        }
+        return moveToTier(infos, storageTier) ? "Fichier déplacé" : "Fichier non déplacé";
+    }
+
+    @ManagedOperation(description = "Reprend le parcours des fichiers depuis le début")
+    public void restart() {
+        lastId = 0;
+    }
+
+    @ManagedOperation(description = "Nombre de fichiers actifs restant à archiver")
+    public long countRemaining() {
+        if (archiveAfterDays <= 0 && coldAfterDays <= 0) {
+            return 0;
+        }
+        return bsfiRepository.countFilesToArchive(BSFileInformation.ACTIVE_STORAGE_TIER, EXCLUDED_STATUSES, getStoredBefore(),
+                Timestamp.valueOf(getAccessedBefore().atStartOfDay()), Date.valueOf(getAccessedBefore()));
+    }
+
+    @ManagedAttribute(description = "Archivage en arrière-plan actif")
+    public boolean getEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        toolServices.setTierMigrationRunning(enabled);
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers traités par exécution")
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @ManagedAttribute
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @ManagedAttribute(description = "Ancienneté (jours) à partir de laquelle un fichier est archivé")
+    public int getArchiveAfterDays() {
+        return archiveAfterDays;
+    }
+
+    @ManagedAttribute
+    public void setArchiveAfterDays(int archiveAfterDays) {
+        this.archiveAfterDays = archiveAfterDays;
+    }
+
+    @ManagedAttribute(description = "Inactivité (jours sans téléchargement) à partir de laquelle un fichier est archivé")
+    public int getColdAfterDays() {
+        return coldAfterDays;
+    }
+
+    @ManagedAttribute
+    public void setColdAfterDays(int coldAfterDays) {
+        this.coldAfterDays = coldAfterDays;
+    }
+
+    @ManagedAttribute(description = "Débit maximal de copie et de vérification (octets par seconde)")
+    public long getBytesPerSecond() {
+        return bytesLimiter.getPermitsPerSecond();
+    }
+
+    @ManagedAttribute
+    public void setBytesPerSecond(long bytesPerSecond) {
+        bytesLimiter.setPermitsPerSecond(bytesPerSecond);
+    }
+
+    @ManagedAttribute(description = "Nombre de fichiers déplacés")
+    public long getMigrated() {
+        return migrated.get();
+    }
+
+    @ManagedAttribute(description = "Volume des fichiers déplacés (octets, contenu d'origine)")
+    public long getMigratedBytes() {
+        return migratedBytes.get();
+    }
+
+    @ManagedAttribute(description = "Nombre d'échecs de déplacement")
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @ManagedAttribute(description = "Id du dernier fichier traité")
+    public long getLastId() {
+        return lastId;
+    }
+
+    @ManagedAttribute(description = "Date de la dernière exécution")
+    public String getLastRunDate() {
+        return lastRunDate != null ? lastRunDate.toString() : null;
+    }
+}
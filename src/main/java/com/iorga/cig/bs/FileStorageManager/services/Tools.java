@@ -1,35 +1,51 @@
 package com.iorga.cig.bs.FileStorageManager.services;
 
+import com.iorga.cig.bs.FileStorageManager.exceptions.BadRequest400Exception;
 import com.iorga.cig.bs.FileStorageManager.exceptions.Conflict409Exception;
 import com.iorga.cig.bs.FileStorageManager.exceptions.NotFound404Exception;
 import com.iorga.cig.bs.FileStorageManager.exceptions.ServerError500Exception;
 import com.iorga.cig.bs.FileStorageManager.exceptions.VirusFound409Exception;
+import com.iorga.cig.bs.FileStorageManager.models.AntivirusVerdict;
 import com.iorga.cig.bs.FileStorageManager.models.BSFile;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileContent;
 import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
 import com.iorga.cig.bs.FileStorageManager.models.BSFileType;
-import fi.solita.clamav.ClamAVClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.InputStreamResource;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.GroupPrincipal;
 import java.nio.file.attribute.PosixFileAttributeView;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.security.MessageDigest;
+import java.sql.Timestamp;
 import java.security.NoSuchAlgorithmException;
 import java.text.Normalizer;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 @Service
 public class Tools {
@@ -48,24 +64,149 @@ public class Tools {
     @Value("${nas.archived.rootdir}")
     private String nasArchivedRootdir;
 
-    @Value("${nas.archived.afterNDays}")
-    private Integer nasArchivedAfterNDays;
+    @Value("${nas.upload.tempdir:${nas.active.rootdir}/.upload-tmp}")
+    private String nasUploadTempdir;
 
-    @Value("${clamav.host:clamav}")
-    private String clamavHost;
+    @Value("${nas.quarantine.rootdir:${nas.active.rootdir}/.quarantine}")
+    private String nasQuarantineRootdir;
 
-    @Value("${clamav.port:3310}")
-    private int clamavPort;
+    @Value("${storage.dedup.enabled:false}")
+    private boolean dedupEnabled;
+
+    @Value("${nas.blob.rootdir:${nas.active.rootdir}/.blobs}")
+    private String nasBlobRootdir;
+
+    @Value("${ingest.inlineScan.enabled:true}")
+    private boolean inlineIngestScan;
+
+    /**
+     * Taille maximale (octets) d'un fichier déposé, bornée par la taille enregistrée en base (file_content_size, int)
+     */
+    @Value("${upload.maxFileSize:2147483647}")
+    private long uploadMaxFileSize;
+
+    @Value("${antivirus.download.inlineScan:false}")
+    private boolean inlineDownloadScan;
+
+    @Value("${integrity.streaming.thresholdBytes:33554432}")
+    private long streamingVerificationThreshold;
+
+    @Value("${storage.compression.enabled:false}")
+    private boolean compressionEnabled;
+
+    @Value("${storage.compression.contentTypes:text/*,application/json,application/xml,application/csv,application/javascript}")
+    private String[] compressibleContentTypes;
+
+    @Value("${storage.compression.minSizeBytes:1024}")
+    private long compressionMinSize;
+
+    @Value("${storage.compression.maxRatio:0.9}")
+    private double compressionMaxRatio;
+
+    @Value("${storage.layout.version:1}")
+    private int storageLayoutVersion;
+
+    /**
+     * Organisation historique des répertoires de stockage : rootDir/YYYY/MM/DD/storageHashedFileName
+     */
+    public final static int LEGACY_STORAGE_LAYOUT = 0;
+
+    /**
+     * Version maximale de l'organisation des répertoires : la version N ajoute N niveaux de sous-répertoires
+     * (2 caractères hexadécimaux de storageHashedFileName chacun) sous rootDir/YYYY/MM/DD
+     */
+    public final static int MAX_STORAGE_LAYOUT = 2;
+
+    /**
+     * Valeur de contentEncoding d'un contenu stocké compressé (identique au Content-Encoding HTTP)
+     */
+    public final static String GZIP_CONTENT_ENCODING = "gzip";
 
     private final static boolean isWindowsHost;
 
+    private final static int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Verrous (par hash de contenu) sérialisant l'ajout et la libération des références à un même contenu partagé
+     */
+    private final Object[] blobLocks = new Object[64];
+
+    /**
+     * Verrous (par nom de stockage) sérialisant les déplacements d'un même fichier (organisation des répertoires
+     * et niveau de stockage)
+     */
+    private final Object[] storageLocks = new Object[64];
+
+    /**
+     * Migrations en cours (cf. {@link StorageLayoutMigrationService}, {@link StorageTieringService}) : tant qu'elles sont
+     * actives, un fichier absent du chemin enregistré en base est recherché selon les autres organisations des répertoires
+     * et sur l'autre niveau de stockage (informations lues avant son déplacement). Sinon le chemin est calculé directement.
+     */
+    private volatile boolean layoutMigrationRunning;
+    private volatile boolean tierMigrationRunning;
+
     @Autowired
     private IBSFileInformationRepository bsfiRepository;
 
+    @Autowired
+    private IBSFileBlobRepository blobRepository;
+
+    @Autowired
+    private BSFileInformationCache fileInfosCache;
+
+    @Autowired
+    private ClamAVScanner clamAVScanner;
+
+    @Autowired
+    private IntegrityVerificationCache integrityCache;
+
+    @Autowired
+    private AntivirusVerdictCache verdictCache;
+
+    @Autowired
+    private DownloadAccessTracker accessTracker;
+
+    @Autowired
+    private GroupCommitSyncer groupCommitSyncer;
+
+    @Autowired
+    private StorageMetrics storageMetrics;
+
+    @Autowired
+    private HeaderJournal headerJournal;
+
+    {
+        for (int i = 0; i < blobLocks.length; i++) {
+            blobLocks[i] = new Object();
+            storageLocks[i] = new Object();
+        }
+    }
+
     static {
         isWindowsHost = System.getProperty("os.name").toLowerCase().startsWith("windows");
     }
 
+    @PostConstruct
+    private void init() {
+        if (storageLayoutVersion < LEGACY_STORAGE_LAYOUT || storageLayoutVersion > MAX_STORAGE_LAYOUT) {
+            throw new IllegalStateException(String.format("storage.layout.version doit être compris entre %d et %d",
+                    LEGACY_STORAGE_LAYOUT, MAX_STORAGE_LAYOUT));
+        }
+        // Répertoire de stockage des parties multipart (spring.http.multipart.location), qui doit exister à leur réception
+        try {
+            Files.createDirectories(Paths.get(nasUploadTempdir));
+        } catch (IOException ioExceptionObj) {
+            log.warn(String.format("Impossible de créer le répertoire de réception des dépots (%s)", nasUploadTempdir), ioExceptionObj);
+        }
+    }
+
+    /**
+     * @return version de l'organisation des répertoires appliquée aux nouveaux fichiers
+     */
+    public int getStorageLayoutVersion() {
+        return storageLayoutVersion;
+    }
+
     public static String toHex(byte[] digest) {
         StringBuilder sb = new StringBuilder(digest.length * 2);
         for (byte b : digest) {
@@ -75,12 +216,14 @@ public class Tools {
     }
 
     public String computeFileSha256ToBase64(File file) throws NoSuchAlgorithmException, NotFound404Exception, ServerError500Exception {
-        byte[] buffer = new byte[8192];
-        int count;
+        // Lecture par blocs dans un buffer "direct" (hors heap)
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DIGEST_BUFFER_SIZE);
         MessageDigest digester = MessageDigest.getInstance("SHA-256");
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
-            while ((count = bis.read(buffer)) > 0) {
-                digester.update(buffer, 0, count);
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digester.update(buffer);
+                buffer.clear();
             }
         } catch (FileNotFoundException e) {
             log.warn(String.format("Ce fichier n'existe pas (%s)", file));
@@ -91,6 +234,54 @@ public class Tools {
         return Base64.getEncoder().encodeToString(digester.digest());
     }
 
+    /**
+     * Calcul du hash du contenu d'origine d'un fichier de données, décompressé à la volée s'il est stocké compressé.
+     */
+    private String computeContentSha256ToBase64(Path filePathObj, boolean gzipEncoded) throws NoSuchAlgorithmException, NotFound404Exception, ServerError500Exception {
+        if (!gzipEncoded) {
+            return computeFileSha256ToBase64(filePathObj.toFile());
+        }
+        MessageDigest digester = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+        try (InputStream in = openContentStream(filePathObj, true)) {
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                digester.update(buffer, 0, count);
+            }
+        } catch (NoSuchFileException e) {
+            log.warn(String.format("Ce fichier n'existe pas (%s)", filePathObj));
+            throw new NotFound404Exception();
+        } catch (IOException e) {
+            throw new ServerError500Exception("Erreur de lecture du fichier.", e);
+        }
+        return Base64.getEncoder().encodeToString(digester.digest());
+    }
+
+    /**
+     * Ouverture en lecture du contenu d'origine d'un fichier de données.
+     *
+     * @param filePathObj fichier de données
+     * @param gzipEncoded true si le fichier est stocké compressé (gzip) : il est alors décompressé à la volée
+     * @return flux du contenu d'origine, à fermer par l'appelant
+     * @throws IOException
+     */
+    public static InputStream openContentStream(Path filePathObj, boolean gzipEncoded) throws IOException {
+        InputStream in = Files.newInputStream(filePathObj);
+        if (!gzipEncoded) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream(in, DIGEST_BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    public static boolean isGzipEncoded(BSFileInformation fileInfos) {
+        return GZIP_CONTENT_ENCODING.equals(fileInfos.getContentEncoding());
+    }
+
     public String computeBytesSha256ToBase64(byte[] bytes) throws NoSuchAlgorithmException {
         MessageDigest digester = MessageDigest.getInstance("SHA-256");
         digester.update(bytes);
@@ -125,10 +316,6 @@ public class Tools {
         return toHex(digester.digest());
     }
 
-    public byte[] decodeFileContentFromBase64(String fileDataBase64) {
-        return Base64.getDecoder().decode(fileDataBase64);
-    }
-
 
     private Path setPathNixGroup(Path pPath, BSFileType fileType) throws IOException {
         if (!isWindowsHost && !StringUtils.isEmpty(fileType.getNixGroup())) {
@@ -147,11 +334,16 @@ public class Tools {
      * @return
      * @throws IOException
      */
-    private Path setFilePermissions(Path pPath, BSFileType pFileType) throws IOException {
-        if (!isWindowsHost) {
-            Files.setPosixFilePermissions(pPath, pFileType.getNixPerms());
+    Path setFilePermissions(Path pPath, BSFileType pFileType) throws IOException {
+        storageMetrics.start(StorageMetrics.Stage.PERMISSIONS);
+        try {
+            if (!isWindowsHost) {
+                Files.setPosixFilePermissions(pPath, pFileType.getNixPerms());
+            }
+            return setPathNixGroup(pPath, pFileType);
+        } finally {
+            storageMetrics.stop(StorageMetrics.Stage.PERMISSIONS);
         }
-        return setPathNixGroup(pPath, pFileType);
     }
 
     /**
@@ -164,18 +356,23 @@ public class Tools {
      * @return
      * @throws IOException
      */
-    private Path setDirectoryPermissions(Path pPath, BSFileType pFileType) throws IOException {
-        if (!Files.isDirectory(pPath, LinkOption.NOFOLLOW_LINKS)) {
-            log.error("Ce n'est pas le chemin d'accès à un répertoire.", pPath);
-            throw new IOException("Ce n'est pas le chemin d'accès à un répertoire.");
-        }
-        if (!isWindowsHost) {
-            Set<PosixFilePermission> dirPerms = new HashSet<>(pFileType.getNixPerms());
-            dirPerms.add(PosixFilePermission.OWNER_EXECUTE);
-            dirPerms.add(PosixFilePermission.GROUP_EXECUTE);
-            Files.setPosixFilePermissions(pPath, dirPerms);
+    Path setDirectoryPermissions(Path pPath, BSFileType pFileType) throws IOException {
+        storageMetrics.start(StorageMetrics.Stage.PERMISSIONS);
+        try {
+            if (!Files.isDirectory(pPath, LinkOption.NOFOLLOW_LINKS)) {
+                log.error("Ce n'est pas le chemin d'accès à un répertoire.", pPath);
+                throw new IOException("Ce n'est pas le chemin d'accès à un répertoire.");
+            }
+            if (!isWindowsHost) {
+                Set<PosixFilePermission> dirPerms = new HashSet<>(pFileType.getNixPerms());
+                dirPerms.add(PosixFilePermission.OWNER_EXECUTE);
+                dirPerms.add(PosixFilePermission.GROUP_EXECUTE);
+                Files.setPosixFilePermissions(pPath, dirPerms);
+            }
+            return setPathNixGroup(pPath, pFileType);
+        } finally {
+            storageMetrics.stop(StorageMetrics.Stage.PERMISSIONS);
         }
-        return setPathNixGroup(pPath, pFileType);
     }
 
     /**
@@ -204,18 +401,135 @@ public class Tools {
         }
     }
 
-    private Path fileWrite(String rootDir, BSFileInformation fileInfos, String fileExt, BSFileType fileType, byte[] data)
-            throws Conflict409Exception, ServerError500Exception, VirusFound409Exception {
-        antivirusScan(data);
-        return internalFileWrite(rootDir, fileInfos, fileExt, fileType, data);
+    /**
+     * Déplace un fichier temporaire (contenu reçu en streaming) vers son emplacement définitif.
+     * Un fichier de même nom n'est jamais remplacé, y compris par un dépot concurrent (cf. {@link #fileLinkData}).
+     *
+     * @param filePathObj chemin définitif du fichier
+     * @param fileType    type BS du fichier
+     * @param contentFile fichier temporaire contenant les données
+     * @throws Conflict409Exception
+     * @throws ServerError500Exception
+     */
+    private Path fileMoveData(Path filePathObj, BSFileType fileType, Path contentFile)
+            throws Conflict409Exception, ServerError500Exception {
+        try {
+            if (!fileLinkData(filePathObj, contentFile)) {
+                log.warn(String.format("Un fichier de même nom existe déjà dans ce dossier (%s)", filePathObj));
+                throw new Conflict409Exception("Un fichier de même nom existe déjà dans ce dossier.");
+            }
+            return setFilePermissions(filePathObj, fileType);
+        } catch (IOException ioExceptionObj) {
+            log.error("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+            throw new ServerError500Exception("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+        }
+    }
+
+    /**
+     * Mise en place d'un fichier temporaire à son emplacement définitif, uniquement si celui-ci n'existe pas.
+     * Un renommage remplacerait silencieusement un fichier créé entre-temps : le fichier temporaire est donc lié
+     * (lien physique, création atomique exclusive) puis supprimé. Si le lien n'est pas possible (autre volume),
+     * le contenu est recopié par blocs dans un fichier créé de manière exclusive.
+     *
+     * @return false si le fichier cible existe déjà (le fichier temporaire est conservé)
+     */
+    private static boolean fileLinkData(Path filePathObj, Path contentFile) throws IOException {
+        try {
+            Files.createLink(filePathObj, contentFile);
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            try {
+                Files.copy(contentFile, filePathObj);
+            } catch (FileAlreadyExistsException alreadyExists) {
+                return false;
+            }
+        }
+        Files.delete(contentFile);
+        return true;
+    }
+
+    /**
+     * Création (et initialisation de la structure de répertoire d'acceuil) du répertoire cible d'un fichier
+     * en fonction de sa date de stockage et de l'organisation des répertoires qui lui est associée.
+     */
+    private Path createTargetDirectory(String rootDir, BSFileInformation fileInfos, BSFileType fileType) throws IOException {
+        return createTargetDirectory(rootDir, fileInfos, getStorageLayout(fileInfos), fileType);
+    }
+
+    private Path createTargetDirectory(String rootDir, BSFileInformation fileInfos, int storageLayout, BSFileType fileType) throws IOException {
+        return createStorageDirectory(getStorageDirectory(rootDir, fileInfos, storageLayout), storageLayout, fileType);
+    }
+
+    /**
+     * Création d'un répertoire de stockage et affectation des droits d'accès au répertoire du jour
+     * et à ses storageLayout sous-répertoires de répartition.
+     */
+    private Path createStorageDirectory(Path storageDir, int storageLayout, BSFileType fileType) throws IOException {
+        Path targetDir = Files.createDirectories(storageDir);
+        Path dir = targetDir;
+        for (int level = 0; level <= storageLayout; level++) {
+            setDirectoryPermissions(dir, fileType);
+            dir = dir.getParent();
+        }
+        return targetDir;
+    }
+
+    /**
+     * Organisation des répertoires associée au fichier. Un nouveau fichier se voit attribuer la version courante
+     * (storage.layout.version) lors de sa première écriture.
+     */
+    private int getStorageLayout(BSFileInformation fileInfos) {
+        if (fileInfos.getStorageLayout() == null) {
+            fileInfos.setStorageLayout(storageLayoutVersion);
+        }
+        return fileInfos.getStorageLayout();
+    }
+
+    /**
+     * Répertoire de stockage d'un fichier : rootDir/YYYY/MM/DD, suivi de storageLayout niveaux de sous-répertoires
+     * issus des premiers caractères de storageHashedFileName (ex : rootDir/2018/03/14/9A/57 en version 2).
+     */
+    private static Path getStorageDirectory(String rootDir, BSFileInformation fileInfos, int storageLayout) {
+        LocalDate fileDate = fileInfos.getStorageDate().toLocalDate();
+        Path dir = Paths.get(rootDir, String.format("%tY", fileDate), String.format("%tm", fileDate), String.format("%td", fileDate));
+        String hashedFileName = fileInfos.getStorageHashedFileName();
+        for (int level = 0; level < storageLayout; level++) {
+            dir = dir.resolve(hashedFileName.substring(level * 2, level * 2 + 2));
+        }
+        return dir;
+    }
+
+    /**
+     * Chemin d'un fichier selon l'organisation des répertoires qui lui est associée. Uniquement pendant la migration
+     * de l'organisation des répertoires, s'il n'existe pas, il est recherché selon les autres organisations
+     * (fichier en cours de migration ou informations lues avant la migration).
+     *
+     * @param pathForLayout calcul du chemin pour une version d'organisation donnée
+     * @return chemin selon l'organisation associée au fichier (ou chemin existant trouvé pendant la migration)
+     */
+    private Path resolveStoredPath(BSFileInformation fileInfos, IntFunction<Path> pathForLayout) {
+        int storageLayout = fileInfos.getStorageLayout() != null ? fileInfos.getStorageLayout() : LEGACY_STORAGE_LAYOUT;
+        Path filePathObj = pathForLayout.apply(storageLayout);
+        if (!layoutMigrationRunning || Files.exists(filePathObj)) {
+            return filePathObj;
+        }
+        for (int layout = LEGACY_STORAGE_LAYOUT; layout <= MAX_STORAGE_LAYOUT; layout++) {
+            if (layout != storageLayout) {
+                Path candidate = pathForLayout.apply(layout);
+                if (Files.exists(candidate)) {
+                    return candidate;
+                }
+            }
+        }
+        return filePathObj;
     }
 
     private Path internalFileWrite(String rootDir, BSFileInformation fileInfos, String fileExt, BSFileType fileType, byte[] data)
             throws Conflict409Exception, ServerError500Exception {
         try {
             // Initialisation de la structure de répertoire d'acceuil
-            LocalDate fileDate = fileInfos.getStorageDate().toLocalDate();
-            Path targetDir = setDirectoryPermissions(Files.createDirectories(Paths.get(rootDir, String.format("%tY", fileDate), String.format("%tm", fileDate), String.format("%td", fileDate))), fileType);
+            Path targetDir = createTargetDirectory(rootDir, fileInfos, fileType);
 
             // Initialisation de l'objet de stockage
             Path filePathObj = Paths.get(targetDir.toString(), fileInfos.getStorageHashedFileName() + fileExt);
@@ -227,68 +541,519 @@ public class Tools {
     }
 
     /**
-     * Effectue un scan antivirus sur les données retournées par l'inputStream
+     * Effectue un scan antivirus sur le contenu d'un fichier, envoyé par blocs au démon ClamAV.
+     * Le scan n'est pas effectué si ce contenu (identifié par son hash) a déjà été scanné avec la version
+     * courante des signatures : le verdict mémorisé est alors appliqué.
      *
-     * @param data données à vérifier
+     * @param contentFile fichier à vérifier
+     * @param contentHash hash du contenu du fichier
      * @throws ServerError500Exception Une erreur est survenu durant l'opération externe de scanning
-     * @throws VirusFound409Exception  Le flux contient potentiellement un virus
+     * @throws VirusFound409Exception  Le fichier contient potentiellement un virus
      */
-    private void antivirusScan(byte[] data) throws ServerError500Exception, VirusFound409Exception {
-        // Initialisation d'un client AV (timeout de 60 secondes pour les opérations réseau de AV au lieu de 500 ms)
-        ClamAVClient clamAVClient = new ClamAVClient(clamavHost, clamavPort, 60000);
-        byte[] scanResult;
+    private void antivirusScan(Path contentFile, String contentHash) throws ServerError500Exception, VirusFound409Exception {
+        antivirusScan(contentFile, contentHash, false);
+    }
+
+    /**
+     * Scan antivirus d'un fichier, décompressé à la volée s'il est stocké compressé (cf. {@link #antivirusScan(Path, String)}).
+     */
+    private void antivirusScan(Path contentFile, String contentHash, boolean gzipEncoded) throws ServerError500Exception, VirusFound409Exception {
+        String signatureVersion = verdictCache.getSignatureVersion();
+        AntivirusVerdict verdict = verdictCache.findCurrentVerdict(contentHash, signatureVersion);
+        if (verdict != null) {
+            storageMetrics.countScanVerdict(verdict.getIsClean(), "cached");
+            if (!verdict.getIsClean()) {
+                throw new VirusFound409Exception(verdict.getScanResult());
+            }
+            return;
+        }
+
+        ClamAVScanner.ScanResult scanResult;
+        storageMetrics.start(StorageMetrics.Stage.SCAN);
         try {
-            scanResult = clamAVClient.scan(data);
-        } catch (Exception e) {
+            scanResult = clamAVScanner.scan(contentFile, gzipEncoded);
+        } catch (IOException e) {
+            storageMetrics.countScanVerdict(null, "file");
             throw new ServerError500Exception("Couldn't scan the input. Cause: " + e.getMessage(), e);
+        } finally {
+            storageMetrics.stop(StorageMetrics.Stage.SCAN);
         }
-        if (!ClamAVClient.isCleanReply(scanResult)) {
-            throw new VirusFound409Exception(new String(scanResult));
+        storageMetrics.countScanVerdict(scanResult.isClean(), "file");
+        verdictCache.recordVerdict(contentHash, signatureVersion, scanResult.isClean(), scanResult.getReply());
+        if (!scanResult.isClean()) {
+            throw new VirusFound409Exception(scanResult.getReply());
         }
     }
 
-    public Path dataFileWrite(BSFileInformation fileInfos, byte[] data) throws Conflict409Exception, ServerError500Exception, VirusFound409Exception {
-        return fileWrite(nasActiveRootdir, fileInfos, "", BSFileType.FILES, data);
+    /**
+     * Ecrit le fichier de données à partir d'un fichier temporaire reçu en streaming (cf. {@link #ingest(InputStream, boolean)})
+     * ou décodé à la volée depuis le JSON (cf. {@link BSFileContentDeserializer}).
+     * Le contenu n'est jamais chargé en mémoire. S'il a été scanné pendant la réception, le verdict obtenu est appliqué,
+     * sinon il est scanné par blocs. Il est ensuite déplacé (renommage atomique) vers son emplacement définitif.
+     *
+     * @param fileInfos informations relatives au fichier à écrire
+     * @param content   contenu reçu dans un fichier temporaire
+     * @return chemin définitif du fichier de données
+     */
+    public Path dataFileWrite(BSFileInformation fileInfos, BSFileContent content) throws Conflict409Exception, ServerError500Exception, VirusFound409Exception {
+        AntivirusVerdict inlineVerdict = content.getInlineVerdict();
+        if (inlineVerdict != null) {
+            verdictCache.recordVerdict(fileInfos.getFileContentHash(), inlineVerdict.getSignatureVersion(),
+                    inlineVerdict.getIsClean(), inlineVerdict.getScanResult());
+            if (!inlineVerdict.getIsClean()) {
+                throw new VirusFound409Exception(inlineVerdict.getScanResult());
+            }
+        } else {
+            antivirusScan(content.getPath(), fileInfos.getFileContentHash());
+        }
+        fileInfos.setLastScanDate(new Timestamp(System.currentTimeMillis()));
+        return dataFileMove(fileInfos, content.getPath());
     }
 
-    public Path moveBSLTMFile(BSFileInformation fileInfos, Path ltFilePath) throws Conflict409Exception, ServerError500Exception {
-        //return fileWrite(nasActiveRootdir, fileInfos, "", BSFileType.FILES, data);
+    private Path dataFileMove(BSFileInformation fileInfos, Path contentFile) throws Conflict409Exception, ServerError500Exception {
+        storageMetrics.start(StorageMetrics.Stage.STORE);
         try {
-            // Initialisation de la structure de répertoire d'acceuil
-            LocalDate fileDate = fileInfos.getStorageDate().toLocalDate();
-            Path targetDir = setDirectoryPermissions(
-                    Files.createDirectories(Paths.get(nasActiveRootdir, String.format("%tY", fileDate), String.format("%tm", fileDate), String.format("%td", fileDate))),
-                    BSFileType.FILES);
+            // Le contenu des fichiers spéciaux est pris en charge par un traitement externe : il n'est jamais partagé
+            if (dedupEnabled && !fileInfos.getIsSpecial()) {
+                return blobFileMove(fileInfos, contentFile);
+            }
+            try {
+                Path targetDir = createTargetDirectory(nasActiveRootdir, fileInfos, BSFileType.FILES);
+                Path filePathObj = Paths.get(targetDir.toString(), fileInfos.getStorageHashedFileName());
+                Path compressedFile = isCompressible(fileInfos) ? compressContentFile(contentFile) : null;
+                if (compressedFile == null) {
+                    return fileMoveData(filePathObj, BSFileType.FILES, contentFile);
+                }
+                try {
+                    fileMoveData(filePathObj, BSFileType.FILES, compressedFile);
+                } finally {
+                    deleteTempFile(compressedFile);
+                }
+                deleteTempFile(contentFile);
+                fileInfos.setContentEncoding(GZIP_CONTENT_ENCODING);
+                return filePathObj;
+            } catch (IOException ioExceptionObj) {
+                log.error("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+                throw new ServerError500Exception("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+            }
+        } finally {
+            storageMetrics.stop(StorageMetrics.Stage.STORE);
+        }
+    }
 
-            // Initialisation de l'objet de stockage
-            Path filePathObj = Paths.get(targetDir.toString(), fileInfos.getStorageHashedFileName());
+    /**
+     * Le contenu (hors stockage dédupliqué) est stocké compressé si la compression est activée, que son type
+     * est compressible et qu'il n'est pas spécial (lu tel quel par un traitement externe).
+     */
+    private boolean isCompressible(BSFileInformation fileInfos) {
+        if (!compressionEnabled || fileInfos.getIsSpecial() || fileInfos.getFileContentSize() == null || fileInfos.getFileContentSize() < compressionMinSize
+                || fileInfos.getFileContentType() == null) {
+            return false;
+        }
+        String mimeType = fileInfos.getFileContentType().split(";")[0].trim().toLowerCase(Locale.ROOT);
+        for (String compressibleType : compressibleContentTypes) {
+            String type = compressibleType.trim().toLowerCase(Locale.ROOT);
+            if (type.endsWith("/*") ? mimeType.startsWith(type.substring(0, type.length() - 1)) : mimeType.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            boolean fileExists = Files.exists(filePathObj);
-            if (!fileExists) {
-                Files.copy(ltFilePath, filePathObj);
-                Files.delete(ltFilePath);
-                return setFilePermissions(filePathObj, BSFileType.FILES);
+    /**
+     * Compression (gzip) d'un fichier reçu dans un nouveau fichier temporaire. Le fichier reçu n'est pas modifié.
+     *
+     * @param contentFile fichier reçu
+     * @return fichier compressé, null si le gain est insuffisant (storage.compression.maxRatio) ou en cas d'erreur
+     */
+    private Path compressContentFile(Path contentFile) {
+        storageMetrics.start(StorageMetrics.Stage.COMPRESS);
+        try {
+            Path compressedFile = null;
+            try {
+                compressedFile = createUploadTempFile();
+                try (InputStream in = Files.newInputStream(contentFile);
+                     OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressedFile), DIGEST_BUFFER_SIZE)) {
+                    byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+                    int count;
+                    while ((count = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, count);
+                    }
+                }
+                long size = Files.size(contentFile);
+                long compressedSize = Files.size(compressedFile);
+                if (compressedSize <= size * compressionMaxRatio) {
+                    log.debug(String.format("Contenu stocké compressé (%d -> %d octets)", size, compressedSize));
+                    return compressedFile;
+                }
+            } catch (IOException | ServerError500Exception e) {
+                log.warn("Compression du contenu impossible, le contenu est stocké tel que reçu", e);
+            }
+            deleteTempFile(compressedFile);
+            return null;
+        } finally {
+            storageMetrics.stop(StorageMetrics.Stage.COMPRESS);
+        }
+    }
+
+    /**
+     * Dépot avec analyse antivirus différée : le fichier temporaire est déplacé (sans scan) dans la zone de quarantaine,
+     * d'où il ne peut pas être téléchargé. Cf. {@link #releaseQuarantinedFile(BSFileInformation)}.
+     *
+     * @param fileInfos   informations relatives au fichier à écrire
+     * @param contentFile fichier temporaire contenant les données
+     * @return chemin du fichier en quarantaine
+     */
+    public Path quarantineFileWrite(BSFileInformation fileInfos, Path contentFile) throws Conflict409Exception, ServerError500Exception {
+        storageMetrics.start(StorageMetrics.Stage.STORE);
+        try {
+            try {
+                setDirectoryPermissions(Files.createDirectories(Paths.get(nasQuarantineRootdir)), BSFileType.FILES);
+                return fileMoveData(getQuarantineFilePathObj(fileInfos), BSFileType.FILES, contentFile);
+            } catch (IOException ioExceptionObj) {
+                log.error("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+                throw new ServerError500Exception("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+            }
+        } finally {
+            storageMetrics.stop(StorageMetrics.Stage.STORE);
+        }
+    }
+
+    /**
+     * Scan d'un fichier en quarantaine puis, s'il est sain, déplacement vers son emplacement définitif.
+     * S'il est infecté, le fichier en quarantaine est supprimé.
+     *
+     * @param fileInfos informations relatives au fichier en quarantaine
+     * @return chemin définitif du fichier de données
+     * @throws NotFound404Exception    Le fichier en quarantaine n'existe plus
+     * @throws VirusFound409Exception  Le fichier contient potentiellement un virus
+     * @throws ServerError500Exception Le scan n'a pas pu être effectué (à retenter)
+     */
+    public Path releaseQuarantinedFile(BSFileInformation fileInfos)
+            throws NotFound404Exception, Conflict409Exception, ServerError500Exception, VirusFound409Exception {
+        Path quarantineFilePathObj = getQuarantineFilePathObj(fileInfos);
+        if (!Files.exists(quarantineFilePathObj)) {
+            log.warn(String.format("Ce fichier n'existe pas (%s)", quarantineFilePathObj));
+            throw new NotFound404Exception();
+        }
+        try {
+            antivirusScan(quarantineFilePathObj, fileInfos.getFileContentHash());
+        } catch (VirusFound409Exception e) {
+            deleteTempFile(quarantineFilePathObj);
+            throw e;
+        }
+        fileInfos.setLastScanDate(new Timestamp(System.currentTimeMillis()));
+        return dataFileMove(fileInfos, quarantineFilePathObj);
+    }
+
+    private Path getQuarantineFilePathObj(BSFileInformation fileInfos) {
+        return Paths.get(nasQuarantineRootdir, fileInfos.getStorageHashedFileName());
+    }
+
+    /**
+     * Stockage dédupliqué : le contenu est stocké une seule fois sous son hash, avec un compteur de références.
+     * Si ce contenu est déjà stocké, le fichier reçu est simplement supprimé (aucune écriture).
+     *
+     * @param fileInfos   informations relatives au fichier (blobHash est renseigné)
+     * @param contentFile fichier temporaire contenant les données
+     * @return chemin du contenu partagé
+     */
+    private Path blobFileMove(BSFileInformation fileInfos, Path contentFile) throws Conflict409Exception, ServerError500Exception {
+        String contentHash = fileInfos.getFileContentHash();
+        Path blobFilePathObj = getBlobFilePathObj(contentHash);
+        if (headerExists(fileInfos)) {
+            // Même contrôle que pour un stockage classique, avant de prendre une référence sur le contenu
+            log.warn(String.format("Un fichier de même nom existe déjà dans ce dossier (%s)", fileInfos.getStorageHashedFileName()));
+            throw new Conflict409Exception("Un fichier de même nom existe déjà dans ce dossier.");
+        }
+        synchronized (getBlobLock(contentHash)) {
+            if (blobRepository.incrementRefCount(contentHash) > 0) {
+                log.debug(String.format("Contenu déjà stocké (%s), écriture évitée", contentHash));
+                deleteTempFile(contentFile);
             } else {
-                log.warn("Un fichier de même nom existe déjà dans ce dossier", filePathObj);
-                throw new Conflict409Exception("Un fichier de même nom existe déjà dans ce dossier.");
+                try {
+                    setDirectoryPermissions(Files.createDirectories(blobFilePathObj.getParent()), BSFileType.FILES);
+                    if (fileLinkData(blobFilePathObj, contentFile)) {
+                        setFilePermissions(blobFilePathObj, BSFileType.FILES);
+                    } else {
+                        // Contenu orphelin (référence perdue suite à une interruption) ou écrit par une autre instance :
+                        // il est réutilisé
+                        deleteTempFile(contentFile);
+                    }
+                } catch (IOException ioExceptionObj) {
+                    log.error("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+                    throw new ServerError500Exception("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+                }
+                blobRepository.insertOrIncrementRefCount(contentHash, fileInfos.getFileContentSize(),
+                        new Timestamp(System.currentTimeMillis()));
+            }
+        }
+        fileInfos.setBlobHash(contentHash);
+        return blobFilePathObj;
+    }
+
+    /**
+     * Annulation du stockage d'un fichier dont les informations n'ont pas pu être enregistrées en base :
+     * la référence prise sur le contenu partagé est libérée (le contenu est supprimé avec sa dernière référence).
+     *
+     * @param fileInfos informations du fichier non enregistré
+     */
+    public void releaseUnsavedContent(BSFileInformation fileInfos) {
+        if (fileInfos.getBlobHash() == null) {
+            return;
+        }
+        try {
+            releaseBlob(fileInfos.getBlobHash());
+            fileInfos.setBlobHash(null);
+        } catch (IOException | RuntimeException e) {
+            log.error(String.format("Impossible de libérer le contenu partagé du fichier %s", fileInfos.getFileKey()), e);
+        }
+    }
+
+    /**
+     * Libération d'une référence à un contenu partagé, supprimé avec sa dernière référence.
+     */
+    private void releaseBlob(String contentHash) throws IOException {
+        synchronized (getBlobLock(contentHash)) {
+            blobRepository.decrementRefCount(contentHash);
+            if (blobRepository.deleteIfUnreferenced(contentHash) > 0) {
+                Path blobFilePathObj = getBlobFilePathObj(contentHash);
+                integrityCache.invalidate(blobFilePathObj);
+                Files.deleteIfExists(blobFilePathObj);
             }
+        }
+    }
+
+    /**
+     * @return taille maximale (octets) d'un fichier déposé, au plus Integer.MAX_VALUE
+     */
+    public long getUploadMaxFileSize() {
+        return uploadMaxFileSize > 0 ? Math.min(uploadMaxFileSize, Integer.MAX_VALUE) : Integer.MAX_VALUE;
+    }
+
+    private Object getBlobLock(String contentHash) {
+        return blobLocks[(contentHash.hashCode() & Integer.MAX_VALUE) % blobLocks.length];
+    }
+
+    /**
+     * Chemin d'un contenu partagé : nom hexadécimal du hash, réparti sur deux niveaux de sous-répertoires (ab/cd/abcd...)
+     */
+    private Path getBlobFilePathObj(String contentHash) {
+        String hexHash = toHex(Base64.getDecoder().decode(contentHash));
+        return Paths.get(nasBlobRootdir, hexHash.substring(0, 2), hexHash.substring(2, 4), hexHash);
+    }
+
+    /**
+     * Ouverture d'une réception de contenu en une seule lecture (hash, fichier temporaire et scan antivirus au fil de l'eau).
+     * Le répertoire temporaire est placé par défaut sur le même volume que les fichiers actifs
+     * afin que le déplacement final soit un simple renommage.
+     *
+     * @param scanInline scan antivirus pendant la réception (sauf si ingest.inlineScan.enabled=false)
+     * @return flux de réception, à fermer par l'appelant
+     * @throws ServerError500Exception
+     */
+    public IngestOutputStream openIngestStream(boolean scanInline) throws ServerError500Exception {
+        return openIngestStream(createUploadTempFile(), true, scanInline);
+    }
+
+    private IngestOutputStream openIngestStream(Path tempFile, boolean writeFile, boolean scanInline) throws ServerError500Exception {
+        MessageDigest digester;
+        try {
+            digester = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            deleteTempFile(tempFile);
+            throw new ServerError500Exception("SHA256 non supporté.", e);
+        }
+
+        ClamAVScanner.InstreamScan instreamScan = null;
+        String signatureVersion = null;
+        if (scanInline && inlineIngestScan) {
+            // Version des signatures lue AVANT le scan (cf. AntivirusVerdictCache.recordVerdict)
+            signatureVersion = verdictCache.getSignatureVersion();
+            try {
+                instreamScan = clamAVScanner.openInstreamScan();
+            } catch (ClamAVScanner.ClamdPoolExhaustedException e) {
+                log.info("Aucune session clamd libre pour un scan au fil de l'eau, le contenu sera scanné après réception");
+            } catch (IOException e) {
+                log.warn("Scan antivirus au fil de l'eau impossible, le contenu sera scanné après réception", e);
+            }
+        }
+
+        try {
+            return new IngestOutputStream(this, storageMetrics, tempFile, writeFile, getUploadMaxFileSize(), digester, instreamScan, signatureVersion);
         } catch (IOException ioExceptionObj) {
-            log.error("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
-            throw new ServerError500Exception("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+            if (instreamScan != null) {
+                instreamScan.close();
+            }
+            deleteTempFile(tempFile);
+            log.error("Impossible de créer le fichier temporaire de réception", ioExceptionObj);
+            throw new ServerError500Exception("Impossible de créer le fichier temporaire de réception", ioExceptionObj);
+        }
+    }
+
+    /**
+     * Réception par blocs d'un flux entrant (corps de requête, partie multipart) en une seule lecture,
+     * cf. {@link #openIngestStream(boolean)}.
+     *
+     * @param in         flux des données reçues
+     * @param scanInline scan antivirus pendant la réception
+     * @return contenu reçu (fichier temporaire à supprimer par l'appelant via {@link #deleteTempFile(Path)})
+     * @throws BadRequest400Exception si le contenu dépasse la taille maximale d'un fichier déposé
+     * @throws ServerError500Exception
+     */
+    public BSFileContent ingest(InputStream in, boolean scanInline) throws BadRequest400Exception, ServerError500Exception {
+        return ingest(in, openIngestStream(scanInline));
+    }
+
+    /**
+     * Prise en charge d'un contenu déjà reçu dans un fichier temporaire du répertoire de réception (partie multipart
+     * stockée par le conteneur dans nas.upload.tempdir) : le fichier est lu une seule fois pour le hash et le scan
+     * au fil de l'eau, sans être recopié.
+     *
+     * @param receivedFile fichier temporaire reçu (supprimé en cas d'erreur)
+     * @param scanInline   scan antivirus pendant la lecture
+     * @return contenu reçu (fichier temporaire à supprimer par l'appelant via {@link #deleteTempFile(Path)})
+     * @throws BadRequest400Exception si le contenu dépasse la taille maximale d'un fichier déposé
+     * @throws ServerError500Exception
+     */
+    public BSFileContent ingest(Path receivedFile, boolean scanInline) throws BadRequest400Exception, ServerError500Exception {
+        IngestOutputStream out = openIngestStream(receivedFile, false, scanInline);
+        try (InputStream in = Files.newInputStream(receivedFile)) {
+            return ingest(in, out);
+        } catch (IOException ioExceptionObj) {
+            out.close();
+            log.error("Une erreur est survenue durant la réception du fichier", ioExceptionObj);
+            throw new ServerError500Exception("Une erreur est survenue durant la réception du fichier", ioExceptionObj);
+        }
+    }
+
+    private BSFileContent ingest(InputStream in, IngestOutputStream ingestStream) throws BadRequest400Exception, ServerError500Exception {
+        try (IngestOutputStream out = ingestStream) {
+            byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.complete();
+        } catch (IngestOutputStream.ContentTooLargeException e) {
+            log.warn(e.getMessage());
+            throw new BadRequest400Exception(e.getMessage());
+        } catch (IOException ioExceptionObj) {
+            log.error("Une erreur est survenue durant la réception du fichier", ioExceptionObj);
+            throw new ServerError500Exception("Une erreur est survenue durant la réception du fichier", ioExceptionObj);
+        }
+    }
+
+    /**
+     * Création d'un fichier temporaire vide dans le répertoire de réception des dépots.
+     *
+     * @return chemin du fichier temporaire
+     * @throws ServerError500Exception
+     */
+    public Path createUploadTempFile() throws ServerError500Exception {
+        try {
+            Path tempDir = Files.createDirectories(Paths.get(nasUploadTempdir));
+            return Files.createTempFile(tempDir, "upload-", ".tmp");
+        } catch (IOException ioExceptionObj) {
+            log.error("Impossible de créer le fichier temporaire de réception", ioExceptionObj);
+            throw new ServerError500Exception("Impossible de créer le fichier temporaire de réception", ioExceptionObj);
+        }
+    }
+
+    /**
+     * Suppression (silencieuse) d'un fichier temporaire de réception s'il existe encore.
+     *
+     * @param tempFile chemin du fichier temporaire
+     */
+    public void deleteTempFile(Path tempFile) {
+        if (tempFile == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            log.warn(String.format("Impossible de supprimer le fichier temporaire (%s)", tempFile), e);
+        }
+    }
+
+    public Path moveBSLTMFile(BSFileInformation fileInfos, Path ltFilePath) throws Conflict409Exception, ServerError500Exception {
+        storageMetrics.start(StorageMetrics.Stage.STORE);
+        try {
+            //return fileWrite(nasActiveRootdir, fileInfos, "", BSFileType.FILES, data);
+            try {
+                // Initialisation de la structure de répertoire d'acceuil
+                Path targetDir = createTargetDirectory(nasActiveRootdir, fileInfos, BSFileType.FILES);
+
+                // Initialisation de l'objet de stockage
+                Path filePathObj = Paths.get(targetDir.toString(), fileInfos.getStorageHashedFileName());
+
+                boolean fileExists = Files.exists(filePathObj);
+                if (!fileExists) {
+                    Files.copy(ltFilePath, filePathObj);
+                    Files.delete(ltFilePath);
+                    return setFilePermissions(filePathObj, BSFileType.FILES);
+                } else {
+                    log.warn("Un fichier de même nom existe déjà dans ce dossier", filePathObj);
+                    throw new Conflict409Exception("Un fichier de même nom existe déjà dans ce dossier.");
+                }
+            } catch (IOException ioExceptionObj) {
+                log.error("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+                throw new ServerError500Exception("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+            }
+        } finally {
+            storageMetrics.stop(StorageMetrics.Stage.STORE);
         }
     }
 
+    /**
+     * Ecriture du header d'un fichier : un fichier .bsfh par fichier, ou un enregistrement du journal des headers
+     * si celui-ci est activé (cf. {@link HeaderJournal}).
+     *
+     * @return chemin du fichier header ou du segment du journal
+     */
     public Path headerFileWrite(BSFileInformation fileInfos) throws Conflict409Exception, ServerError500Exception {
-        return internalFileWrite(nasHeaderRootdir, fileInfos, ".bsfh", BSFileType.HEARDERS, fileInfos.toHeaderFileData().getBytes());
+        storageMetrics.start(StorageMetrics.Stage.HEADER);
+        try {
+            if (!headerJournal.isEnabled()) {
+                return internalFileWrite(nasHeaderRootdir, fileInfos, ".bsfh", BSFileType.HEARDERS, fileInfos.toHeaderFileData().getBytes());
+            }
+            getStorageLayout(fileInfos);
+            if (headerExists(fileInfos)) {
+                log.warn(String.format("Un fichier de même nom existe déjà dans ce dossier (%s)", fileInfos.getStorageHashedFileName()));
+                throw new Conflict409Exception("Un fichier de même nom existe déjà dans ce dossier.");
+            }
+            try {
+                return headerJournal.append(fileInfos);
+            } catch (IOException ioExceptionObj) {
+                log.error("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+                throw new ServerError500Exception("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+            }
+        } finally {
+            storageMetrics.stop(StorageMetrics.Stage.HEADER);
+        }
+    }
+
+    /**
+     * @return true si le header du fichier existe (fichier .bsfh, ou enregistrement du journal des headers)
+     */
+    public boolean headerExists(BSFileInformation fileInfos) throws ServerError500Exception {
+        if (Files.exists(getHeaderFilePathObj(fileInfos))) {
+            return true;
+        }
+        try {
+            return headerJournal.isEnabled() && headerJournal.contains(fileInfos.getFileKey());
+        } catch (IOException ioExceptionObj) {
+            log.error("Une erreur est survenue durant la lecture du journal des headers", ioExceptionObj);
+            throw new ServerError500Exception("Une erreur est survenue durant la lecture du journal des headers", ioExceptionObj);
+        }
     }
 
     public Path semaphoreSpecialFileWrite(BSFileInformation fileInfos, Path dataFilePathObj) throws Conflict409Exception, ServerError500Exception {
         try {
             // Initialisation de la structure de répertoire d'acceuil
-            Path targetDir = setDirectoryPermissions(Files.createDirectories(Paths.get(nasSpecialRootdir, fileInfos.getLogicalFolder())), BSFileType.SPECIALS);
+            Path semaphoreFilePathObj = getSemaphoreFilePathObj(fileInfos);
+            setDirectoryPermissions(Files.createDirectories(semaphoreFilePathObj.getParent()), BSFileType.SPECIALS);
 
-            // Initialisation de l'objet de stockage
-            Path semaphoreFilePathObj = Paths.get(targetDir.toString(), fileInfos.getStorageHashedFileName() + ".go");
             return fileWriteData(semaphoreFilePathObj, BSFileType.SPECIALS, fileInfos.toSpecialFileData(dataFilePathObj.toString()).getBytes());
         } catch (IOException ioExceptionObj) {
             log.error("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
@@ -296,25 +1061,371 @@ public class Tools {
         }
     }
 
-    private Path getDataFilePathObj(BSFileInformation fileInfos) {
-        // Calcul du répertoire de stockage
-        LocalDate fileDate = fileInfos.getStorageDate().toLocalDate();
+    private Path getSemaphoreFilePathObj(BSFileInformation fileInfos) {
+        return Paths.get(nasSpecialRootdir, fileInfos.getLogicalFolder(), fileInfos.getStorageHashedFileName() + ".go");
+    }
 
-        String rootDir = nasActiveRootdir;
-        if (nasArchivedAfterNDays > 0 && LocalDate.now().minusDays(nasArchivedAfterNDays).compareTo(fileDate) > 0) {
-            rootDir = nasArchivedRootdir;
+    /**
+     * Chemins des fichiers que le dépot d'un fichier peut créer, supprimés si le dépot est annulé
+     * (cf. {@link WriteIntentLog}). L'organisation des répertoires est attribuée au fichier.
+     * Un contenu partagé (stockage dédupliqué) n'en fait pas partie : il peut être référencé par d'autres fichiers.
+     *
+     * @param fileInfos  informations relatives au fichier déposé
+     * @param quarantine true si le contenu est déposé en quarantaine
+     */
+    public List<Path> getUploadPaths(BSFileInformation fileInfos, boolean quarantine) {
+        int storageLayout = getStorageLayout(fileInfos);
+        List<Path> paths = new ArrayList<>();
+        if (quarantine) {
+            paths.add(getQuarantineFilePathObj(fileInfos));
+        } else if (!dedupEnabled || fileInfos.getIsSpecial()) {
+            paths.add(getStorageDirectory(nasActiveRootdir, fileInfos, storageLayout).resolve(fileInfos.getStorageHashedFileName()));
+        }
+        if (!headerJournal.isEnabled()) {
+            paths.add(getHeaderFilePathObj(fileInfos, storageLayout));
         }
-        return Paths.get(rootDir, String.format("%tY", fileDate), String.format("%tm", fileDate), String.format("%td", fileDate), fileInfos.getStorageHashedFileName());
+        if (fileInfos.getIsSpecial()) {
+            paths.add(getSemaphoreFilePathObj(fileInfos));
+        }
+        return paths;
+    }
+
+    /**
+     * Fichiers et répertoires à synchroniser pour rendre durable l'écriture des fichiers donnés : chaque fichier,
+     * et ses répertoires parents jusqu'au répertoire racine de stockage (entrées créées par les renommages et
+     * les créations de répertoires).
+     */
+    public Set<Path> getDurablePaths(Collection<Path> filePathObjs) {
+        Set<Path> rootDirs = new HashSet<>();
+        for (String rootDir : new String[]{nasActiveRootdir, nasArchivedRootdir, nasHeaderRootdir, nasSpecialRootdir,
+                nasQuarantineRootdir, nasBlobRootdir}) {
+            rootDirs.add(Paths.get(rootDir).toAbsolutePath().normalize());
+        }
+        rootDirs.add(headerJournal.getJournalDir().toAbsolutePath().normalize());
+
+        Set<Path> paths = new LinkedHashSet<>();
+        for (Path filePathObj : filePathObjs) {
+            if (filePathObj == null) {
+                continue;
+            }
+            Path path = filePathObj.toAbsolutePath().normalize();
+            paths.add(path);
+            Path dir = path.getParent();
+            while (dir != null && paths.add(dir) && !rootDirs.contains(dir)) {
+                dir = dir.getParent();
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Reprise d'un dépot interrompu dont les informations ont été enregistrées en base (cf. {@link WriteIntentLog}) :
+     * le header est réécrit s'il est absent ou incomplet, et le fichier sémaphore d'un fichier spécial est écrit
+     * s'il ne l'a pas été.
+     *
+     * @param fileInfos informations enregistrées du fichier
+     * @throws ServerError500Exception
+     */
+    public void completeInterruptedUpload(BSFileInformation fileInfos) throws ServerError500Exception {
+        int status = fileInfos.getStatus();
+        if (status < 0) {
+            return;
+        }
+        repairHeader(fileInfos);
+        if (fileInfos.getIsSpecial() && status == 0) {
+            try {
+                semaphoreSpecialFileWrite(fileInfos, getDataFilePathObj(fileInfos));
+            } catch (Conflict409Exception e) {
+                log.debug(String.format("Fichier sémaphore déjà écrit (%s)", fileInfos.getFileKey()));
+            }
+            updateFileStatus(fileInfos, BSFile.Status.SPECIAL_READY_TO_BE_TREATED.value(), null);
+        }
+    }
+
+    /**
+     * Réécriture, à partir de ses informations, du header d'un fichier s'il est absent ou incomplet.
+     *
+     * @throws ServerError500Exception
+     */
+    public void repairHeader(BSFileInformation fileInfos) throws ServerError500Exception {
+        try {
+            restoreHeader(fileInfos);
+        } catch (IOException ioExceptionObj) {
+            log.error("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+            throw new ServerError500Exception("Une erreur est survenue durant l'écriture du fichier", ioExceptionObj);
+        }
+    }
+
+    /**
+     * Chemin du fichier de données d'un fichier stocké (contenu partagé, fichier archivé ou autre organisation
+     * des répertoires), sans vérification de son existence.
+     */
+    public Path getStoredDataFilePath(BSFileInformation fileInfos) {
+        return getDataFilePathObj(fileInfos);
+    }
+
+    /**
+     * Hash du contenu d'origine du fichier de données d'un fichier stocké (décompressé s'il est stocké compressé).
+     */
+    public String computeStoredContentSha256ToBase64(BSFileInformation fileInfos, Path dataFilePathObj)
+            throws NoSuchAlgorithmException, NotFound404Exception, ServerError500Exception {
+        return computeContentSha256ToBase64(dataFilePathObj, isGzipEncoded(fileInfos));
+    }
+
+    private void restoreHeader(BSFileInformation fileInfos) throws IOException {
+        if (headerJournal.isEnabled() && !Files.exists(getHeaderFilePathObj(fileInfos))) {
+            if (!headerJournal.contains(fileInfos.getFileKey())) {
+                headerJournal.append(fileInfos);
+            }
+            return;
+        }
+        byte[] data = fileInfos.toHeaderFileData().getBytes();
+        Path headerFilePathObj = getHeaderFilePathObj(fileInfos);
+        if (Files.exists(headerFilePathObj) && Arrays.equals(Files.readAllBytes(headerFilePathObj), data)) {
+            return;
+        }
+        log.info(String.format("Réécriture du header du fichier %s", fileInfos.getFileKey()));
+        createStorageDirectory(headerFilePathObj.getParent(), getStorageLayout(fileInfos), BSFileType.HEARDERS);
+        Path tempFilePathObj = headerFilePathObj.resolveSibling(headerFilePathObj.getFileName() + ".tmp");
+        Files.write(tempFilePathObj, data);
+        Files.move(tempFilePathObj, headerFilePathObj, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        setFilePermissions(headerFilePathObj, BSFileType.HEARDERS);
+    }
+
+    /**
+     * Chemin du fichier de données selon le niveau de stockage et l'organisation enregistrés en base. Uniquement pendant
+     * l'archivage, s'il n'existe pas, il est recherché sur l'autre niveau de stockage (informations lues avant
+     * le déplacement du fichier, cf. {@link #migrateStorageTier}).
+     */
+    private Path getDataFilePathObj(BSFileInformation fileInfos) {
+        if (fileInfos.getBlobHash() != null) {
+            return getBlobFilePathObj(fileInfos.getBlobHash());
+        }
+        int storageTier = getStorageTier(fileInfos);
+        Path filePathObj = resolveStoredPath(fileInfos, layout -> getDataFilePathObj(fileInfos, layout, storageTier));
+        if (tierMigrationRunning && hasDistinctArchiveRoot() && !Files.exists(filePathObj)) {
+            int otherTier = storageTier == BSFileInformation.ARCHIVED_STORAGE_TIER
+                    ? BSFileInformation.ACTIVE_STORAGE_TIER : BSFileInformation.ARCHIVED_STORAGE_TIER;
+            Path candidate = resolveStoredPath(fileInfos, layout -> getDataFilePathObj(fileInfos, layout, otherTier));
+            if (Files.exists(candidate)) {
+                return candidate;
+            }
+        }
+        return filePathObj;
+    }
+
+    private Path getDataFilePathObj(BSFileInformation fileInfos, int storageLayout) {
+        return getDataFilePathObj(fileInfos, storageLayout, getStorageTier(fileInfos));
+    }
+
+    private Path getDataFilePathObj(BSFileInformation fileInfos, int storageLayout, int storageTier) {
+        String rootDir = storageTier == BSFileInformation.ARCHIVED_STORAGE_TIER ? nasArchivedRootdir : nasActiveRootdir;
+        return getStorageDirectory(rootDir, fileInfos, storageLayout).resolve(fileInfos.getStorageHashedFileName());
+    }
+
+    private static int getStorageTier(BSFileInformation fileInfos) {
+        return fileInfos.getStorageTier() != null ? fileInfos.getStorageTier() : BSFileInformation.ACTIVE_STORAGE_TIER;
+    }
+
+    /**
+     * Déclare la migration de l'organisation des répertoires active ou non (cf. {@link #resolveStoredPath}).
+     */
+    public void setLayoutMigrationRunning(boolean layoutMigrationRunning) {
+        this.layoutMigrationRunning = layoutMigrationRunning;
+    }
+
+    /**
+     * Déclare l'archivage (déplacement entre niveaux de stockage) actif ou non (cf. {@link #getDataFilePathObj(BSFileInformation)}).
+     */
+    public void setTierMigrationRunning(boolean tierMigrationRunning) {
+        this.tierMigrationRunning = tierMigrationRunning;
+    }
+
+    /**
+     * @return true si les fichiers archivés sont stockés dans un autre répertoire que les fichiers actifs
+     */
+    public boolean hasDistinctArchiveRoot() {
+        return !Paths.get(nasActiveRootdir).normalize().equals(Paths.get(nasArchivedRootdir).normalize());
     }
 
     private Path getHeaderFilePathObj(BSFileInformation fileInfos) {
-        // Calcul du répertoire de stockage
-        LocalDate fileDate = fileInfos.getStorageDate().toLocalDate();
-        return Paths.get(nasHeaderRootdir, String.format("%tY", fileDate), String.format("%tm", fileDate), String.format("%td", fileDate), fileInfos.getStorageHashedFileName() + ".bsfh");
+        return resolveStoredPath(fileInfos, layout -> getHeaderFilePathObj(fileInfos, layout));
+    }
+
+    private Path getHeaderFilePathObj(BSFileInformation fileInfos, int storageLayout) {
+        return getStorageDirectory(nasHeaderRootdir, fileInfos, storageLayout).resolve(fileInfos.getStorageHashedFileName() + ".bsfh");
+    }
+
+    /**
+     * Déplacement des fichiers (données et header) d'un fichier stocké vers une autre organisation des répertoires,
+     * puis mise à jour de la version associée en base. Les fichiers restent accessibles pendant le déplacement
+     * tant que la migration est déclarée active (cf. {@link #setLayoutMigrationRunning}) et l'opération peut être
+     * rejouée après une interruption.
+     * Les fichiers spéciaux (chemin transmis au traitement externe) et en quarantaine ne doivent pas être migrés.
+     *
+     * @param fileInfos     informations relatives au fichier à migrer
+     * @param storageLayout version cible de l'organisation des répertoires
+     * @return true si le fichier a été migré, false s'il l'était déjà
+     * @throws ServerError500Exception
+     */
+    public boolean migrateStorageLayout(BSFileInformation fileInfos, int storageLayout) throws ServerError500Exception {
+        synchronized (getStorageLock(fileInfos.getStorageHashedFileName())) {
+            // Niveau de stockage éventuellement modifié depuis la lecture des informations
+            BSFileInformation current = bsfiRepository.findOne(fileInfos.getId());
+            if (current == null) {
+                return false;
+            }
+            fileInfos.setStorageTier(current.getStorageTier());
+            return internalMigrateStorageLayout(fileInfos, storageLayout);
+        }
+    }
+
+    private boolean internalMigrateStorageLayout(BSFileInformation fileInfos, int storageLayout) throws ServerError500Exception {
+        int currentLayout = fileInfos.getStorageLayout() != null ? fileInfos.getStorageLayout() : LEGACY_STORAGE_LAYOUT;
+        if (currentLayout == storageLayout) {
+            return false;
+        }
+        try {
+            if (fileInfos.getBlobHash() == null) {
+                Path sourcePathObj = getDataFilePathObj(fileInfos, currentLayout);
+                moveStoredFile(sourcePathObj, getDataFilePathObj(fileInfos, storageLayout), storageLayout, BSFileType.FILES);
+                integrityCache.invalidate(sourcePathObj);
+            }
+            Path headerFilePathObj = getHeaderFilePathObj(fileInfos, currentLayout);
+            if (!headerJournal.isEnabled() || Files.exists(headerFilePathObj)) {
+                moveStoredFile(headerFilePathObj, getHeaderFilePathObj(fileInfos, storageLayout), storageLayout, BSFileType.HEARDERS);
+            }
+        } catch (IOException ioExceptionObj) {
+            log.error("Une erreur est survenue durant le déplacement du fichier", ioExceptionObj);
+            throw new ServerError500Exception("Une erreur est survenue durant le déplacement du fichier", ioExceptionObj);
+        }
+        fileInfos.setStorageLayout(storageLayout);
+        bsfiRepository.updateStorageLayout(fileInfos.getId(), storageLayout);
+        fileInfosCache.invalidate(fileInfos.getFileKey());
+        return true;
+    }
+
+    /**
+     * Déplacement du fichier de données d'un fichier stocké vers un autre niveau de stockage (répertoire racine
+     * nas.active.rootdir ou nas.archived.rootdir, généralement sur un autre volume) : copie, synchronisation durable
+     * et vérification du hash de la copie, mise à jour du niveau en base, puis suppression de l'original.
+     * Le fichier reste accessible pendant le déplacement et l'opération peut être rejouée après une interruption.
+     * Les fichiers spéciaux, en quarantaine et les contenus partagés ne doivent pas être déplacés.
+     *
+     * @param fileInfos   informations relatives au fichier à déplacer
+     * @param storageTier niveau de stockage cible
+     * @param rateLimiter débit (octets par seconde) des lectures et écritures
+     * @return true si le fichier a été déplacé, false s'il l'était déjà (ou s'il a été supprimé entre-temps)
+     * @throws Conflict409Exception    le contenu copié ne correspond pas au hash du fichier
+     * @throws ServerError500Exception
+     */
+    public boolean migrateStorageTier(BSFileInformation fileInfos, int storageTier, IoRateLimiter rateLimiter)
+            throws Conflict409Exception, ServerError500Exception {
+        synchronized (getStorageLock(fileInfos.getStorageHashedFileName())) {
+            BSFileInformation current = bsfiRepository.findOne(fileInfos.getId());
+            if (current == null || getStorageTier(current) == storageTier || current.getBlobHash() != null) {
+                return false;
+            }
+            int storageLayout = getStorageLayout(current);
+            int currentTier = getStorageTier(current);
+            Path sourcePathObj = resolveStoredPath(current, layout -> getDataFilePathObj(current, layout, currentTier));
+            Path targetPathObj = getDataFilePathObj(current, storageLayout, storageTier);
+            boolean moved = !sourcePathObj.equals(targetPathObj);
+            try {
+                if (moved) {
+                    copyStoredFile(current, sourcePathObj, targetPathObj, storageLayout, rateLimiter);
+                }
+                if (bsfiRepository.updateStorageTier(current.getId(), storageTier) == 0) {
+                    // Fichier supprimé pendant la copie
+                    if (moved) {
+                        Files.deleteIfExists(targetPathObj);
+                    }
+                    return false;
+                }
+                fileInfos.setStorageTier(storageTier);
+                fileInfosCache.invalidate(current.getFileKey());
+                if (moved) {
+                    integrityCache.invalidate(sourcePathObj);
+                    Files.deleteIfExists(sourcePathObj);
+                }
+            } catch (IOException ioExceptionObj) {
+                log.error("Une erreur est survenue durant le déplacement du fichier", ioExceptionObj);
+                throw new ServerError500Exception("Une erreur est survenue durant le déplacement du fichier", ioExceptionObj);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Copie vérifiée d'un fichier de données : écriture dans un fichier temporaire, vérification du hash du contenu
+     * d'origine, synchronisation durable (la copie doit survivre à la suppression de l'original) et renommage.
+     */
+    private void copyStoredFile(BSFileInformation fileInfos, Path sourcePathObj, Path targetPathObj, int storageLayout,
+                                IoRateLimiter rateLimiter) throws Conflict409Exception, ServerError500Exception, IOException {
+        if (!Files.exists(sourcePathObj)) {
+            log.warn(String.format("Ce fichier n'existe pas (%s)", sourcePathObj));
+            throw new NoSuchFileException(sourcePathObj.toString());
+        }
+        createStorageDirectory(targetPathObj.getParent(), storageLayout, BSFileType.FILES);
+        Path tempPathObj = targetPathObj.resolveSibling(targetPathObj.getFileName() + ".tmp");
+        try {
+            byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+            try (InputStream in = Files.newInputStream(sourcePathObj);
+                 OutputStream out = Files.newOutputStream(tempPathObj)) {
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    rateLimiter.acquire(length);
+                    out.write(buffer, 0, length);
+                }
+            }
+            rateLimiter.acquire(Files.size(tempPathObj));
+            String copiedFileHash = computeContentSha256ToBase64(tempPathObj, isGzipEncoded(fileInfos));
+            if (!copiedFileHash.equals(fileInfos.getFileContentHash())) {
+                log.error(String.format("Le contenu du fichier a été modifié de manière non controlée (%s).", sourcePathObj));
+                throw new Conflict409Exception("Le contenu du fichier n'est pas cohérent (modification non controlée).");
+            }
+            Files.setLastModifiedTime(tempPathObj, Files.getLastModifiedTime(sourcePathObj));
+            Files.move(tempPathObj, targetPathObj, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            setFilePermissions(targetPathObj, BSFileType.FILES);
+            groupCommitSyncer.sync(getDurablePaths(Collections.singletonList(targetPathObj)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServerError500Exception("Déplacement du fichier interrompu", e);
+        } catch (NotFound404Exception e) {
+            throw new ServerError500Exception("Une erreur est survenue durant la copie du fichier", e);
+        } catch (NoSuchAlgorithmException e) {
+            log.error("Une erreur est survenue durant le calcul du hash du fichier", e);
+            throw new ServerError500Exception("Une erreur est survenue durant la vérification de l'intégrité du fichier", e);
+        } finally {
+            Files.deleteIfExists(tempPathObj);
+        }
+    }
+
+    private Object getStorageLock(String storageHashedFileName) {
+        return storageLocks[(storageHashedFileName.hashCode() & Integer.MAX_VALUE) % storageLocks.length];
+    }
+
+    /**
+     * Déplacement (renommage atomique sur un même volume) d'un fichier stocké, ignoré s'il a déjà été déplacé.
+     */
+    private void moveStoredFile(Path sourcePathObj, Path targetPathObj, int storageLayout, BSFileType fileType) throws IOException {
+        if (!Files.exists(sourcePathObj)) {
+            if (!Files.exists(targetPathObj)) {
+                log.warn(String.format("Ce fichier n'existe pas (%s)", sourcePathObj));
+            }
+            return;
+        }
+        createStorageDirectory(targetPathObj.getParent(), storageLayout, fileType);
+        try {
+            Files.move(sourcePathObj, targetPathObj, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.copy(sourcePathObj, targetPathObj, StandardCopyOption.COPY_ATTRIBUTES);
+            Files.delete(sourcePathObj);
+        }
     }
 
     public void deleteSemaphoreFile(BSFileInformation fileInfos) throws IOException {
-        Path semaphoreFilePathObj = Paths.get(nasSpecialRootdir, fileInfos.getLogicalFolder(), fileInfos.getStorageHashedFileName() + ".go");
+        Path semaphoreFilePathObj = getSemaphoreFilePathObj(fileInfos);
         if (Files.exists(semaphoreFilePathObj)) {
             Files.delete(semaphoreFilePathObj);
         }
@@ -331,14 +1442,23 @@ public class Tools {
             if (fileInfos.getIsSpecial()) {
                 deleteSemaphoreFile(fileInfos);
             }
-            Path dataFilePathObj = getDataFilePathObj(fileInfos);
-            if (Files.exists(dataFilePathObj)) {
-                Files.delete(dataFilePathObj);
+            if (fileInfos.getBlobHash() != null) {
+                releaseBlob(fileInfos.getBlobHash());
+            } else {
+                Path dataFilePathObj = getDataFilePathObj(fileInfos);
+                integrityCache.invalidate(dataFilePathObj);
+                if (Files.exists(dataFilePathObj)) {
+                    Files.delete(dataFilePathObj);
+                }
             }
             Path headerFilePathObj = getHeaderFilePathObj(fileInfos);
             if (Files.exists(headerFilePathObj)) {
                 Files.delete(headerFilePathObj);
             }
+            if (headerJournal.isEnabled()) {
+                headerJournal.appendDeletion(fileInfos.getFileKey());
+            }
+            Files.deleteIfExists(getQuarantineFilePathObj(fileInfos));
         } catch (IOException ioExceptionObj) {
             log.error("Une erreur est survenue durant la suppression du fichier", ioExceptionObj);
             throw new ServerError500Exception("Une erreur est survenue durant la suppression du fichier", ioExceptionObj);
@@ -346,47 +1466,70 @@ public class Tools {
     }
 
     /**
-     * Ouvre une stream de lecture vers le fichier associé aux informations fournies.
-     * En fonction de l'ancienneté de la création de l'élément et de l'activation ou non de l'archivage,
-     * le répertoire racine est modifié automatiquement.
+     * Résout et vérifie le fichier associé aux informations fournies, sans le charger en mémoire :
+     * le hash est recalculé par blocs et le scan antivirus est alimenté en streaming.
+     * Le répertoire racine dépend du niveau de stockage (actif ou archivé) enregistré pour le fichier.
+     * Si le différé est autorisé et que le fichier dépasse le seuil integrity.streaming.thresholdBytes,
+     * le hash n'est pas calculé avant le transfert : il doit l'être pendant celui-ci, puis confirmé
+     * via {@link #confirmStreamedIntegrity}.
      *
-     * @param fileInfos informations relatives au fichier à charger.
-     * @return une stream de lecture du fichier associé.
+     * @param fileInfos                   informations relatives au fichier à charger.
+     * @param allowDeferredIntegrityCheck autorise la vérification du hash pendant le transfert
+     * @return le fichier à transférer vers le client.
      * @throws NotFound404Exception
      * @throws ServerError500Exception
      */
-    public InputStreamResource getFileContentAsInputStream(BSFileInformation fileInfos)
+    public DownloadableDataFile getDataFileForDownload(BSFileInformation fileInfos, boolean allowDeferredIntegrityCheck)
             throws NotFound404Exception, ServerError500Exception, VirusFound409Exception, Conflict409Exception {
         try {
-            Path filePathObj = getDataFilePathObj(fileInfos);
-
-            if (Files.exists(filePathObj)) {
-                // Lecture du fichier en memoire pour permettre réutilisation
-                byte[] data = Files.readAllBytes(filePathObj);
-
-                // Vérifie que le contenu n'a pas été modifié
-                String storedFileHash = computeBytesSha256ToBase64(data);
-                if (!storedFileHash.equals(fileInfos.getFileContentHash())) {
-                    log.error("Le contenu du fichier a été modifié de manière non controlée.", filePathObj);
-                    throw new Conflict409Exception("Le contenu du fichier n'est pas cohérent (modification non controlée).");
-                }
+            Path filePathObj;
+            BasicFileAttributes attrs;
+            storageMetrics.start(StorageMetrics.Stage.RESOLVE);
+            try {
+                filePathObj = getDataFilePathObj(fileInfos);
+                attrs = Files.readAttributes(filePathObj, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                log.warn(String.format("Ce fichier n'existe pas (%s)", e.getFile()));
+                throw new NotFound404Exception();
+            } finally {
+                storageMetrics.stop(StorageMetrics.Stage.RESOLVE);
+            }
 
-                // Check le contenu pour des virus qui serait détecté depuis le jour du dépot.
-                if (!fileInfos.getIsContentNoVirusTrusted()) {
+            // Vérifie que le contenu n'a pas été modifié (sauf vérification récente d'un fichier inchangé depuis)
+            // Le hash porte sur le contenu d'origine : un contenu compressé est vérifié avant le transfert
+            boolean gzipEncoded = isGzipEncoded(fileInfos);
+            boolean integrityCheckDeferred = false;
+            if (!integrityCache.isVerified(filePathObj, attrs, fileInfos.getFileContentHash())) {
+                if (allowDeferredIntegrityCheck && !gzipEncoded && streamingVerificationThreshold >= 0 && attrs.size() >= streamingVerificationThreshold) {
+                    integrityCheckDeferred = true;
+                } else {
+                    String storedFileHash;
+                    storageMetrics.start(StorageMetrics.Stage.VERIFY);
                     try {
-                        antivirusScan(data);
-                    } catch (VirusFound409Exception e) {
-                        fileInfos.setStatus(BSFile.Status.VIRUS_INFECTED.value());
-                        fileInfos.setStatusLinkedData(e.getMessage());
-                        bsfiRepository.save(fileInfos);
-                        throw e;
+                        storedFileHash = computeContentSha256ToBase64(filePathObj, gzipEncoded);
+                    } finally {
+                        storageMetrics.stop(StorageMetrics.Stage.VERIFY);
+                    }
+                    if (!storedFileHash.equals(fileInfos.getFileContentHash())) {
+                        log.error("Le contenu du fichier a été modifié de manière non controlée.", filePathObj);
+                        throw new Conflict409Exception("Le contenu du fichier n'est pas cohérent (modification non controlée).");
                     }
+                    integrityCache.markVerified(filePathObj, attrs, storedFileHash);
                 }
-                return new InputStreamResource(new ByteArrayInputStream(data));
-            } else {
-                log.warn(String.format("Ce fichier n'existe pas (%s)", filePathObj));
-                throw new NotFound404Exception();
             }
+
+            // Check le contenu pour des virus qui serait détecté depuis le jour du dépot
+            // (par défaut, ce contrôle est assuré en arrière-plan par le RescanService).
+            if (!fileInfos.getIsContentNoVirusTrusted() && inlineDownloadScan) {
+                try {
+                    antivirusScan(filePathObj, fileInfos.getFileContentHash(), gzipEncoded);
+                } catch (VirusFound409Exception e) {
+                    updateFileStatus(fileInfos, BSFile.Status.VIRUS_INFECTED.value(), e.getMessage());
+                    throw e;
+                }
+            }
+            accessTracker.recordAccess(fileInfos);
+            return new DownloadableDataFile(filePathObj, attrs, integrityCheckDeferred, gzipEncoded);
         } catch (IOException ioExceptionObj) {
             log.error("Une erreur est survenue durant la lecture du fichier", ioExceptionObj);
             throw new ServerError500Exception("Une erreur est survenue durant la lecture du fichier", ioExceptionObj);
@@ -396,6 +1539,50 @@ public class Tools {
         }
     }
 
+    /**
+     * Rescan en arrière-plan du fichier de données d'un fichier déjà stocké (cf. {@link RescanService}).
+     *
+     * @param fileInfos informations relatives au fichier à rescanner
+     * @throws NotFound404Exception    Le fichier de données n'existe pas
+     * @throws ServerError500Exception Le scan n'a pas pu être effectué
+     * @throws VirusFound409Exception  Le fichier contient potentiellement un virus
+     */
+    public void rescanDataFile(BSFileInformation fileInfos) throws NotFound404Exception, ServerError500Exception, VirusFound409Exception {
+        Path filePathObj = getDataFilePathObj(fileInfos);
+        if (!Files.exists(filePathObj)) {
+            log.warn(String.format("Ce fichier n'existe pas (%s)", filePathObj));
+            throw new NotFound404Exception();
+        }
+        antivirusScan(filePathObj, fileInfos.getFileContentHash(), isGzipEncoded(fileInfos));
+    }
+
+    /**
+     * Prise en compte du résultat d'une vérification d'intégrité effectuée pendant le transfert.
+     * En cas d'incohérence le fichier est marqué CORRUPTED : les demandes suivantes sont refusées (409).
+     *
+     * @param fileInfos informations relatives au fichier transféré
+     * @param dataFile  fichier transféré
+     * @param verified  true si le hash calculé pendant le transfert correspond au hash attendu
+     */
+    public void confirmStreamedIntegrity(BSFileInformation fileInfos, DownloadableDataFile dataFile, boolean verified) {
+        if (verified) {
+            integrityCache.markVerified(dataFile.getPath(), dataFile.getAttributes(), fileInfos.getFileContentHash());
+            return;
+        }
+        log.error(String.format("Le contenu du fichier a été modifié de manière non controlée (%s), transfert interrompu.", dataFile.getPath()));
+        updateFileStatus(fileInfos, BSFile.Status.CORRUPTED.value(), "Le contenu du fichier n'est pas cohérent (modification non controlée).");
+    }
+
+    /**
+     * Mise à jour du seul statut en base (les informations fournies peuvent provenir du cache) et invalidation du cache.
+     */
+    private void updateFileStatus(BSFileInformation fileInfos, Integer status, String statusLinkedData) {
+        fileInfos.setStatus(status);
+        fileInfos.setStatusLinkedData(statusLinkedData);
+        bsfiRepository.updateStatus(fileInfos.getId(), status, statusLinkedData);
+        fileInfosCache.invalidate(fileInfos.getFileKey());
+    }
+
     public String normalizeFilename(String filename) {
         return Normalizer.normalize(filename, Normalizer.Form.NFD)
                 .replaceAll("[\u0300-\u036f]", "")
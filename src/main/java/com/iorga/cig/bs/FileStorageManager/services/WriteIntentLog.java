@@ -0,0 +1,533 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.exceptions.ServerError500Exception;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Journal des intentions d'écriture : rend les dépots durables et permet de reprendre ceux interrompus par un arrêt brutal.
+ * <p>
+ * Un dépot enregistre son intention (fichiers qu'il peut créer) avant toute écriture, synchronise ses fichiers une fois
+ * écrits puis enregistre ses informations en base, et enfin clôt son intention. Les synchronisations (fsync) sont
+ * groupées entre dépots concurrents (cf. {@link GroupCommitSyncer}) ; la clôture n'est pas synchronisée, la reprise
+ * d'un dépot terminé étant sans effet.
+ * <p>
+ * Au démarrage, chaque intention non close (ou abandonnée) est reprise selon la base : si les informations du fichier
+ * y sont enregistrées, le dépot est complété (header, fichier sémaphore), sinon les fichiers créés sont supprimés.
+ * <p>
+ * Les enregistrements (cf. {@link ChecksummedLine}) sont écrits dans des fichiers intents-instance-NNNNNNNN.log :
+ * "B n fileKey chemins" (début), "C n" (dépot enregistré), "A n" (dépot abandonné). Au-delà de
+ * storage.durability.intentLogMaxBytes un nouveau fichier est ouvert, le précédent étant supprimé une fois
+ * toutes ses intentions closes.
+ * <p>
+ * Le répertoire peut être partagé entre instances : chaque instance nomme ses fichiers d'après son identifiant
+ * (storage.durability.instanceId) et conserve un verrou exclusif sur ses fichiers ouverts. Seuls les fichiers
+ * dont le verrou peut être pris (instance arrêtée) sont repris au démarrage.
+ */
+@Service
+@Lazy(false)
+@ManagedResource(objectName = "bsfm:name=WriteIntentLog")
+public class WriteIntentLog {
+
+    /**
+     * Nom d'un fichier du journal : identifiant de l'instance (absent des fichiers des versions précédentes), numéro
+     */
+    private static final Pattern LOG_NAME = Pattern.compile("intents-(?:(.+)-)?(\\d{8})\\.log");
+
+    private static final Pattern INSTANCE_ID_INVALID_CHARS = Pattern.compile("[^A-Za-z0-9._]");
+
+    private static final char BEGIN_RECORD = 'B';
+    private static final char COMMIT_RECORD = 'C';
+    private static final char ABORT_RECORD = 'A';
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${storage.durability.enabled:false}")
+    private boolean enabled;
+
+    @Value("${storage.durability.intentLogDir:${nas.active.rootdir}/.intents}")
+    private String intentLogDir;
+
+    @Value("${storage.durability.intentLogMaxBytes:1048576}")
+    private long intentLogMaxBytes;
+
+    /**
+     * Identifiant de l'instance dans le nom de ses fichiers (par défaut pid_hôte)
+     */
+    @Value("${storage.durability.instanceId:}")
+    private String instanceId;
+
+    @Autowired
+    private GroupCommitSyncer syncer;
+
+    @Autowired
+    private Tools toolServices;
+
+    @Autowired
+    private HeaderJournal headerJournal;
+
+    @Autowired
+    private IBSFileInformationRepository bsfiRepository;
+
+    private Generation activeGeneration;
+    private long sequence;
+
+    private final AtomicLong begun = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+    private final AtomicLong syncFailures = new AtomicLong();
+    private volatile int recoveredCommitted;
+    private volatile int recoveredRolledBack;
+
+    @PostConstruct
+    private synchronized void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Path dir = Files.createDirectories(Paths.get(intentLogDir));
+        toolServices.setDirectoryPermissions(dir, BSFileType.FILES);
+        if (StringUtils.isEmpty(instanceId)) {
+            instanceId = ManagementFactory.getRuntimeMXBean().getName();
+        }
+        instanceId = INSTANCE_ID_INVALID_CHARS.matcher(instanceId).replaceAll("_");
+
+        List<Path> logFiles;
+        try (Stream<Path> files = Files.list(dir)) {
+            logFiles = files.filter(file -> LOG_NAME.matcher(file.getFileName().toString()).matches())
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        int lastNumber = 0;
+        for (Path logFile : logFiles) {
+            Matcher matcher = LOG_NAME.matcher(logFile.getFileName().toString());
+            if (matcher.matches() && instanceId.equals(matcher.group(1))) {
+                lastNumber = Math.max(lastNumber, Integer.parseInt(matcher.group(2)));
+            }
+        }
+
+        // Les fichiers encore verrouillés appartiennent à une instance en cours d'exécution
+        Map<Path, FileChannel> claimedLogs = new LinkedHashMap<>();
+        try {
+            for (Path logFile : logFiles) {
+                FileChannel channel = claim(logFile);
+                if (channel != null) {
+                    claimedLogs.put(logFile, channel);
+                } else {
+                    log.info(String.format("Journal des intentions utilisé par une autre instance, non repris (%s)", logFile));
+                }
+            }
+
+            openGeneration(lastNumber + 1);
+            if (!claimedLogs.isEmpty() && recover(claimedLogs)) {
+                for (Path logFile : claimedLogs.keySet()) {
+                    // Supprimé avant la libération du verrou
+                    Files.delete(logFile);
+                }
+            }
+        } finally {
+            for (FileChannel channel : claimedLogs.values()) {
+                channel.close();
+            }
+        }
+        syncer.sync(Collections.singletonList(dir));
+    }
+
+    /**
+     * Prise du verrou exclusif d'un fichier du journal.
+     *
+     * @return canal verrouillé du fichier, null s'il est verrouillé par une autre instance ou s'il n'existe plus
+     */
+    private static FileChannel claim(Path logFile) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        boolean locked = false;
+        try {
+            // Fichier supprimé par son instance pendant la prise du verrou : il n'y a rien à reprendre
+            locked = channel.tryLock() != null && Files.exists(logFile);
+        } catch (OverlappingFileLockException e) {
+            // Fichier ouvert par ce processus
+        } finally {
+            if (!locked) {
+                channel.close();
+            }
+        }
+        return locked ? channel : null;
+    }
+
+    @PreDestroy
+    private synchronized void close() throws IOException {
+        if (activeGeneration != null) {
+            activeGeneration.channel.close();
+            activeGeneration = null;
+        }
+    }
+
+    /**
+     * Enregistrement (durable) de l'intention de dépot d'un fichier, avant toute écriture.
+     * L'organisation des répertoires est attribuée au fichier.
+     *
+     * @param fileInfos  informations relatives au fichier déposé
+     * @param quarantine true si le contenu est déposé en quarantaine
+     * @return intention à clore par {@link #complete}, null si la durabilité n'est pas activée
+     * @throws ServerError500Exception
+     */
+    public Intent begin(BSFileInformation fileInfos, boolean quarantine) throws ServerError500Exception {
+        if (!enabled) {
+            return null;
+        }
+        StringBuilder body = new StringBuilder();
+        Intent intent;
+        synchronized (this) {
+            intent = new Intent(++sequence, activeGeneration);
+            body.append(BEGIN_RECORD).append(' ').append(intent.sequence).append('\t')
+                    .append(ChecksummedLine.escape(fileInfos.getFileKey()));
+            for (Path path : toolServices.getUploadPaths(fileInfos, quarantine)) {
+                body.append('\t').append(ChecksummedLine.escape(path.toString()));
+            }
+            try {
+                write(activeGeneration, body.toString());
+            } catch (IOException ioExceptionObj) {
+                log.error("Une erreur est survenue durant l'écriture du journal des intentions", ioExceptionObj);
+                throw new ServerError500Exception("Une erreur est survenue durant l'écriture du journal des intentions", ioExceptionObj);
+            }
+            activeGeneration.openIntents++;
+            begun.incrementAndGet();
+            if (activeGeneration.size >= intentLogMaxBytes) {
+                rotate();
+            }
+        }
+        Generation generation = intent.generation;
+        try {
+            // L'entrée d'un nouveau journal dans le répertoire est synchronisée avec son premier enregistrement
+            syncer.sync(generation.directorySynced ? Collections.singletonList(generation.path)
+                    : Arrays.asList(generation.path, generation.path.getParent()));
+            generation.directorySynced = true;
+        } catch (IOException ioExceptionObj) {
+            syncFailures.incrementAndGet();
+            complete(intent, false);
+            log.error("Une erreur est survenue durant la synchronisation du journal des intentions", ioExceptionObj);
+            throw new ServerError500Exception("Une erreur est survenue durant la synchronisation du journal des intentions", ioExceptionObj);
+        }
+        return intent;
+    }
+
+    /**
+     * Synchronisation (groupée) des fichiers écrits et de leurs répertoires, avant l'enregistrement en base.
+     * Sans effet si la durabilité n'est pas activée.
+     *
+     * @param filePathObjs fichiers écrits (les valeurs null sont ignorées)
+     * @throws ServerError500Exception
+     */
+    public void sync(Path... filePathObjs) throws ServerError500Exception {
+        if (!enabled) {
+            return;
+        }
+        try {
+            syncer.sync(toolServices.getDurablePaths(Arrays.asList(filePathObjs)));
+        } catch (IOException ioExceptionObj) {
+            syncFailures.incrementAndGet();
+            log.error("Une erreur est survenue durant la synchronisation des fichiers", ioExceptionObj);
+            throw new ServerError500Exception("Une erreur est survenue durant la synchronisation des fichiers", ioExceptionObj);
+        }
+    }
+
+    /**
+     * Clôture d'une intention, une fois les informations du fichier enregistrées en base (ou le dépot abandonné).
+     *
+     * @param intent    intention retournée par {@link #begin} (null ignoré)
+     * @param committed true si les informations du fichier ont été enregistrées
+     */
+    public synchronized void complete(Intent intent, boolean committed) {
+        if (intent == null || intent.completed) {
+            return;
+        }
+        intent.completed = true;
+        (committed ? this.committed : aborted).incrementAndGet();
+        Generation generation = intent.generation;
+        try {
+            if (generation.channel.isOpen()) {
+                write(generation, (committed ? COMMIT_RECORD : ABORT_RECORD) + " " + intent.sequence);
+            }
+        } catch (IOException ioExceptionObj) {
+            // L'intention sera reprise au prochain démarrage
+            log.warn("Une erreur est survenue durant l'écriture du journal des intentions", ioExceptionObj);
+        }
+        generation.openIntents--;
+        if (generation != activeGeneration && generation.openIntents == 0) {
+            deleteGeneration(generation);
+        }
+    }
+
+    private void write(Generation generation, String body) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(ChecksummedLine.format(body));
+        generation.size += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            generation.channel.write(buffer);
+        }
+    }
+
+    private void rotate() {
+        Generation previous = activeGeneration;
+        try {
+            openGeneration(previous.number + 1);
+        } catch (IOException ioExceptionObj) {
+            // Le fichier courant reste utilisé
+            log.error("Ouverture d'un nouveau journal des intentions impossible", ioExceptionObj);
+            return;
+        }
+        if (previous.openIntents == 0) {
+            deleteGeneration(previous);
+        }
+    }
+
+    /**
+     * Ouverture et verrouillage du fichier suivant de l'instance (numéro suivant si le fichier existe déjà, ou si une
+     * instance qui démarre l'a verrouillé pour le reprendre avant qu'il le soit par l'instance).
+     */
+    private void openGeneration(int number) throws IOException {
+        while (true) {
+            Path path = Paths.get(intentLogDir, String.format("intents-%s-%08d.log", instanceId, number));
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                number++;
+                continue;
+            }
+            FileChannel locked = null;
+            try {
+                if (channel.tryLock() != null && Files.exists(path)) {
+                    locked = channel;
+                }
+            } catch (OverlappingFileLockException e) {
+                // Verrouillé par ce processus
+            } finally {
+                if (locked == null) {
+                    channel.close();
+                }
+            }
+            if (locked == null) {
+                number++;
+                continue;
+            }
+            toolServices.setFilePermissions(path, BSFileType.FILES);
+            activeGeneration = new Generation(number, path, channel);
+            return;
+        }
+    }
+
+    private void deleteGeneration(Generation generation) {
+        try {
+            try {
+                // Supprimé avant la libération du verrou : il ne peut pas être repris par une autre instance
+                Files.deleteIfExists(generation.path);
+            } finally {
+                generation.channel.close();
+            }
+        } catch (IOException ioExceptionObj) {
+            log.warn(String.format("Suppression du journal des intentions impossible (%s)", generation.path), ioExceptionObj);
+        }
+    }
+
+    /**
+     * Reprise des intentions non closes ou abandonnées des journaux existants.
+     *
+     * @param logFiles journaux à reprendre et leurs canaux verrouillés (lus sans être fermés : fermer un autre canal
+     *                 du fichier libérerait le verrou)
+     * @return true si toutes les intentions ont été reprises (les journaux peuvent être supprimés)
+     */
+    private boolean recover(Map<Path, FileChannel> logFiles) throws IOException {
+        Map<String, String[]> pending = new LinkedHashMap<>();
+        for (Map.Entry<Path, FileChannel> logEntry : logFiles.entrySet()) {
+            Path logFile = logEntry.getKey();
+            FileChannel channel = logEntry.getValue().position(0);
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            String line;
+            while ((line = ChecksummedLine.readLine(in, buffer)) != null) {
+                String body = ChecksummedLine.parse(line);
+                if (body == null || body.length() < 3) {
+                    log.warn(String.format("Enregistrement altéré ignoré (%s)", logFile));
+                    continue;
+                }
+                String[] fields = body.substring(2).split("\t");
+                String key = logFile.getFileName() + ":" + fields[0];
+                if (body.charAt(0) == BEGIN_RECORD && fields.length >= 2) {
+                    pending.put(key, fields);
+                } else if (body.charAt(0) == COMMIT_RECORD) {
+                    pending.remove(key);
+                }
+            }
+        }
+
+        boolean recovered = true;
+        List<Path> touchedPaths = new ArrayList<>();
+        for (String[] fields : pending.values()) {
+            String fileKey = ChecksummedLine.unescape(fields[1]);
+            List<Path> paths = new ArrayList<>();
+            for (int i = 2; i < fields.length; i++) {
+                paths.add(Paths.get(ChecksummedLine.unescape(fields[i])));
+            }
+            try {
+                List<BSFileInformation> fileInfos = bsfiRepository.findByFileKey(fileKey);
+                if (!fileInfos.isEmpty()) {
+                    toolServices.completeInterruptedUpload(fileInfos.get(0));
+                    recoveredCommitted++;
+                } else {
+                    rollback(fileKey, paths);
+                    recoveredRolledBack++;
+                }
+            } catch (IOException | ServerError500Exception | RuntimeException e) {
+                log.error(String.format("Reprise du dépot interrompu du fichier %s impossible", fileKey), e);
+                recovered = false;
+            }
+            for (Path path : paths) {
+                // Fichier réécrit, ou répertoire du fichier supprimé
+                Path touchedPath = Files.exists(path) ? path : path.getParent();
+                if (touchedPath != null && Files.exists(touchedPath)) {
+                    touchedPaths.add(touchedPath);
+                }
+            }
+        }
+        if (pending.isEmpty()) {
+            return true;
+        }
+        log.info(String.format("Dépots interrompus repris : %d complétés, %d annulés", recoveredCommitted, recoveredRolledBack));
+
+        // Les journaux ne sont supprimés qu'une fois la reprise durable
+        if (headerJournal.isEnabled() && headerJournal.getActiveSegment() != null) {
+            touchedPaths.add(Paths.get(headerJournal.getActiveSegment()));
+        }
+        syncer.sync(toolServices.getDurablePaths(touchedPaths));
+        return recovered;
+    }
+
+    /**
+     * Annulation d'un dépot interrompu avant l'enregistrement de ses informations : suppression des fichiers créés.
+     */
+    private void rollback(String fileKey, List<Path> paths) throws IOException {
+        log.info(String.format("Annulation du dépot interrompu du fichier %s", fileKey));
+        for (Path path : paths) {
+            if (Files.deleteIfExists(path)) {
+                log.debug(String.format("Fichier supprimé (%s)", path));
+            }
+        }
+        if (headerJournal.isEnabled() && headerJournal.contains(fileKey)) {
+            headerJournal.appendDeletion(fileKey);
+        }
+    }
+
+    @ManagedAttribute(description = "Durabilité des dépots active")
+    public boolean getEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute(description = "Journal des intentions courant")
+    public synchronized String getActiveLog() {
+        return activeGeneration != null ? activeGeneration.path.toString() : null;
+    }
+
+    @ManagedAttribute(description = "Nombre d'intentions enregistrées")
+    public long getBegun() {
+        return begun.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de dépots enregistrés")
+    public long getCommitted() {
+        return committed.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de dépots abandonnés")
+    public long getAborted() {
+        return aborted.get();
+    }
+
+    @ManagedAttribute(description = "Nombre d'échecs de synchronisation")
+    public long getSyncFailures() {
+        return syncFailures.get();
+    }
+
+    @ManagedAttribute(description = "Nombre de dépots interrompus complétés au démarrage")
+    public int getRecoveredCommitted() {
+        return recoveredCommitted;
+    }
+
+    @ManagedAttribute(description = "Nombre de dépots interrompus annulés au démarrage")
+    public int getRecoveredRolledBack() {
+        return recoveredRolledBack;
+    }
+
+    /**
+     * Fichier du journal des intentions
+     */
+    private static class Generation {
+        private final int number;
+        private final Path path;
+        private final FileChannel channel;
+        private long size;
+        private int openIntents;
+        private volatile boolean directorySynced;
+
+        Generation(int number, Path path, FileChannel channel) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Intention de dépot d'un fichier
+     */
+    public static class Intent {
+        private final long sequence;
+        private final Generation generation;
+        private boolean completed;
+
+        Intent(long sequence, Generation generation) {
+            this.sequence = sequence;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.exceptions.Conflict409Exception;
+import com.iorga.cig.bs.FileStorageManager.exceptions.NotFound404Exception;
+import com.iorga.cig.bs.FileStorageManager.exceptions.ServerError500Exception;
+import com.iorga.cig.bs.FileStorageManager.exceptions.VirusFound409Exception;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Construction à la volée d'une archive ZIP de plusieurs fichiers, écrite directement dans le flux de la réponse
+ * (mémoire bornée, aucun fichier temporaire).
+ * Les contenus déjà compressés (images, archives, documents Office...) sont stockés sans compression (STORED) :
+ * leur CRC est calculé par une première lecture du fichier, qui vérifie aussi l'intégrité avant l'écriture de l'entrée.
+ * Les autres contenus sont compressés (DEFLATED) et leur intégrité est vérifiée pendant le transfert.
+ * Les fichiers qui ne peuvent être transmis sont ignorés et listés dans une entrée {@value #ERRORS_ENTRY_NAME}.
+ */
+@Service
+public class ZipArchiveSender {
+
+    public static final String ERRORS_ENTRY_NAME = "_erreurs.txt";
+
+    private static final int STREAMING_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Types de contenu déjà compressés
+     */
+    private static final Set<String> COMPRESSED_CONTENT_TYPES = new HashSet<>(Arrays.asList(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/x-bzip2", "application/java-archive",
+            "image/jpeg", "image/png", "image/gif", "image/webp",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+            "application/vnd.oasis.opendocument.text",
+            "application/vnd.oasis.opendocument.spreadsheet",
+            "application/vnd.oasis.opendocument.presentation"));
+
+    /**
+     * Extensions des fichiers déjà compressés (le type de contenu déclaré au dépot est souvent générique)
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar",
+            "jpg", "jpeg", "png", "gif", "webp",
+            "mp3", "mp4", "avi", "mkv", "mov",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp"));
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private Tools toolServices;
+
+    /**
+     * Ecrit l'archive des fichiers demandés dans le flux de sortie.
+     * Les headers de la réponse doivent avoir été positionnés avant l'appel.
+     *
+     * @param fileInfos fichiers à archiver (déjà contrôlés : statut disponible)
+     * @param errors    erreurs déjà connues (fichiers exclus par l'appelant), complétées pendant la construction
+     * @param out       flux de sortie de la réponse
+     * @throws IOException Le transfert a été interrompu (l'archive est alors incomplète)
+     */
+    public void sendArchive(List<BSFileInformation> fileInfos, List<String> errors, OutputStream out) throws IOException {
+        MessageDigest digester;
+        try {
+            digester = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA256 non supporté.", e);
+        }
+
+        byte[] buffer = new byte[STREAMING_BUFFER_SIZE];
+        Set<String> entryNames = new HashSet<>();
+        ZipOutputStream zipOut = new ZipOutputStream(out, StandardCharsets.UTF_8);
+        for (BSFileInformation fileInfo : fileInfos) {
+            DownloadableDataFile dataFile;
+            try {
+                dataFile = toolServices.getDataFileForDownload(fileInfo, true);
+            } catch (NotFound404Exception e) {
+                errors.add(String.format("%s : fichier introuvable", fileInfo.getOriginalFileName()));
+                continue;
+            } catch (VirusFound409Exception e) {
+                errors.add(String.format("%s : le fichier contient un virus (%s)", fileInfo.getOriginalFileName(), e.getMessage()));
+                continue;
+            } catch (Conflict409Exception | ServerError500Exception e) {
+                errors.add(String.format("%s : %s", fileInfo.getOriginalFileName(), e.getMessage()));
+                continue;
+            }
+
+            ZipEntry entry = new ZipEntry(getEntryName(fileInfo, entryNames));
+            entry.setTime(dataFile.getAttributes().lastModifiedTime().toMillis());
+            digester.reset();
+            if (isCompressed(fileInfo)) {
+                // Une entrée STORED doit être précédée de sa taille et de son CRC
+                CRC32 crc = new CRC32();
+                long size = 0;
+                try (InputStream in = dataFile.openContentStream()) {
+                    int count;
+                    while ((count = in.read(buffer)) >= 0) {
+                        crc.update(buffer, 0, count);
+                        digester.update(buffer, 0, count);
+                        size += count;
+                    }
+                }
+                if (dataFile.isIntegrityCheckDeferred()) {
+                    boolean verified = Base64.getEncoder().encodeToString(digester.digest()).equals(fileInfo.getFileContentHash());
+                    toolServices.confirmStreamedIntegrity(fileInfo, dataFile, verified);
+                    if (!verified) {
+                        errors.add(String.format("%s : le contenu du fichier n'est pas cohérent", fileInfo.getOriginalFileName()));
+                        continue;
+                    }
+                }
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(size);
+                entry.setCompressedSize(size);
+                entry.setCrc(crc.getValue());
+                zipOut.putNextEntry(entry);
+                copy(dataFile, zipOut, buffer, null);
+            } else {
+                entry.setMethod(ZipEntry.DEFLATED);
+                zipOut.putNextEntry(entry);
+                copy(dataFile, zipOut, buffer, dataFile.isIntegrityCheckDeferred() ? digester : null);
+                if (dataFile.isIntegrityCheckDeferred()) {
+                    boolean verified = Base64.getEncoder().encodeToString(digester.digest()).equals(fileInfo.getFileContentHash());
+                    toolServices.confirmStreamedIntegrity(fileInfo, dataFile, verified);
+                    if (!verified) {
+                        // L'entrée est déjà transmise : l'archive est interrompue (réponse incomplète)
+                        throw new IOException(String.format("Le contenu du fichier %s n'est pas cohérent (modification non controlée).",
+                                fileInfo.getFileKey()));
+                    }
+                }
+            }
+            zipOut.closeEntry();
+        }
+
+        if (!errors.isEmpty()) {
+            log.warn(String.format("%d fichier(s) exclu(s) de l'archive", errors.size()));
+            zipOut.putNextEntry(new ZipEntry(ERRORS_ENTRY_NAME));
+            for (String error : errors) {
+                zipOut.write((error + "\r\n").getBytes(StandardCharsets.UTF_8));
+            }
+            zipOut.closeEntry();
+        }
+        zipOut.finish();
+        zipOut.flush();
+    }
+
+    private static void copy(DownloadableDataFile dataFile, OutputStream out, byte[] buffer, MessageDigest digester) throws IOException {
+        try (InputStream in = dataFile.openContentStream()) {
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                if (digester != null) {
+                    digester.update(buffer, 0, count);
+                }
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+
+    private static boolean isCompressed(BSFileInformation fileInfo) {
+        String contentType = fileInfo.getFileContentType();
+        if (contentType != null) {
+            String mimeType = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+            if (COMPRESSED_CONTENT_TYPES.contains(mimeType) || mimeType.startsWith("video/") || mimeType.startsWith("audio/")) {
+                return true;
+            }
+        }
+        String fileName = fileInfo.getOriginalFileName();
+        int dot = fileName != null ? fileName.lastIndexOf('.') : -1;
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Nom de l'entrée : nom d'origine du fichier, sans chemin, rendu unique dans l'archive.
+     */
+    private static String getEntryName(BSFileInformation fileInfo, Set<String> entryNames) {
+        String fileName = fileInfo.getOriginalFileName().replace('/', '_').replace('\\', '_');
+        String entryName = fileName;
+        int dot = fileName.lastIndexOf('.');
+        for (int i = 2; !entryNames.add(entryName) || ERRORS_ENTRY_NAME.equals(entryName); i++) {
+            entryName = dot > 0
+                    ? String.format("%s (%d)%s", fileName.substring(0, dot), i, fileName.substring(dot))
+                    : String.format("%s (%d)", fileName, i);
+        }
+        return entryName;
+    }
+}
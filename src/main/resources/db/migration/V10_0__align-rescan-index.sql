@@ -0,0 +1,8 @@
+-- Sélection des fichiers à rescanner (IBSFileInformationRepository.findFilesToRescan) :
+-- filtre sur is_content_no_virus_trusted puis tri is_public DESC, last_access_date DESC, last_scan_date ASC.
+-- L'index (status, is_content_no_virus_trusted, last_scan_date) est remplacé par un index dans l'ordre du tri
+-- (sens de parcours pris en compte à partir de MySQL 8), afin d'éviter le tri de tous les fichiers non fiables.
+create index bsfile_information_idx_rescan_priority
+  on bsfile_information (is_content_no_virus_trusted, is_public desc, last_access_date desc, last_scan_date);
+
+drop index bsfile_information_idx_rescan on bsfile_information ;
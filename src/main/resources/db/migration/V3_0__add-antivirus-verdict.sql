@@ -0,0 +1,9 @@
+create table antivirus_verdict
+(
+  content_hash varchar(64) not null primary key,
+  signature_version varchar(64) not null,
+  is_clean BOOLEAN NOT NULL,
+  scan_result varchar(10000) null,
+  scan_date datetime not null
+)
+  engine=InnoDB;
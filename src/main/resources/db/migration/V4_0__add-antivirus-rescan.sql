@@ -0,0 +1,6 @@
+alter table bsfile_information
+  add last_scan_date datetime null,
+  add last_access_date datetime null;
+
+create index bsfile_information_idx_rescan
+  on bsfile_information (status, is_content_no_virus_trusted, last_scan_date);
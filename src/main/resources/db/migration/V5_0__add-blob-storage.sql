@@ -0,0 +1,14 @@
+create table bsfile_blob
+(
+  content_hash varchar(64) not null primary key,
+  ref_count int not null,
+  content_size int not null,
+  creation_date datetime not null
+)
+  engine=InnoDB;
+
+alter table bsfile_information
+  add blob_hash varchar(64) null;
+
+create index bsfile_information_idx_blob
+  on bsfile_information (blob_hash);
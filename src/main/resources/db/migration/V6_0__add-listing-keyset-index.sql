@@ -0,0 +1,9 @@
+-- Listing paginé des dossiers par clé de parcours (original_file_name, id).
+-- L'index (logical_folder, target_year, owner_key) est remplacé par son extension, qui couvre aussi l'ordre de parcours.
+create index bsfile_information_idx_4_6_3_7_1
+  on bsfile_information (logical_folder, target_year, owner_key, original_file_name, id);
+
+create index bsfile_information_idx_4_7_1
+  on bsfile_information (logical_folder, original_file_name, id);
+
+drop index bsfile_information_idx_4_6_3 on bsfile_information ;
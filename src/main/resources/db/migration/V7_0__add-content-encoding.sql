@@ -0,0 +1,2 @@
+alter table bsfile_information
+  add content_encoding varchar(20) null;
@@ -0,0 +1,2 @@
+alter table bsfile_information
+  add storage_layout int not null default 0;
@@ -0,0 +1,2 @@
+alter table bsfile_information
+  add storage_tier int not null default 0;
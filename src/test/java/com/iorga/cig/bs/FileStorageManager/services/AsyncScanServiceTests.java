@@ -0,0 +1,120 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.exceptions.ServerError500Exception;
+import com.iorga.cig.bs.FileStorageManager.exceptions.VirusFound409Exception;
+import com.iorga.cig.bs.FileStorageManager.models.BSFile;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.BeanUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Transitions de statut du scan asynchrone : le résultat n'est enregistré que si le fichier est toujours en attente de scan.
+ */
+public class AsyncScanServiceTests {
+
+    private static final Long ID = 42L;
+    private static final String FILE_KEY = "fileKey";
+    private static final Integer PENDING = BSFile.Status.PENDING_SCAN.value();
+
+    private final IBSFileInformationRepository bsfiRepository = mock(IBSFileInformationRepository.class);
+    private final BSFileInformationCache fileInfosCache = mock(BSFileInformationCache.class);
+    private final Tools toolServices = mock(Tools.class);
+    private final AsyncScanService asyncScanService = new AsyncScanService();
+    private final Path dataFilePathObj = Paths.get("data");
+
+    @Before
+    public void setUp() {
+        ReflectionTestUtils.setField(asyncScanService, "bsfiRepository", bsfiRepository);
+        ReflectionTestUtils.setField(asyncScanService, "fileInfosCache", fileInfosCache);
+        ReflectionTestUtils.setField(asyncScanService, "toolServices", toolServices);
+        ReflectionTestUtils.setField(asyncScanService, "writeIntentLog", mock(WriteIntentLog.class));
+
+        BSFileInformation fileInfos = BeanUtils.instantiateClass(BSFileInformation.class);
+        ReflectionTestUtils.setField(fileInfos, "id", ID);
+        ReflectionTestUtils.setField(fileInfos, "fileKey", FILE_KEY);
+        fileInfos.setStatus(PENDING);
+        when(bsfiRepository.findOne(ID)).thenReturn(fileInfos);
+    }
+
+    @Test
+    public void cleanFileIsReleasedOnlyIfStillPending() throws Throwable {
+        when(toolServices.releaseQuarantinedFile(any(BSFileInformation.class))).thenReturn(dataFilePathObj);
+        when(bsfiRepository.updateAsyncScanResult(eq(ID), eq(PENDING), eq(BSFile.Status.AVAILABLE.value()),
+                anyString(), any(Timestamp.class), anyString(), anyString())).thenReturn(1);
+
+        scan();
+
+        verify(bsfiRepository).updateAsyncScanResult(eq(ID), eq(PENDING), eq(BSFile.Status.AVAILABLE.value()),
+                anyString(), any(Timestamp.class), anyString(), anyString());
+        verify(bsfiRepository, never()).save(any(BSFileInformation.class));
+        verify(bsfiRepository, never()).updateReleasedContent(any(Long.class), any(Timestamp.class), anyString(), anyString());
+        verify(fileInfosCache).invalidate(FILE_KEY);
+        verify(toolServices, never()).deleteFile(any(BSFileInformation.class));
+    }
+
+    @Test
+    public void infectedFileIsMarkedInfected() throws Throwable {
+        when(toolServices.releaseQuarantinedFile(any(BSFileInformation.class))).thenThrow(new VirusFound409Exception("Eicar"));
+        when(bsfiRepository.updateAsyncScanResult(eq(ID), eq(PENDING), eq(BSFile.Status.VIRUS_INFECTED.value()),
+                eq("Eicar"), any(Timestamp.class), anyString(), anyString())).thenReturn(1);
+
+        scan();
+
+        verify(bsfiRepository).updateAsyncScanResult(eq(ID), eq(PENDING), eq(BSFile.Status.VIRUS_INFECTED.value()),
+                eq("Eicar"), any(Timestamp.class), anyString(), anyString());
+        verify(fileInfosCache).invalidate(FILE_KEY);
+    }
+
+    @Test
+    public void concurrentStatusChangeIsNotOverwritten() throws Throwable {
+        when(toolServices.releaseQuarantinedFile(any(BSFileInformation.class))).thenReturn(dataFilePathObj);
+        // Suppression logique pendant le scan : le statut n'est plus PENDING_SCAN
+        when(bsfiRepository.updateReleasedContent(eq(ID), any(Timestamp.class), anyString(), anyString())).thenReturn(1);
+
+        scan();
+
+        verify(bsfiRepository).updateReleasedContent(eq(ID), any(Timestamp.class), anyString(), anyString());
+        verify(toolServices, never()).deleteFile(any(BSFileInformation.class));
+        verify(fileInfosCache).invalidate(FILE_KEY);
+    }
+
+    @Test
+    public void fileDeletedDuringScanIsRemoved() throws Throwable {
+        when(toolServices.releaseQuarantinedFile(any(BSFileInformation.class))).thenReturn(dataFilePathObj);
+
+        scan();
+
+        verify(toolServices).deleteFile(any(BSFileInformation.class));
+        verify(fileInfosCache).invalidate(FILE_KEY);
+    }
+
+    @Test
+    public void unavailableAntivirusLeavesFilePending() throws Throwable {
+        when(toolServices.releaseQuarantinedFile(any(BSFileInformation.class)))
+                .thenThrow(new ServerError500Exception("clamd indisponible", null));
+
+        scan();
+
+        verify(bsfiRepository, never()).updateAsyncScanResult(any(Long.class), any(Integer.class), any(Integer.class),
+                anyString(), any(Timestamp.class), anyString(), anyString());
+        verify(fileInfosCache, never()).invalidate(anyString());
+    }
+
+    private void scan() {
+        ReflectionTestUtils.invokeMethod(asyncScanService, "scan", ID);
+    }
+}
@@ -0,0 +1,66 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.iorga.cig.bs.FileStorageManager.models.BSFile;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileUpload;
+import org.junit.Test;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.mock.http.MockHttpInputMessage;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Lecture des dépots JSON : limitation du nombre de fichiers d'un dépot groupé pendant la lecture.
+ */
+public class BSFileUploadMessageConverterTests {
+
+    private static final Type UPLOAD_LIST = new ParameterizedTypeReference<List<BSFileUpload>>() {}.getType();
+
+    private final BSFileUploadMessageConverter converter = new BSFileUploadMessageConverter(new ObjectMapper(), new Tools(), 2);
+
+    @Test
+    public void readsOnlyUploadTypes() {
+        assertTrue(converter.canRead(UPLOAD_LIST, null, MediaType.APPLICATION_JSON));
+        assertTrue(converter.canRead(BSFileUpload.class, null, MediaType.APPLICATION_JSON));
+        assertFalse(converter.canRead(BSFile.class, null, MediaType.APPLICATION_JSON));
+        assertFalse(converter.canWrite(BSFileUpload.class, MediaType.APPLICATION_JSON));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void readsListUpToMaxFiles() throws Exception {
+        List<BSFileUpload> uploads = (List<BSFileUpload>) read("[{\"originalFileName\": \"a.bin\"}, null]");
+
+        assertEquals(2, uploads.size());
+        assertEquals("a.bin", uploads.get(0).getOriginalFileName());
+    }
+
+    @Test
+    public void stopsReadingBeyondMaxFiles() throws Exception {
+        try {
+            // Le troisième élément (invalide) n'est pas lu
+            read("[{\"originalFileName\": \"a.bin\"}, {\"originalFileName\": \"b.bin\"}, {\"originalFileName\": ");
+            fail("Le nombre de fichiers d'un dépot groupé est limité");
+        } catch (HttpMessageNotReadableException e) {
+            assertEquals("Le nombre de fichiers d'un dépot groupé est limité à 2.", e.getMessage());
+        }
+    }
+
+    @Test(expected = HttpMessageNotReadableException.class)
+    public void rejectsSingleObjectForList() throws Exception {
+        read("{\"originalFileName\": \"a.bin\"}");
+    }
+
+    private Object read(String json) throws Exception {
+        return converter.read(UPLOAD_LIST, null, new MockHttpInputMessage(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,78 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class BoundedCacheTests {
+
+    @Test
+    public void disabledCacheStoresNothing() {
+        BoundedCache<String, String> cache = new BoundedCache<>(0, 60000);
+        cache.put("a", "1");
+
+        assertFalse(cache.isEnabled());
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntry() {
+        BoundedCache<String, String> cache = new BoundedCache<>(2, 60000);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        // "a" devient l'entrée la plus récemment utilisée
+        assertEquals("1", cache.get("a"));
+        cache.put("c", "3");
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void expiredEntryIsAMissAndIsRemoved() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, 60000);
+        cache.put("a", "1", -1);
+        cache.put("b", "2");
+
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void invalidEntryIsAMissAndIsRemoved() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, 60000);
+        cache.put("a", "stale");
+
+        assertNull(cache.get("a", "fresh"::equals));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.put("a", "fresh");
+        assertEquals("fresh", cache.get("a", "fresh"::equals));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void invalidateAndClearRemoveEntries() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, 60000);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.invalidate("a");
+
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+}
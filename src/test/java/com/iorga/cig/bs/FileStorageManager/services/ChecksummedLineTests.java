@@ -0,0 +1,63 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Format des enregistrements des journaux en ajout seul.
+ */
+public class ChecksummedLineTests {
+
+    @Test
+    public void formattedRecordIsParsedBack() throws IOException {
+        String body = "B 1\t" + ChecksummedLine.escape("clé\nsur\\deux lignes");
+        InputStream in = new ByteArrayInputStream(ChecksummedLine.format(body));
+
+        String line = ChecksummedLine.readLine(in, new ByteArrayOutputStream());
+
+        assertEquals(body, ChecksummedLine.parse(line));
+        assertEquals("clé\nsur\\deux lignes", ChecksummedLine.unescape(ChecksummedLine.parse(line).substring(4)));
+    }
+
+    @Test
+    public void alteredRecordIsRejected() {
+        String line = new String(ChecksummedLine.format("C 12"), StandardCharsets.UTF_8).trim();
+
+        assertNull(ChecksummedLine.parse(line.replace("C 12", "C 13")));
+        assertNull(ChecksummedLine.parse(line.substring(0, 8)));
+        assertNull(ChecksummedLine.parse("zzzzzzzz C 12"));
+    }
+
+    @Test
+    public void incompleteLastLineIsIgnored() throws IOException {
+        byte[] first = ChecksummedLine.format("C 1");
+        byte[] second = ChecksummedLine.format("C 2");
+        byte[] log = new byte[first.length + second.length - 1];
+        System.arraycopy(first, 0, log, 0, first.length);
+        System.arraycopy(second, 0, log, first.length, second.length - 1);
+        InputStream in = new ByteArrayInputStream(log);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        assertEquals("C 1", ChecksummedLine.parse(ChecksummedLine.readLine(in, buffer)));
+        assertNull(ChecksummedLine.readLine(in, buffer));
+    }
+
+    @Test
+    public void escapedDataFitsOnOneLine() {
+        String data = "a\\n\r\nb\\";
+
+        String escaped = ChecksummedLine.escape(data);
+
+        assertEquals(-1, escaped.indexOf('\n'));
+        assertEquals(-1, escaped.indexOf('\r'));
+        assertEquals(data, ChecksummedLine.unescape(escaped));
+    }
+}
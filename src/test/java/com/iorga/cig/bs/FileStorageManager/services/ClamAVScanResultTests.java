@@ -0,0 +1,57 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClamAVScanResultTests {
+
+    @Test
+    public void okReplyIsClean() throws Exception {
+        ClamAVScanner.ScanResult result = ClamAVScanner.ScanResult.parse("stream: OK");
+
+        assertTrue(result.isClean());
+        assertEquals("stream: OK", result.getReply());
+    }
+
+    @Test
+    public void foundReplyIsInfected() throws Exception {
+        ClamAVScanner.ScanResult result = ClamAVScanner.ScanResult.parse("stream: Eicar-Test-Signature FOUND");
+
+        assertFalse(result.isClean());
+        assertEquals("stream: Eicar-Test-Signature FOUND", result.getReply());
+    }
+
+    @Test
+    public void virusNamedLikeOkIsInfected() throws Exception {
+        assertFalse(ClamAVScanner.ScanResult.parse("stream: Win.Trojan.OK-1 FOUND").isClean());
+    }
+
+    @Test
+    public void sizeLimitReplyIsAnError() {
+        assertScanError("INSTREAM size limit exceeded. ERROR");
+    }
+
+    @Test
+    public void accessErrorReplyIsAnError() {
+        assertScanError("/tmp/file: lstat() failed: No such file or directory. ERROR");
+    }
+
+    @Test
+    public void unexpectedReplyIsAnError() {
+        assertScanError("UNKNOWN COMMAND");
+        assertScanError("");
+    }
+
+    private static void assertScanError(String reply) {
+        try {
+            ClamAVScanner.ScanResult.parse(reply);
+            fail("Réponse interprétée comme un verdict : " + reply);
+        } catch (ClamAVScanner.ClamdErrorException e) {
+            assertTrue(e.getMessage().contains(reply));
+        }
+    }
+}
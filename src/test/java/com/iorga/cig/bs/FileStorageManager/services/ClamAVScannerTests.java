@@ -0,0 +1,242 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Protocole clamd (sessions IDSESSION, INSTREAM) vérifié contre un faux démon clamd local.
+ */
+public class ClamAVScannerTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FakeClamd clamd;
+    private ClamAVScanner scanner;
+
+    @Before
+    public void setUp() throws IOException {
+        clamd = new FakeClamd();
+        scanner = new ClamAVScanner();
+        ReflectionTestUtils.setField(scanner, "clamavHosts", "127.0.0.1:" + clamd.getPort());
+        ReflectionTestUtils.setField(scanner, "connectTimeoutMs", 2000);
+        ReflectionTestUtils.setField(scanner, "readTimeoutMs", 5000);
+        ReflectionTestUtils.setField(scanner, "chunkSize", 16);
+        ReflectionTestUtils.setField(scanner, "maxConnectionsPerHost", 2);
+        ReflectionTestUtils.setField(scanner, "maxIdlePerHost", 2);
+        ReflectionTestUtils.setField(scanner, "acquireTimeoutMs", 1000L);
+        ReflectionTestUtils.setField(scanner, "maxInstreamPerHost", 1);
+        ReflectionTestUtils.setField(scanner, "maxIdleMs", 20000L);
+        ReflectionTestUtils.setField(scanner, "failureThreshold", 3);
+        ReflectionTestUtils.setField(scanner, "openSeconds", 30L);
+        ReflectionTestUtils.invokeMethod(scanner, "init");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ReflectionTestUtils.invokeMethod(scanner, "shutdown");
+        clamd.close();
+    }
+
+    @Test
+    public void sessionIsReusedAcrossScans() throws Exception {
+        assertTrue(scanner.scan(file("clean content, longer than one chunk")).isClean());
+        assertFalse(scanner.scan(file("xx EICAR yy")).isClean());
+
+        assertEquals(1, clamd.connections.get());
+        assertEquals("IDSESSION", clamd.commands.get(0));
+        assertEquals(2, clamd.commands.stream().filter("INSTREAM"::equals).count());
+        assertEquals(2, scanner.getScans());
+        assertEquals(1, scanner.getInfected());
+    }
+
+    @Test
+    public void reconnectsAfterDroppedSession() throws Exception {
+        clamd.dropAfterReply = true;
+
+        assertTrue(scanner.scan(file("first")).isClean());
+        // La session inactive a été fermée par clamd : le scan est rejoué sur une nouvelle session
+        assertTrue(scanner.scan(file("second")).isClean());
+
+        assertEquals(2, clamd.connections.get());
+        assertEquals(2, scanner.getScans());
+    }
+
+    @Test
+    public void errorReplyIsNeitherCleanNorInfected() throws Exception {
+        try {
+            scanner.scan(file("xx CLAMERR yy"));
+            fail("Une réponse d'erreur de clamd doit être une erreur de scan");
+        } catch (ClamAVScanner.ClamdErrorException e) {
+            assertTrue(e.getMessage().contains("INSTREAM size limit exceeded. ERROR"));
+        }
+        assertEquals(0, scanner.getScans());
+        assertEquals(0, scanner.getFailures());
+
+        // La session ayant retourné une erreur n'est pas réutilisée
+        assertTrue(scanner.scan(file("clean")).isClean());
+        assertEquals(2, clamd.connections.get());
+    }
+
+    @Test
+    public void instreamScanIsScannedChunkByChunk() throws Exception {
+        byte[] content = "streamed content with an EICAR marker".getBytes(StandardCharsets.US_ASCII);
+        try (ClamAVScanner.InstreamScan instreamScan = scanner.openInstreamScan()) {
+            instreamScan.write(content, 0, 10);
+            instreamScan.write(content, 10, content.length - 10);
+            assertFalse(instreamScan.finish().isClean());
+        }
+        assertTrue(scanner.scan(file("clean")).isClean());
+
+        assertEquals(1, clamd.connections.get());
+    }
+
+    @Test
+    public void busyInstreamSlotsDoNotBlockFileScans() throws Exception {
+        try (ClamAVScanner.InstreamScan instreamScan = scanner.openInstreamScan()) {
+            long start = System.currentTimeMillis();
+            try {
+                scanner.openInstreamScan().close();
+                fail("Le nombre de scans au fil de l'eau par démon est limité");
+            } catch (ClamAVScanner.ClamdPoolExhaustedException e) {
+                // Pas d'attente : l'appelant scanne le contenu après réception
+                assertTrue(System.currentTimeMillis() - start < 500);
+            }
+            assertTrue(scanner.scan(file("clean")).isClean());
+            instreamScan.write(new byte[]{'o', 'k'}, 0, 2);
+            assertTrue(instreamScan.finish().isClean());
+        }
+        assertEquals(0, scanner.getFailures());
+    }
+
+    private Path file(String content) throws IOException {
+        Path path = temporaryFolder.newFile().toPath();
+        Files.write(path, content.getBytes(StandardCharsets.US_ASCII));
+        return path;
+    }
+
+    /**
+     * Faux démon clamd : sessions IDSESSION, commandes PING / VERSION / INSTREAM.
+     * Réponse à INSTREAM : "FOUND" si le contenu contient EICAR, erreur s'il contient CLAMERR, "OK" sinon.
+     */
+    private static class FakeClamd implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final AtomicInteger connections = new AtomicInteger();
+        private final List<String> commands = new CopyOnWriteArrayList<>();
+        private volatile boolean dropAfterReply;
+
+        private FakeClamd() throws IOException {
+            Thread acceptor = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        connections.incrementAndGet();
+                        Thread handler = new Thread(() -> handle(socket));
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        // Serveur arrêté
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void handle(Socket socket) {
+            try (Socket client = socket) {
+                DataInputStream in = new DataInputStream(client.getInputStream());
+                OutputStream out = client.getOutputStream();
+                boolean session = false;
+                int id = 0;
+                while (true) {
+                    String command = readCommand(in);
+                    commands.add(command);
+                    if ("IDSESSION".equals(command)) {
+                        session = true;
+                        continue;
+                    }
+                    if ("END".equals(command)) {
+                        return;
+                    }
+                    String prefix = session ? (++id) + ": " : "";
+                    String reply;
+                    if ("PING".equals(command)) {
+                        reply = "PONG";
+                    } else if ("VERSION".equals(command)) {
+                        reply = "ClamAV 0.100.0/24593/Tue Jun 12 08:00:00 2018";
+                    } else if ("INSTREAM".equals(command)) {
+                        String content = readStream(in);
+                        reply = content.contains("CLAMERR") ? "INSTREAM size limit exceeded. ERROR"
+                                : content.contains("EICAR") ? "stream: Eicar-Test-Signature FOUND" : "stream: OK";
+                    } else {
+                        reply = "UNKNOWN COMMAND";
+                    }
+                    out.write((prefix + reply + "\0").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    if (!session || dropAfterReply) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // Connexion fermée par le client
+            }
+        }
+
+        private static String readCommand(DataInputStream in) throws IOException {
+            ByteArrayOutputStream command = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != 0) {
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                command.write(b);
+            }
+            String value = new String(command.toByteArray(), StandardCharsets.US_ASCII);
+            return value.startsWith("z") ? value.substring(1) : value;
+        }
+
+        private static String readStream(DataInputStream in) throws IOException {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            int length;
+            while ((length = in.readInt()) > 0) {
+                byte[] chunk = new byte[length];
+                in.readFully(chunk);
+                content.write(chunk);
+            }
+            return new String(content.toByteArray(), StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.BeanUtils;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Report en base, par lots, des dates de dernier téléchargement.
+ */
+public class DownloadAccessTrackerTests {
+
+    private final IBSFileInformationRepository bsfiRepository = mock(IBSFileInformationRepository.class);
+    private final DownloadAccessTracker accessTracker = new DownloadAccessTracker();
+    private final List<Long> reportedIds = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        ReflectionTestUtils.setField(accessTracker, "bsfiRepository", bsfiRepository);
+        ReflectionTestUtils.setField(accessTracker, "flushBatchSize", 2);
+    }
+
+    @Test
+    public void accessesAreReportedInBatches() {
+        reportUpdates();
+        recordAccesses(1L, 2L, 3L);
+
+        accessTracker.flush();
+
+        assertEquals(Arrays.asList(1L, 2L, 3L), new ArrayList<>(new TreeSet<>(reportedIds)));
+    }
+
+    @Test
+    public void failedBatchIsReportedByNextFlush() {
+        when(bsfiRepository.updateLastAccessDate(any(), any(Timestamp.class)))
+                .thenThrow(new DataAccessResourceFailureException("base indisponible"));
+        recordAccesses(1L, 2L, 3L);
+
+        accessTracker.flush();
+        reportUpdates();
+        accessTracker.flush();
+
+        assertEquals(Arrays.asList(1L, 2L, 3L), new ArrayList<>(new TreeSet<>(reportedIds)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void reportUpdates() {
+        doAnswer(invocation -> {
+            // Lot copié : la liste est réutilisée pour le lot suivant
+            reportedIds.addAll((Collection<Long>) invocation.getArguments()[0]);
+            return 1;
+        }).when(bsfiRepository).updateLastAccessDate(any(), any(Timestamp.class));
+    }
+
+    private void recordAccesses(Long... ids) {
+        for (Long id : ids) {
+            BSFileInformation fileInfos = BeanUtils.instantiateClass(BSFileInformation.class);
+            ReflectionTestUtils.setField(fileInfos, "id", id);
+            accessTracker.recordAccess(fileInfos);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.BSFile;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Recherche des headers dans le segment courant et les segments scellés du journal, reprise au démarrage.
+ */
+public class HeaderJournalTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final Tools toolServices = mock(Tools.class);
+    private final List<HeaderJournal> journals = new ArrayList<>();
+    private Path journalDir;
+
+    @Before
+    public void setUp() throws IOException {
+        journalDir = temporaryFolder.newFolder("journal").toPath();
+        when(toolServices.setDirectoryPermissions(any(Path.class), any(BSFileType.class)))
+                .thenAnswer(invocation -> invocation.getArguments()[0]);
+    }
+
+    @After
+    public void tearDown() {
+        for (HeaderJournal journal : journals) {
+            ReflectionTestUtils.invokeMethod(journal, "close");
+        }
+    }
+
+    @Test
+    public void headersAreFoundInActiveAndSealedSegments() throws Exception {
+        HeaderJournal journal = openJournal(1024);
+        List<BSFileInformation> files = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            BSFileInformation fileInfos = fileInfos("f" + i + ".bin");
+            journal.append(fileInfos);
+            files.add(fileInfos);
+        }
+
+        assertTrue(journal.getSealedSegments() > 0);
+        for (BSFileInformation fileInfos : files) {
+            assertTrue(journal.contains(fileInfos.getFileKey()));
+            assertEquals(fileInfos.toHeaderFileData(), journal.readHeader(fileInfos.getFileKey()));
+        }
+        assertFalse(journal.contains(fileInfos("absent.bin").getFileKey()));
+        assertNull(journal.readHeader(fileInfos("absent.bin").getFileKey()));
+    }
+
+    @Test
+    public void deletionHidesHeaderOfOlderSegment() throws Exception {
+        HeaderJournal journal = openJournal(1024);
+        BSFileInformation deleted = fileInfos("deleted.bin");
+        journal.append(deleted);
+        for (int i = 0; journal.getSealedSegments() == 0; i++) {
+            journal.append(fileInfos("f" + i + ".bin"));
+        }
+
+        journal.appendDeletion(deleted.getFileKey());
+
+        assertFalse(journal.contains(deleted.getFileKey()));
+    }
+
+    @Test
+    public void restartRestoresLookupsAndDropsIncompleteRecord() throws Exception {
+        HeaderJournal journal = openJournal(1024);
+        List<BSFileInformation> files = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            BSFileInformation fileInfos = fileInfos("f" + i + ".bin");
+            journal.append(fileInfos);
+            files.add(fileInfos);
+        }
+        journal.appendDeletion(files.get(0).getFileKey());
+        Path activeSegment = Paths.get(journal.getActiveSegment());
+        ReflectionTestUtils.invokeMethod(journal, "close");
+        journals.remove(journal);
+        // Ecriture interrompue en fin de segment
+        Files.write(activeSegment, "0badc0de H incomplet".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+
+        HeaderJournal restarted = openJournal(1024);
+
+        assertFalse(restarted.contains(files.get(0).getFileKey()));
+        for (BSFileInformation fileInfos : files.subList(1, files.size())) {
+            assertEquals(fileInfos.toHeaderFileData(), restarted.readHeader(fileInfos.getFileKey()));
+        }
+        BSFileInformation appended = fileInfos("after-restart.bin");
+        restarted.append(appended);
+        assertTrue(restarted.contains(appended.getFileKey()));
+    }
+
+    @Test
+    public void journalIsLockedByItsInstance() throws Exception {
+        openJournal(1024);
+        try {
+            openJournal(1024);
+            fail("Le journal ne doit être utilisé que par une seule instance");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("header.journal.dir"));
+        }
+    }
+
+    @Test
+    public void keyFilterHasNoFalseNegative() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            keys.add("key-" + i);
+        }
+        HeaderJournal.KeyFilter filter = new HeaderJournal.KeyFilter(keys);
+
+        for (String key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("other-" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("Faux positifs : " + falsePositives, falsePositives < 300);
+    }
+
+    private HeaderJournal openJournal(long segmentMaxBytes) {
+        HeaderJournal journal = new HeaderJournal();
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "journalDir", journalDir.toString());
+        ReflectionTestUtils.setField(journal, "segmentMaxBytes", segmentMaxBytes);
+        ReflectionTestUtils.setField(journal, "toolServices", toolServices);
+        ReflectionTestUtils.invokeMethod(journal, "init");
+        journals.add(journal);
+        return journal;
+    }
+
+    private static BSFileInformation fileInfos(String originalFileName) throws Exception {
+        BSFile bsFile = new BSFile();
+        bsFile.setOriginalFileName(originalFileName);
+        bsFile.setOwnerKey("O1");
+        bsFile.setTargetYear(2018);
+        return BSFileInformation.createNew(bsFile, "DOCS", 3, "hash");
+    }
+}
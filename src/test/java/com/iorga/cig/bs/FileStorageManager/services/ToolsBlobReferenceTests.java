@@ -0,0 +1,137 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.BSFile;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileBlob;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.util.Base64;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compteur de références des contenus partagés (stockage dédupliqué).
+ */
+public class ToolsBlobReferenceTests {
+
+    private static final byte[] CONTENT = "contenu partagé".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final IBSFileBlobRepository blobRepository = mock(IBSFileBlobRepository.class);
+    private final Tools tools = new Tools();
+    private BSFileInformation fileInfos;
+    private String contentHash;
+
+    @Before
+    public void setUp() throws Exception {
+        ReflectionTestUtils.setField(tools, "blobRepository", blobRepository);
+        ReflectionTestUtils.setField(tools, "headerJournal", mock(HeaderJournal.class));
+        ReflectionTestUtils.setField(tools, "storageMetrics", mock(StorageMetrics.class));
+        ReflectionTestUtils.setField(tools, "integrityCache", mock(IntegrityVerificationCache.class));
+        ReflectionTestUtils.setField(tools, "nasHeaderRootdir", temporaryFolder.newFolder("headers").toString());
+        ReflectionTestUtils.setField(tools, "nasBlobRootdir", temporaryFolder.newFolder("blobs").toString());
+        ReflectionTestUtils.setField(tools, "dedupEnabled", true);
+        ReflectionTestUtils.setField(tools, "storageLayoutVersion", Tools.MAX_STORAGE_LAYOUT);
+
+        contentHash = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(CONTENT));
+        BSFile bsFile = new BSFile();
+        bsFile.setOriginalFileName("a.bin");
+        bsFile.setOwnerKey("O1");
+        bsFile.setTargetYear(2018);
+        fileInfos = BSFileInformation.createNew(bsFile, "DOCS", CONTENT.length, contentHash);
+    }
+
+    @Test
+    public void firstReferenceIsCreatedWithAnUpsert() throws Exception {
+        Path contentFile = contentFile();
+
+        Path blobFilePathObj = blobFileMove(contentFile);
+
+        assertTrue(Files.exists(blobFilePathObj));
+        assertFalse(Files.exists(contentFile));
+        assertEquals(contentHash, fileInfos.getBlobHash());
+        // Jamais d'écriture de l'entité : elle écraserait un compteur incrémenté entre-temps par une autre instance
+        verify(blobRepository).insertOrIncrementRefCount(eq(contentHash), eq(CONTENT.length), any(Timestamp.class));
+        verify(blobRepository, never()).save(any(BSFileBlob.class));
+    }
+
+    @Test
+    public void storedContentIsOnlyReferenced() throws Exception {
+        when(blobRepository.incrementRefCount(contentHash)).thenReturn(1);
+        Path contentFile = contentFile();
+
+        Path blobFilePathObj = blobFileMove(contentFile);
+
+        assertFalse(Files.exists(blobFilePathObj));
+        assertFalse(Files.exists(contentFile));
+        assertEquals(contentHash, fileInfos.getBlobHash());
+        verify(blobRepository, never()).insertOrIncrementRefCount(any(String.class), any(Integer.class), any(Timestamp.class));
+    }
+
+    @Test
+    public void contentWrittenMeanwhileIsNeverReplaced() throws Exception {
+        // Contenu écrit par une autre instance (ou orphelin) sans référence en base
+        Path blobFilePathObj = blobFileMove(contentFile());
+        byte[] storedContent = "contenu déjà stocké".getBytes(StandardCharsets.UTF_8);
+        Files.write(blobFilePathObj, storedContent);
+        Path contentFile = contentFile();
+
+        blobFileMove(contentFile);
+
+        assertArrayEquals(storedContent, Files.readAllBytes(blobFilePathObj));
+        assertFalse(Files.exists(contentFile));
+        verify(blobRepository, times(2)).insertOrIncrementRefCount(eq(contentHash), eq(CONTENT.length), any(Timestamp.class));
+    }
+
+    @Test
+    public void unsavedUploadReleasesItsReference() throws Exception {
+        Path blobFilePathObj = blobFileMove(contentFile());
+        when(blobRepository.deleteIfUnreferenced(contentHash)).thenReturn(1);
+
+        tools.releaseUnsavedContent(fileInfos);
+
+        verify(blobRepository).decrementRefCount(contentHash);
+        assertFalse(Files.exists(blobFilePathObj));
+        assertNull(fileInfos.getBlobHash());
+    }
+
+    @Test
+    public void unsharedContentHasNoReferenceToRelease() {
+        tools.releaseUnsavedContent(fileInfos);
+
+        verifyZeroInteractions(blobRepository);
+    }
+
+    private Path contentFile() throws Exception {
+        Path contentFile = temporaryFolder.newFile().toPath();
+        Files.write(contentFile, CONTENT);
+        return contentFile;
+    }
+
+    private Path blobFileMove(Path contentFile) {
+        return ReflectionTestUtils.invokeMethod(tools, "blobFileMove", fileInfos, contentFile);
+    }
+}
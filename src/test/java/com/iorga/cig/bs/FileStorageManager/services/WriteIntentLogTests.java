@@ -0,0 +1,149 @@
+package com.iorga.cig.bs.FileStorageManager.services;
+
+import com.iorga.cig.bs.FileStorageManager.models.BSFile;
+import com.iorga.cig.bs.FileStorageManager.models.BSFileInformation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Reprise des journaux des intentions au démarrage, dans un répertoire partagé entre instances.
+ */
+public class WriteIntentLogTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final Tools toolServices = mock(Tools.class);
+    private final IBSFileInformationRepository bsfiRepository = mock(IBSFileInformationRepository.class);
+    private final List<WriteIntentLog> runningLogs = new ArrayList<>();
+    private Path intentLogDir;
+
+    @Before
+    public void setUp() throws IOException {
+        intentLogDir = temporaryFolder.newFolder("intents").toPath();
+        when(bsfiRepository.findByFileKey(anyString())).thenReturn(Collections.emptyList());
+    }
+
+    @After
+    public void tearDown() {
+        new ArrayList<>(runningLogs).forEach(this::stop);
+    }
+
+    @Test
+    public void interruptedUploadsOfStoppedInstanceAreRecovered() throws Exception {
+        WriteIntentLog stopped = start("a");
+        Path interruptedFile = uploadedFile("interrupted.bin");
+        Path savedFile = uploadedFile("saved.bin");
+        BSFileInformation interrupted = newFile("interrupted.bin");
+        BSFileInformation committed = newFile("committed.bin");
+        BSFileInformation saved = newFile("saved.bin");
+        begin(stopped, interrupted, interruptedFile);
+        stopped.complete(begin(stopped, committed, uploadedFile("committed.bin")), true);
+        begin(stopped, saved, savedFile);
+        stop(stopped);
+        when(bsfiRepository.findByFileKey(saved.getFileKey())).thenReturn(Collections.singletonList(saved));
+
+        WriteIntentLog restarted = start("b");
+
+        assertFalse(Files.exists(interruptedFile));
+        assertTrue(Files.exists(savedFile));
+        verify(toolServices).completeInterruptedUpload(saved);
+        verify(bsfiRepository, never()).findByFileKey(committed.getFileKey());
+        assertEquals(1, restarted.getRecoveredRolledBack());
+        assertEquals(1, restarted.getRecoveredCommitted());
+        assertEquals(Collections.singletonList("intents-b-00000001.log"), logFileNames());
+    }
+
+    @Test
+    public void intentsOfRunningInstanceAreNotRecovered() throws Exception {
+        WriteIntentLog running = start("a");
+        Path uploadedFile = uploadedFile("running.bin");
+        begin(running, newFile("running.bin"), uploadedFile);
+
+        WriteIntentLog started = start("b");
+
+        assertTrue(Files.exists(uploadedFile));
+        assertEquals(0, started.getRecoveredRolledBack());
+        assertEquals(0, started.getRecoveredCommitted());
+        assertEquals(2, logFileNames().size());
+        assertTrue(logFileNames().contains("intents-a-00000001.log"));
+    }
+
+    @Test
+    public void instancesWithSameIdNeverShareALogFile() throws Exception {
+        WriteIntentLog first = start("a");
+        WriteIntentLog second = start("a");
+
+        assertTrue(first.getActiveLog().endsWith("intents-a-00000001.log"));
+        assertTrue(second.getActiveLog().endsWith("intents-a-00000002.log"));
+    }
+
+    private WriteIntentLog start(String instanceId) {
+        WriteIntentLog intentLog = new WriteIntentLog();
+        ReflectionTestUtils.setField(intentLog, "enabled", true);
+        ReflectionTestUtils.setField(intentLog, "intentLogDir", intentLogDir.toString());
+        ReflectionTestUtils.setField(intentLog, "intentLogMaxBytes", 1024 * 1024L);
+        ReflectionTestUtils.setField(intentLog, "instanceId", instanceId);
+        ReflectionTestUtils.setField(intentLog, "syncer", mock(GroupCommitSyncer.class));
+        ReflectionTestUtils.setField(intentLog, "toolServices", toolServices);
+        ReflectionTestUtils.setField(intentLog, "headerJournal", mock(HeaderJournal.class));
+        ReflectionTestUtils.setField(intentLog, "bsfiRepository", bsfiRepository);
+        ReflectionTestUtils.invokeMethod(intentLog, "init");
+        runningLogs.add(intentLog);
+        return intentLog;
+    }
+
+    private void stop(WriteIntentLog intentLog) {
+        ReflectionTestUtils.invokeMethod(intentLog, "close");
+        runningLogs.remove(intentLog);
+    }
+
+    private WriteIntentLog.Intent begin(WriteIntentLog intentLog, BSFileInformation fileInfos, Path uploadedFile)
+            throws Exception {
+        when(toolServices.getUploadPaths(any(BSFileInformation.class), anyBoolean()))
+                .thenReturn(Collections.singletonList(uploadedFile));
+        return intentLog.begin(fileInfos, false);
+    }
+
+    private static BSFileInformation newFile(String originalFileName) throws Exception {
+        BSFile bsFile = new BSFile();
+        bsFile.setOriginalFileName(originalFileName);
+        bsFile.setOwnerKey("O1");
+        bsFile.setTargetYear(2018);
+        return BSFileInformation.createNew(bsFile, "DOCS", 3, "hash");
+    }
+
+    private Path uploadedFile(String name) throws IOException {
+        return Files.write(temporaryFolder.getRoot().toPath().resolve(name), new byte[]{1, 2, 3});
+    }
+
+    private List<String> logFileNames() throws IOException {
+        try (Stream<Path> files = Files.list(intentLogDir)) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+}
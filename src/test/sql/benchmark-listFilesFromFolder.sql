@@ -0,0 +1,130 @@
+-- Benchmark du listing des dossiers (IBSFileInformationRepository.listFilesFromFolder / listFilesFromFolderAfter)
+-- sur une copie de bsfile_information alimentée avec plusieurs millions de lignes.
+--
+-- Compare, pour chaque combinaison de critères, l'ancienne requête à prédicats "fourre-tout"
+--   (:targetYear = 0 OR target_year = :targetYear) AND (:ownerKey = '*' OR owner_key = :ownerKey)
+-- et la requête générée dynamiquement (critères joker omis), en requête préparée côté serveur.
+--
+-- Usage (MySQL 5.7, base migrée par Flyway) :
+--   mysql -u root -p cig_bs_fsm < src/test/sql/benchmark-listFilesFromFolder.sql
+-- Paramètres : @rows (nombre de lignes générées), @folders, @years, @owners.
+
+SET @rows = 3000000;
+SET @folders = 200;
+SET @years = 10;
+SET @owners = 5000;
+
+-- Table de benchmark : même structure et mêmes index que bsfile_information
+DROP TABLE IF EXISTS bench_bsfile_information;
+CREATE TABLE bench_bsfile_information LIKE bsfile_information;
+
+DROP TABLE IF EXISTS bench_digits;
+CREATE TABLE bench_digits (d INT NOT NULL PRIMARY KEY) ENGINE=InnoDB;
+INSERT INTO bench_digits VALUES (0), (1), (2), (3), (4), (5), (6), (7), (8), (9);
+
+INSERT INTO bench_bsfile_information
+  (file_key, owner_key, logical_folder, is_special, is_public, target_year, original_file_name,
+   file_content_hash, file_content_size, file_content_type, storage_date, storage_hashed_file_name, status)
+SELECT CONCAT('K', n.n),
+       CONCAT('OWNER-', n.n MOD @owners),
+       CONCAT('FOLDER-', n.n MOD @folders),
+       0, 0,
+       2010 + (n.n DIV @folders) MOD @years,
+       CONCAT('document-', LPAD(n.n DIV (@folders * @years), 7, '0'), '.pdf'),
+       'bench', 1024, 'application/pdf', CURRENT_DATE, SHA2(CONCAT('K', n.n), 256), 2
+FROM (SELECT d1.d + d2.d * 10 + d3.d * 100 + d4.d * 1000 + d5.d * 10000 + d6.d * 100000 + d7.d * 1000000 AS n
+      FROM bench_digits d1, bench_digits d2, bench_digits d3, bench_digits d4,
+           bench_digits d5, bench_digits d6, bench_digits d7) n
+WHERE n.n < @rows;
+
+ANALYZE TABLE bench_bsfile_information;
+
+-- Mesure : exécution répétée d'une requête préparée, durée moyenne en ms
+DROP PROCEDURE IF EXISTS bench_run;
+DELIMITER //
+CREATE PROCEDURE bench_run(IN label VARCHAR(100), IN query_text TEXT, IN p_year INT, IN p_owner VARCHAR(20), IN iterations INT)
+BEGIN
+  DECLARE i INT DEFAULT 0;
+  DECLARE started DATETIME(6);
+  SET @bench_sql = CONCAT('SELECT COUNT(*) INTO @bench_count FROM (', query_text, ') q');
+  SET @bench_folder = 'FOLDER-42', @bench_year = p_year, @bench_owner = p_owner;
+  PREPARE bench_stmt FROM @bench_sql;
+  SET started = NOW(6);
+  WHILE i < iterations DO
+    IF p_year IS NULL AND p_owner IS NULL THEN
+      EXECUTE bench_stmt USING @bench_folder;
+    ELSEIF p_owner IS NULL THEN
+      EXECUTE bench_stmt USING @bench_folder, @bench_year;
+    ELSEIF p_year IS NULL THEN
+      EXECUTE bench_stmt USING @bench_folder, @bench_owner;
+    ELSE
+      EXECUTE bench_stmt USING @bench_folder, @bench_year, @bench_owner;
+    END IF;
+    SET i = i + 1;
+  END WHILE;
+  SELECT label, @bench_count AS row_count,
+         ROUND(TIMESTAMPDIFF(MICROSECOND, started, NOW(6)) / iterations / 1000, 2) AS avg_ms;
+  DEALLOCATE PREPARE bench_stmt;
+END //
+DELIMITER ;
+
+SET @catch_all = 'SELECT * FROM bench_bsfile_information fi WHERE fi.logical_folder = ? '
+  'AND (? = 0 OR fi.target_year = ?) AND (? = ''*'' OR fi.owner_key = ?) ORDER BY fi.original_file_name';
+
+-- Ancienne requête : les paramètres sont dupliqués (test du joker + comparaison)
+DROP PROCEDURE IF EXISTS bench_catch_all;
+DELIMITER //
+CREATE PROCEDURE bench_catch_all(IN label VARCHAR(100), IN p_year INT, IN p_owner VARCHAR(20), IN iterations INT)
+BEGIN
+  DECLARE i INT DEFAULT 0;
+  DECLARE started DATETIME(6);
+  SET @bench_sql = CONCAT('SELECT COUNT(*) INTO @bench_count FROM (', @catch_all, ') q');
+  SET @bench_folder = 'FOLDER-42', @bench_year = p_year, @bench_owner = p_owner;
+  PREPARE bench_stmt FROM @bench_sql;
+  SET started = NOW(6);
+  WHILE i < iterations DO
+    EXECUTE bench_stmt USING @bench_folder, @bench_year, @bench_year, @bench_owner, @bench_owner;
+    SET i = i + 1;
+  END WHILE;
+  SELECT label, @bench_count AS row_count,
+         ROUND(TIMESTAMPDIFF(MICROSECOND, started, NOW(6)) / iterations / 1000, 2) AS avg_ms;
+  DEALLOCATE PREPARE bench_stmt;
+END //
+DELIMITER ;
+
+-- Plans d'exécution (requêtes générées dynamiquement)
+EXPLAIN SELECT * FROM bench_bsfile_information fi WHERE fi.logical_folder = 'FOLDER-42'
+  ORDER BY fi.original_file_name;
+EXPLAIN SELECT * FROM bench_bsfile_information fi WHERE fi.logical_folder = 'FOLDER-42' AND fi.target_year = 2015
+  ORDER BY fi.original_file_name;
+EXPLAIN SELECT * FROM bench_bsfile_information fi WHERE fi.logical_folder = 'FOLDER-42' AND fi.owner_key = 'OWNER-42'
+  ORDER BY fi.original_file_name;
+EXPLAIN SELECT * FROM bench_bsfile_information fi WHERE fi.logical_folder = 'FOLDER-42' AND fi.target_year = 2015
+  AND fi.owner_key = 'OWNER-42' ORDER BY fi.original_file_name;
+
+-- Mesures : ancienne requête puis requête dynamique, pour chaque combinaison de critères
+CALL bench_catch_all('fourre-tout : dossier', 0, '*', 20);
+CALL bench_run('dynamique   : dossier',
+  'SELECT * FROM bench_bsfile_information fi WHERE fi.logical_folder = ? ORDER BY fi.original_file_name',
+  NULL, NULL, 20);
+
+CALL bench_catch_all('fourre-tout : dossier + année', 2015, '*', 20);
+CALL bench_run('dynamique   : dossier + année',
+  'SELECT * FROM bench_bsfile_information fi WHERE fi.logical_folder = ? AND fi.target_year = ? ORDER BY fi.original_file_name',
+  2015, NULL, 20);
+
+CALL bench_catch_all('fourre-tout : dossier + owner', 0, 'OWNER-42', 20);
+CALL bench_run('dynamique   : dossier + owner',
+  'SELECT * FROM bench_bsfile_information fi WHERE fi.logical_folder = ? AND fi.owner_key = ? ORDER BY fi.original_file_name',
+  NULL, 'OWNER-42', 20);
+
+CALL bench_catch_all('fourre-tout : dossier + année + owner', 2015, 'OWNER-42', 20);
+CALL bench_run('dynamique   : dossier + année + owner',
+  'SELECT * FROM bench_bsfile_information fi WHERE fi.logical_folder = ? AND fi.target_year = ? AND fi.owner_key = ? ORDER BY fi.original_file_name',
+  2015, 'OWNER-42', 20);
+
+-- Nettoyage
+DROP PROCEDURE bench_run;
+DROP PROCEDURE bench_catch_all;
+DROP TABLE bench_digits;
+DROP TABLE bench_bsfile_information;